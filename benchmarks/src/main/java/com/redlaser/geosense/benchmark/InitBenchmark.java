@@ -0,0 +1,98 @@
+/**
+ * InitBenchmark.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redlaser.geosense.GeoSense;
+import com.redlaser.geosense.TZWorld;
+import com.redlaser.geosense.TZWorldSnapshot;
+
+/**
+ * Initialization cost. coldInit times GeoSense initialization through to
+ * ready in a fresh JVM, once per fork, which is what an application pays at
+ * startup.
+ * The load benchmarks time building a TZWorld from the shapefile and from a
+ * snapshot in a JVM that has already done so a few times.
+ * 
+ * @author Frank D. Russo
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class InitBenchmark {
+	private static final String TZ_WORLD = "tz_world_mp";
+
+	@State(Scope.Benchmark)
+	public static class Snapshot {
+		URL root;
+		File file;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			root = GeoSense.class.getResource("tzworld/");
+			file = File.createTempFile(TZ_WORLD, TZWorldSnapshot.EXTENSION);
+			TZWorldSnapshot.write(new TZWorld(root, TZ_WORLD), file);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			file.delete();
+		}
+	}
+
+	@Benchmark
+	@Warmup(iterations = 0)
+	@Measurement(iterations = 1)
+	@Fork(10)
+	public boolean coldInit() {
+		// class load only starts loading in the background
+		GeoSense.init();
+		return GeoSense.isReady();
+	}
+
+	@Benchmark
+	@Warmup(iterations = 3)
+	@Measurement(iterations = 10)
+	@Fork(2)
+	public TZWorld loadShapefile(Snapshot snapshot) throws IOException {
+		return new TZWorld(snapshot.root, TZ_WORLD);
+	}
+
+	@Benchmark
+	@Warmup(iterations = 3)
+	@Measurement(iterations = 10)
+	@Fork(2)
+	public TZWorld loadSnapshot(Snapshot snapshot) throws IOException {
+		return TZWorldSnapshot.map(snapshot.file);
+	}
+}
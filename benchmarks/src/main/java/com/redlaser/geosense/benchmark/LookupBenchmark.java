@@ -0,0 +1,167 @@
+/**
+ * LookupBenchmark.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense.benchmark;
+
+import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redlaser.geosense.GeoSense;
+import com.redlaser.geosense.TZWorld;
+
+/**
+ * Steady-state lookup throughput and latency, one point at a time and
+ * batched, by point distribution (see Points). The parallel batch runs on
+ * pools of 1 to 16 threads, and the contended benchmarks run the same
+ * lookups from as many threads as there are cores.
+ * 
+ * @author Frank D. Russo
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LookupBenchmark {
+	static final int POINTS = 1 << 16;
+	static final int BATCH = 1 << 12;
+
+	@State(Scope.Benchmark)
+	public static class Data {
+		@Param({ Points.LAND, Points.BORDER, Points.OCEAN })
+		String distribution;
+
+		Points points;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			points = Points.generate(distribution, POINTS);
+		}
+	}
+
+	/**
+	 * Fork/join pool of a given parallelism, for measuring how the parallel
+	 * batch lookup scales against the single threaded one
+	 */
+	@State(Scope.Benchmark)
+	public static class Pool {
+		@Param({ "1", "2", "4", "8", "16" })
+		int threads;
+
+		ForkJoinPool pool;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			pool = new ForkJoinPool(threads);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Per thread position in the points, so threads don't share a counter
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+		final double[] lats = new double[BATCH];
+		final double[] lons = new double[BATCH];
+		final int[] ordinals = new int[BATCH];
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			// start threads at different points
+			next = (int) (Thread.currentThread().getId() * 7919) & (POINTS - 1);
+		}
+
+		int next() {
+			int i = next;
+			next = (next + 1) & (POINTS - 1);
+			return i;
+		}
+
+		/**
+		 * Copy the next batch of points
+		 */
+		void nextBatch(Points points) {
+			int from = next & ~(BATCH - 1);
+			System.arraycopy(points.lats, from, lats, 0, BATCH);
+			System.arraycopy(points.lons, from, lons, 0, BATCH);
+			next = (from + BATCH) & (POINTS - 1);
+		}
+	}
+
+	@Benchmark
+	public TZWorld.TZExtent findTimeZoneExtent(Data data, Cursor cursor) {
+		int i = cursor.next();
+		return GeoSense.getTimeZoneExtent(data.points.lats[i], data.points.lons[i]);
+	}
+
+	@Benchmark
+	public TimeZone getTimeZone(Data data, Cursor cursor) {
+		int i = cursor.next();
+		return GeoSense.getTimeZone(data.points.lats[i], data.points.lons[i]);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int[] getTimeZoneOrdinals(Data data, Cursor cursor) {
+		cursor.nextBatch(data.points);
+		GeoSense.getTimeZoneOrdinals(cursor.lats, cursor.lons, cursor.ordinals);
+		return cursor.ordinals;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OperationsPerInvocation(POINTS)
+	public int[] getTimeZoneOrdinalsParallel(Data data, Pool pool) {
+		int[] ordinals = new int[POINTS];
+		GeoSense.getTimeZoneOrdinals(data.points.lats, data.points.lons, ordinals, pool.pool);
+		return ordinals;
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public TZWorld.TZExtent findTimeZoneExtentContended(Data data, Cursor cursor) {
+		return findTimeZoneExtent(data, cursor);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public TimeZone getTimeZoneContended(Data data, Cursor cursor) {
+		return getTimeZone(data, cursor);
+	}
+}
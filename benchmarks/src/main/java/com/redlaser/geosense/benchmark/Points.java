@@ -0,0 +1,93 @@
+/**
+ * Points.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense.benchmark;
+
+import java.util.Random;
+
+import com.redlaser.geosense.GeoSense;
+import com.redlaser.geosense.TZWorld;
+
+/**
+ * Random lookup points by distribution. Uniformly random points mostly land
+ * in ocean tiles that need no polygon work, so the lookup benchmarks draw
+ * from one of:
+ * <ul>
+ * <li>land: inside some tz_world zone</li>
+ * <li>border: within about 5km of a zone boundary or coastline, where the
+ * polygon tests are most expensive</li>
+ * <li>ocean: outside every zone</li>
+ * <li>uniform: anywhere, for comparison with the old Benchmark</li>
+ * </ul>
+ * 
+ * @author Frank D. Russo
+ */
+class Points {
+	static final String LAND = "land";
+	static final String BORDER = "border";
+	static final String OCEAN = "ocean";
+	static final String UNIFORM = "uniform";
+
+	private static final double BORDER_DISTANCE = 0.05;	// degrees
+	private static final int MAX_ATTEMPTS = 10000;	// per point
+
+	final double[] lats;
+	final double[] lons;
+
+	private Points(int n) {
+		lats = new double[n];
+		lons = new double[n];
+	}
+
+	/**
+	 * Generate n points of a distribution, with a fixed seed so runs are
+	 * comparable
+	 */
+	static Points generate(String distribution, int n) {
+		Random random = new Random(n);
+		Points points = new Points(n);
+		for (int i = 0; i < n; i++) {
+			int attempts = 0;
+			double lat, lon;
+			do {
+				if (++attempts > MAX_ATTEMPTS)
+					throw new IllegalStateException("no " + distribution + " points found");
+				lat = random.nextDouble() * 140.0 - 70.0;
+				lon = random.nextDouble() * 360.0 - 180.0;
+			} while (!accept(distribution, lat, lon, random));
+			points.lats[i] = lat;
+			points.lons[i] = lon;
+		}
+		return points;
+	}
+
+	private static boolean accept(String distribution, double lat, double lon, Random random) {
+		TZWorld.TZExtent extent = GeoSense.getTimeZoneExtent(lat, lon);
+		if (LAND.equals(distribution))
+			return extent != null;
+		if (OCEAN.equals(distribution))
+			return extent == null;
+		if (UNIFORM.equals(distribution))
+			return true;
+		if (BORDER.equals(distribution)) {
+			double angle = random.nextDouble() * 2.0 * Math.PI;
+			double lat2 = lat + BORDER_DISTANCE * Math.sin(angle);
+			double lon2 = lon + BORDER_DISTANCE * Math.cos(angle);
+			return extent != GeoSense.getTimeZoneExtent(lat2, lon2);
+		}
+		throw new IllegalArgumentException("unknown distribution " + distribution);
+	}
+}
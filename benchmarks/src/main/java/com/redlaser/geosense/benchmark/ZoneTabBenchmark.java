@@ -0,0 +1,90 @@
+/**
+ * ZoneTabBenchmark.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redlaser.geosense.GeoSense;
+import com.redlaser.geosense.RegionalTZ;
+import com.redlaser.geosense.ZoneTab;
+
+/**
+ * ZoneTab and RegionalTZ lookups, cycling through every country, region and
+ * zone they know
+ * 
+ * @author Frank D. Russo
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ZoneTabBenchmark {
+	private ZoneTab zoneTab;
+	private RegionalTZ regionalTZ;
+	private String[] countries;
+	private TimeZone[] timeZones;
+	private String[] regions;
+	private TimeZone[] regionalZones;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		zoneTab = new ZoneTab(GeoSense.class.getResourceAsStream("zone.tab"));
+		regionalTZ = new RegionalTZ(GeoSense.class.getResourceAsStream("tz_US.txt"));
+		countries = zoneTab.getCountries().toArray(new String[0]);
+		timeZones = zoneTab.getTimeZones().toArray(new TimeZone[0]);
+		regions = regionalTZ.getRegions().toArray(new String[0]);
+		regionalZones = regionalTZ.getTimeZones().toArray(new TimeZone[0]);
+	}
+
+	@Benchmark
+	public List<TimeZone> zoneTabTimeZones() {
+		return zoneTab.getTimeZones(countries[next++ % countries.length]);
+	}
+
+	@Benchmark
+	public String zoneTabCountry() {
+		return zoneTab.getACountry(timeZones[next++ % timeZones.length]);
+	}
+
+	@Benchmark
+	public List<TimeZone> regionalTimeZones() {
+		return regionalTZ.getTimeZones(regions[next++ % regions.length]);
+	}
+
+	@Benchmark
+	public String regionalRegion() {
+		return regionalTZ.getARegion(regionalZones[next++ % regionalZones.length]);
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * ArrayRing.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+/**
+ * Ring with vertices packed into a single int array on the heap, as x,y
+ * pairs.
+ * 
+ * @author Frank D. Russo
+ */
+class ArrayRing extends Ring {
+	private int[] coords;
+
+	/**
+	 * @param coords
+	 *            x,y pairs; held, not copied
+	 */
+	ArrayRing(int[] coords) {
+		this.coords = coords;
+		computeBounds();
+	}
+
+	@Override
+	int size() {
+		return coords.length / 2;
+	}
+
+	@Override
+	int getX(int i) {
+		return coords[2 * i];
+	}
+
+	@Override
+	int getY(int i) {
+		return coords[2 * i + 1];
+	}
+
+	@Override
+	boolean contains(int x, int y) {
+		int[] coords = this.coords;
+		int end = coords.length;
+		if (end <= 4 || !boundsContain(x, y))
+			return false;
+		if (bands != null)
+			return bands.contains(this, x, y);
+
+		boolean inside = false;
+		int lastx = coords[end - 2];
+		int lasty = coords[end - 1];
+		for (int i = 0; i < end; i += 2) {
+			int curx = coords[i];
+			int cury = coords[i + 1];
+			if (crosses(x, y, lastx, lasty, curx, cury))
+				inside = !inside;
+			lastx = curx;
+			lasty = cury;
+		}
+		return inside;
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * BufferRing.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring whose vertices are read in place from a (typically memory-mapped)
+ * ByteBuffer, stored as consecutive (x,y) int pairs. Only absolute gets are
+ * used, so a single buffer can be shared by any number of rings and threads.
+ * 
+ * @author Frank D. Russo
+ */
+class BufferRing extends Ring {
+	private ByteBuffer buffer;
+	private int offset;
+	private int n;
+
+	/**
+	 * @param buffer
+	 *            backing buffer, already set to the byte order of the data
+	 * @param offset
+	 *            byte offset of the first vertex
+	 * @param n
+	 *            number of vertices
+	 */
+	BufferRing(ByteBuffer buffer, int offset, int n, int minX, int minY, int maxX, int maxY) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.n = n;
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+	}
+
+	@Override
+	int size() {
+		return n;
+	}
+
+	@Override
+	int getX(int i) {
+		return buffer.getInt(offset + 8 * i);
+	}
+
+	@Override
+	int getY(int i) {
+		return buffer.getInt(offset + 8 * i + 4);
+	}
+
+	@Override
+	boolean contains(int x, int y) {
+		if (n <= 2 || !boundsContain(x, y))
+			return false;
+		if (bands != null)
+			return bands.contains(this, x, y);
+
+		ByteBuffer buffer = this.buffer;
+		int end = offset + 8 * n;
+		boolean inside = false;
+		int lastx = buffer.getInt(end - 8);
+		int lasty = buffer.getInt(end - 4);
+		for (int pos = offset; pos < end; pos += 8) {
+			int curx = buffer.getInt(pos);
+			int cury = buffer.getInt(pos + 4);
+			if (crosses(x, y, lastx, lasty, curx, cury))
+				inside = !inside;
+			lastx = curx;
+			lasty = cury;
+		}
+		return inside;
+	}
+}
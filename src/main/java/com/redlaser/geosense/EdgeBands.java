@@ -0,0 +1,255 @@
+/**
+ * EdgeBands.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Latitude band (slab) index of the edges of a large ring. The ring's height
+ * is cut into equal bands, and each band lists the edges whose latitude span
+ * overlaps it. A ray cast at latitude y can only cross edges spanning y, and
+ * those are all listed in y's band, so a containment test picks the band by
+ * division and runs the usual crossing test over that band's edges only -
+ * a handful, instead of every edge of a coastline with tens of thousands of
+ * vertices. Horizontal edges never cross a ray, and are left out.
+ * 
+ * Bands are in compressed row form: the edges of band b are
+ * edges[start[b]] .. edges[start[b+1]-1], each given by the index of its end
+ * vertex (the edge runs from the previous vertex, wrapping around).
+ * 
+ * Built with a margin, every edge, horizontal ones included, is listed in
+ * the bands its latitude span grown by the margin overlaps, so the band of y
+ * also lists every edge that can be within the margin of a point at y.
+ * 
+ * The bands are built in int arrays on the heap, and can be copied to a
+ * direct buffer to be read in place there, as BufferRing does its vertices.
+ * 
+ * @author Frank D. Russo
+ */
+abstract class EdgeBands {
+	private static final int VERTICES_PER_BAND = 4;
+	private static final int MAX_BANDS = 1 << 16;
+
+	private final long minY;
+	private final long bandHeight;
+
+	private EdgeBands(long minY, long bandHeight) {
+		this.minY = minY;
+		this.bandHeight = bandHeight;
+	}
+
+	static EdgeBands build(Ring ring) {
+		return build(ring, 0, false);
+	}
+
+	/**
+	 * Index for tests of distance to the edges as well as crossings, listing
+	 * each edge in every band within margin of its latitude span
+	 */
+	static EdgeBands build(Ring ring, int margin) {
+		return build(ring, margin, true);
+	}
+
+	private static EdgeBands build(Ring ring, int margin, boolean closed) {
+		int n = ring.size();
+		long minY = (long) ring.getMinY() - margin;
+		long height = (long) ring.getMaxY() + margin - minY + 1;
+		int bands = (int) Math.max(1, Math.min(Math.min(n / VERTICES_PER_BAND, MAX_BANDS), height));
+		long bandHeight = (height + bands - 1) / bands;
+
+		// count the edges of each band, then fill them in. crosses() needs
+		// min <= y < max, so an edge spans the bands of min to max - 1, or
+		// with a margin those of min - margin to max + margin
+		int[] start = new int[bands + 1];
+		int lasty = ring.getY(n - 1);
+		for (int i = 0; i < n; i++) {
+			int cury = ring.getY(i);
+			if (closed || cury != lasty) {
+				int last = lastBand(lasty, cury, margin, closed, minY, bandHeight);
+				for (int b = firstBand(lasty, cury, margin, minY, bandHeight); b <= last; b++)
+					start[b + 1]++;
+			}
+			lasty = cury;
+		}
+		for (int b = 0; b < bands; b++)
+			start[b + 1] += start[b];
+
+		int[] edges = new int[start[bands]];
+		int[] next = start.clone();
+		for (int i = 0; i < n; i++) {
+			int cury = ring.getY(i);
+			if (closed || cury != lasty) {
+				int last = lastBand(lasty, cury, margin, closed, minY, bandHeight);
+				for (int b = firstBand(lasty, cury, margin, minY, bandHeight); b <= last; b++)
+					edges[next[b]++] = i;
+			}
+			lasty = cury;
+		}
+		return new Heap(minY, bandHeight, start, edges);
+	}
+
+	private static int firstBand(int y0, int y1, int margin, long minY, long bandHeight) {
+		return band((long) Math.min(y0, y1) - margin, minY, bandHeight);
+	}
+
+	private static int lastBand(int y0, int y1, int margin, boolean closed, long minY, long bandHeight) {
+		return band((long) Math.max(y0, y1) + (closed ? margin : -1), minY, bandHeight);
+	}
+
+	private static int band(long y, long minY, long bandHeight) {
+		return (int) ((y - minY) / bandHeight);
+	}
+
+	/**
+	 * Position in the edge list of the first edge of band b, or its length
+	 * for b = bandCount()
+	 */
+	abstract int first(int b);
+
+	/**
+	 * End vertex of the edge at a position
+	 */
+	abstract int edge(int k);
+
+	abstract int bandCount();
+
+	/**
+	 * Determine if an integerized point is inside the ring, which must
+	 * already have been checked to contain it in its bounds
+	 */
+	boolean contains(Ring ring, int x, int y) {
+		int b = band(y, minY, bandHeight);
+		int n = ring.size();
+		boolean inside = false;
+		for (int k = first(b), end = first(b + 1); k < end; k++) {
+			int i = edge(k);
+			int prev = i > 0 ? i - 1 : n - 1;
+			if (Ring.crosses(x, y, ring.getX(prev), ring.getY(prev), ring.getX(i), ring.getY(i)))
+				inside = !inside;
+		}
+		return inside;
+	}
+
+	/**
+	 * Position of the first edge of the band of y; y must be within the
+	 * ring's bounds, grown by the margin
+	 */
+	int start(int y) {
+		return first(band(y, minY, bandHeight));
+	}
+
+	/**
+	 * Position after the last edge of the band of y
+	 */
+	int end(int y) {
+		return first(band(y, minY, bandHeight) + 1);
+	}
+
+	/**
+	 * Number of edges contains() looks at for a point at y
+	 */
+	int edgeCount(int y) {
+		int b = band(y, minY, bandHeight);
+		return first(b + 1) - first(b);
+	}
+
+	/**
+	 * Approximate size in bytes, on the heap or off it
+	 */
+	long getSize() {
+		return 4L * (bandCount() + 1 + first(bandCount()));
+	}
+
+	/**
+	 * Copy the bands to a buffer at its position, advancing it by getSize()
+	 * bytes
+	 * 
+	 * @return bands that read the copy in place
+	 */
+	EdgeBands copyTo(ByteBuffer buffer) {
+		int offset = buffer.position();
+		int bands = bandCount();
+		for (int b = 0; b <= bands; b++)
+			buffer.putInt(first(b));
+		for (int k = 0, end = first(bands); k < end; k++)
+			buffer.putInt(edge(k));
+		return new Direct(minY, bandHeight, buffer, offset, bands);
+	}
+
+	/**
+	 * Bands in int arrays on the heap
+	 */
+	private static final class Heap extends EdgeBands {
+		private final int[] start;
+		private final int[] edges;
+
+		Heap(long minY, long bandHeight, int[] start, int[] edges) {
+			super(minY, bandHeight);
+			this.start = start;
+			this.edges = edges;
+		}
+
+		@Override
+		int first(int b) {
+			return start[b];
+		}
+
+		@Override
+		int edge(int k) {
+			return edges[k];
+		}
+
+		@Override
+		int bandCount() {
+			return start.length - 1;
+		}
+	}
+
+	/**
+	 * Bands read in place from a buffer, with only absolute gets, as
+	 * BufferRing
+	 */
+	private static final class Direct extends EdgeBands {
+		private final ByteBuffer buffer;
+		private final int offset;	// of the band starts
+		private final int edgeOffset;	// of the edges, after them
+		private final int bands;
+
+		Direct(long minY, long bandHeight, ByteBuffer buffer, int offset, int bands) {
+			super(minY, bandHeight);
+			this.buffer = buffer;
+			this.offset = offset;
+			this.edgeOffset = offset + 4 * (bands + 1);
+			this.bands = bands;
+		}
+
+		@Override
+		int first(int b) {
+			return buffer.getInt(offset + 4 * b);
+		}
+
+		@Override
+		int edge(int k) {
+			return buffer.getInt(edgeOffset + 4 * k);
+		}
+
+		@Override
+		int bandCount() {
+			return bands;
+		}
+	}
+}
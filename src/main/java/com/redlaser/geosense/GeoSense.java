@@ -16,19 +16,29 @@
  */
 package com.redlaser.geosense;
 
-import java.util.HashMap;
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 /**
  * Central interface to the GeoSense package. Usage is simply to import
  * the GeoSense class, and then call any of the available static methods.
- * Initialization happens when the class is loaded. Available methods will
- * return timezone(s) by geo coordinate, locale, or country, as well as country
- * or locale by timezone. Examples:
+ * Initialization starts in the background when the class is loaded, from a
+ * precompiled TZWorldSnapshot if one is available (see SNAPSHOT_PROPERTY) or
+ * else from the tz_world shapefile, into a GeoSenseData that getHolder() can
+ * reload while lookups go on. Lookups made before it finishes wait for it,
+ * or as NotReady says otherwise. Available methods will return timezone(s) by geo
+ * coordinate, locale, or country, as well as country or locale by timezone.
+ * Examples:
  * 
  * <pre>
  * TimeZone tz1 = GeoSense.getTimeZone(37.29390,-121.91413); // returns America/Los_Angeles
@@ -42,116 +52,369 @@ import java.util.logging.Logger;
  */
 public class GeoSense {
 	private static Logger log = Logger.getLogger(GeoSense.class.getName());
-	
-	private static TZWorld tzWorld;
-	private static ZoneTab zoneTab;
-	private static Map<String, RegionalTZ> regionalZones;
 
-	// init on class load
+	/**
+	 * System property naming a TZWorldSnapshot file to memory-map at startup,
+	 * in place of the snapshot or shapefile on the classpath. Pointing all
+	 * JVMs on a host at the same file lets them share its pages.
+	 */
+	public static final String SNAPSHOT_PROPERTY = "geosense.snapshot";
+
+	/**
+	 * System property choosing what lookups do before the data has loaded,
+	 * one of the NotReady names; BLOCK by default
+	 */
+	public static final String NOT_READY_PROPERTY = "geosense.notready";
+
+	/**
+	 * What lookups do before the data has loaded
+	 */
+	public enum NotReady {
+		/** wait for it */
+		BLOCK,
+		/**
+		 * answer coordinate lookups with the Etc zone by longitude, as for a
+		 * point outside every zone, while the data is loading; other lookups
+		 * wait. Once a load has failed, and until a retry is under way, they
+		 * throw IllegalStateException with the failure as its cause.
+		 */
+		ETC,
+		/** throw IllegalStateException */
+		FAIL
+	}
+
+	/**
+	 * System property that, set to true, starts collecting lookup metrics at
+	 * class load, see getMetrics()
+	 */
+	public static final String METRICS_PROPERTY = "geosense.metrics";
+
+	/**
+	 * System property that, set to true, registers the GeoSenseMXBean at class
+	 * load, see registerMBean()
+	 */
+	public static final String JMX_PROPERTY = "geosense.jmx";
+
+	public static final String OBJECT_NAME = "com.redlaser.geosense:type=GeoSense";
+
+	// swapped on reload, see getHolder()
+	private static final GeoSenseHolder holder = new GeoSenseHolder();
+
+	// start loading on class load, without holding up the class
 	static {
+		String value = System.getProperty(NOT_READY_PROPERTY);
+		if (value != null) {
+			try {
+				holder.setNotReady(NotReady.valueOf(value.trim().toUpperCase(Locale.ROOT)));
+			}
+			catch (IllegalArgumentException e) {
+				log.warning("Ignoring " + NOT_READY_PROPERTY + "=" + value);
+			}
+		}
+		if (Boolean.getBoolean(METRICS_PROPERTY))
+			holder.getMetrics().setEnabled(true);
+		if (Boolean.getBoolean(JMX_PROPERTY))
+			registerMBean();
+		initAsync();
+	}
+
+	/**
+	 * Start loading the data in the background, if it is neither loaded nor
+	 * loading already, e.g. at boot alongside other warmup work. Class load
+	 * starts it anyway, and a call after a failed load tries again.
+	 * 
+	 * @return completes with the data once loaded, or exceptionally if the
+	 *         load failed
+	 */
+	public static CompletableFuture<GeoSenseData> initAsync() {
+		return holder.initAsync();
+	}
+
+	/**
+	 * Determine if the data has loaded, so lookups will not wait
+	 */
+	public static boolean isReady() {
+		return holder.isLoaded();
+	}
+
+	public static NotReady getNotReady() {
+		return holder.getNotReady();
+	}
+
+	/**
+	 * Set what lookups do before the data has loaded, see
+	 * NOT_READY_PROPERTY
+	 */
+	public static void setNotReady(NotReady notReady) {
+		holder.setNotReady(notReady);
+	}
+
+	/**
+	 * The lookup metrics so far, with the size and load timings of the
+	 * current data. Metrics are only collected while enabled, see
+	 * METRICS_PROPERTY, or getHolder().getMetrics().setEnabled(true).
+	 */
+	public static TZMetrics.Snapshot getMetrics() {
+		GeoSenseData data = holder.peek();
+		return holder.getMetrics().snapshot(data != null ? data.getTZWorld() : null);
+	}
+
+	/**
+	 * Register a GeoSenseMXBean over the metrics as OBJECT_NAME with the
+	 * platform MBean server, unless already registered
+	 */
+	public static synchronized void registerMBean() {
 		try {
-			tzWorld = new TZWorld(GeoSense.class.getResource("tzworld/"), "tz_world_mp");
-			zoneTab = new ZoneTab(GeoSense.class.getResourceAsStream("zone.tab"));
-			
-			regionalZones = new HashMap<String, RegionalTZ>();
-			regionalZones.put("US", new RegionalTZ(GeoSense.class.getResourceAsStream("tz_US.txt")));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name))
+				server.registerMBean(new GeoSenseMetrics(holder), name);
 		}
-		catch (Exception e) {
-			log.severe(e.toString());
+		catch (JMException e) {
+			log.warning("Could not register " + OBJECT_NAME + ": " + e);
 		}
 	}
-	
+
+	/**
+	 * The holder of the data behind the static methods. Its reload() builds
+	 * fresh data in the background, e.g. after the file named by
+	 * SNAPSHOT_PROPERTY was replaced, and swaps it in without pausing
+	 * lookups.
+	 */
+	public static GeoSenseHolder getHolder() {
+		return holder;
+	}
+
+	/**
+	 * The data currently behind the static methods, e.g. to make several
+	 * lookups against the same data across a reload. Before it has loaded,
+	 * this waits for it unless NotReady is FAIL.
+	 * 
+	 * @throws IllegalStateException
+	 *             if it failed to load, or is not loaded yet with NotReady
+	 *             FAIL
+	 */
+	public static GeoSenseData get() {
+		return holder.getWhenReady();
+	}
+
+	/**
+	 * As get(), but null where the NotReady ETC fallback applies, see
+	 * GeoSenseHolder.getOrEtc()
+	 */
+	private static GeoSenseData getOrEtc() {
+		return holder.getOrEtc();
+	}
+
 	public static TimeZone getTimeZone(double lat, double lon) {
-		TimeZone tz = tzWorld.findTimeZone(lat, lon);
-		if (tz != null)
-			return tz;
+		GeoSenseData data = getOrEtc();
+		return data != null ? data.getTimeZone(lat, lon) : getEtcTimeZone(getEtcOrdinal(lon));
+	}
+
+	/**
+	 * As getTimeZone(lat, lon), but a point outside every tz_world zone takes
+	 * the zone nearest to it within maxDistanceKm (see TZNearest), e.g. for
+	 * ships near the coast, before falling back to an Etc zone
+	 */
+	public static TimeZone getTimeZone(double lat, double lon, double maxDistanceKm) {
+		GeoSenseData data = getOrEtc();
+		return data != null ? data.getTimeZone(lat, lon, maxDistanceKm) : getEtcTimeZone(getEtcOrdinal(lon));
+	}
+
+	/**
+	 * The zone containing a point, or nearest to it within maxDistanceKm,
+	 * with the distance
+	 * 
+	 * @return the zone, or null if there is none that near
+	 */
+	public static TZNearest getNearestTimeZone(double lat, double lon, double maxDistanceKm) {
+		return get().getNearestTimeZone(lat, lon, maxDistanceKm);
+	}
+
+	/**
+	 * The tz_world zones touching a rectangle, such as a map viewport; see
+	 * TZWorld.findTimeZones
+	 */
+	public static List<TimeZone> getTimeZones(double minLat, double minLon, double maxLat, double maxLon) {
+		return get().getTimeZones(minLat, minLon, maxLat, maxLon);
+	}
 
-		// fall back to a normalized Etc time zone by longitude
-		int offset = (int) Math.round(lon / 15.0);
-		
-		// NOTE Etc naming convention is opposite the actual offset in hours
-		tz = TimeZone.getTimeZone("Etc/GMT" + (offset <= 0 ? "+" + (-offset) : "-" + offset));
+	/**
+	 * The tz_world zones touching a polygon, such as a delivery region; see
+	 * TZWorld.findTimeZones
+	 */
+	public static List<TimeZone> getTimeZones(double[] lats, double[] lons) {
+		return get().getTimeZones(lats, lons);
+	}
 
-		return tz;
+	/**
+	 * A context for looking up runs of nearby points, see TZLookupContext.
+	 * Not thread safe; use one per thread or per track.
+	 */
+	public static TZLookupContext newLookupContext() {
+		return get().newLookupContext();
 	}
-	
+
+	/**
+	 * getTimeZone(lat, lon) through a context from newLookupContext(), which
+	 * is much faster while successive points stay in the same zone
+	 */
+	public static TimeZone getTimeZone(double lat, double lon, TZLookupContext context) {
+		return get().getTimeZone(lat, lon, context);
+	}
+
+	/**
+	 * The time zones along a track, as runs of consecutive samples in the
+	 * same zone (see TZTrajectory). Samples outside every tz_world zone fall
+	 * back to Etc zones by longitude, as in getTimeZone(lat, lon).
+	 * 
+	 * @param times
+	 *            time of each sample, or null
+	 */
+	public static List<TZTrajectory.Segment> getTimeZoneSegments(double[] lats, double[] lons, long[] times) {
+		return get().getTimeZoneSegments(lats, lons, times);
+	}
+
+	/**
+	 * Batch form of getTimeZone(lat, lon), for large numbers of points. Fills
+	 * ordinals[i] with a compact zone ordinal for (lats[i], lons[i]), which
+	 * getTimeZone(int) maps back to a TimeZone. Ordinals from 0 up are
+	 * tz_world zones; negative ordinals are the Etc fallback zones. Much
+	 * faster than calling getTimeZone(lat, lon) in a loop, see
+	 * TZWorld.findTimeZoneOrdinals.
+	 * 
+	 * Ordinals of tz_world zones are only good against the data that
+	 * produced them, and each static call reads the current data afresh, so
+	 * a reload between this and getTimeZone(int) maps them through the wrong
+	 * zones. Where reloads can happen, take the data once from get() and
+	 * call getTimeZoneOrdinals and getTimeZone(int) on it instead.
+	 */
+	public static void getTimeZoneOrdinals(double[] lats, double[] lons, int[] ordinals) {
+		GeoSenseData data = getOrEtc();
+		if (data != null)
+			data.getTimeZoneOrdinals(lats, lons, ordinals);
+		else
+			getEtcOrdinals(lons, ordinals);
+	}
+
+	/**
+	 * Parallel form of getTimeZoneOrdinals(lats, lons, ordinals) for very large
+	 * arrays, run on the given pool or the common pool if pool is null
+	 */
+	public static void getTimeZoneOrdinals(double[] lats, double[] lons, int[] ordinals, ForkJoinPool pool) {
+		GeoSenseData data = getOrEtc();
+		if (data != null)
+			data.getTimeZoneOrdinals(lats, lons, ordinals, pool);
+		else
+			getEtcOrdinals(lons, ordinals);
+	}
+
+	private static void getEtcOrdinals(double[] lons, int[] ordinals) {
+		for (int i = 0; i < lons.length; i++)
+			ordinals[i] = getEtcOrdinal(lons[i]);
+	}
+
+	/**
+	 * The time zone for an ordinal from getTimeZoneOrdinals, against the
+	 * current data; only right if it has not been reloaded since, see
+	 * getTimeZoneOrdinals
+	 */
+	public static TimeZone getTimeZone(int ordinal) {
+		return ordinal >= 0 ? get().getTimeZone(ordinal) : getEtcTimeZone(ordinal);
+	}
+
+	/**
+	 * Ordinal of the Etc zone for a longitude: -1 - (offset + 12) for whole
+	 * hour offsets -12 .. +12
+	 */
+	static int getEtcOrdinal(double lon) {
+		return GeoSenseData.getEtcOrdinal(lon);
+	}
+
+	static TimeZone getEtcTimeZone(int ordinal) {
+		return GeoSenseData.getEtcTimeZone(ordinal);
+	}
+
+	/**
+	 * The lookup cache, with its hit and miss counts, if one was configured
+	 * (see TZWorldConfig.CACHE_SIZE_PROPERTY)
+	 * 
+	 * @return the cache, or null
+	 */
+	public static TZCache getCache() {
+		return get().getCache();
+	}
+
+	/**
+	 * The lookup raster, with the fraction of lookups it could not answer
+	 * alone, if one was configured (see
+	 * TZWorldConfig.RASTER_RESOLUTION_PROPERTY)
+	 * 
+	 * @return the raster, or null
+	 */
+	public static TZRaster getRaster() {
+		return get().getRaster();
+	}
+
+	static TZWorld getTZWorld() {
+		return get().getTZWorld();
+	}
+
 	public static TZWorld.TZExtent getTimeZoneExtent(double lat, double lon) {
-		return tzWorld.findTimeZoneExtent(lat, lon);
+		return get().getTimeZoneExtent(lat, lon);
 	}
 	
 	public static List<TimeZone> getTimeZones(String country) {
-		return zoneTab.getTimeZones(country);
+		return get().getTimeZones(country);
 	}
 	
 	public static TimeZone getATimeZone(String country) {
-		return zoneTab.getATimeZone(country);
+		return get().getATimeZone(country);
 	}
 	
 	public static List<TimeZone> getTimeZones(Locale locale) {
-		return zoneTab.getTimeZones(locale);
+		return get().getTimeZones(locale);
 	}
 	
 	public static TimeZone getATimeZone(Locale locale) {
-		return zoneTab.getATimeZone(locale);
+		return get().getATimeZone(locale);
 	}
 	
 	public static List<String> getCountries(TimeZone tz) {
-		return zoneTab.getCountries(tz);
+		return get().getCountries(tz);
 	}
 	
 	public static String getACountry(TimeZone tz) {
-		return zoneTab.getACountry(tz);
+		return get().getACountry(tz);
 	}
 	
 	public static List<TimeZone> getTimeZones(String country, String region) {
-		// region is used only where we have regional info for a country
-		if (regionalZones.containsKey(country)) {
-			List<TimeZone> tzs = regionalZones.get(country).getTimeZones(region);
-			if (tzs != null)
-				return tzs;
-		}
-
-		// fallback is by country
-		return getTimeZones(country);
+		return get().getTimeZones(country, region);
 	}
 	
 	public static TimeZone getATimeZone(String country, String region) {
-		// region is used only where we have regional info for a country
-		if (regionalZones.containsKey(country)) {
-			TimeZone tz = regionalZones.get(country).getATimeZone(region);
-			if (tz != null)
-				return tz;
-		}
-
-		// fallback is by country
-		return getATimeZone(country);
+		return get().getATimeZone(country, region);
 	}
 	
 	public static List<String> getRegions(TimeZone tz, String country) {
-		// call makes sense only where we have regional info for a country
-		if (regionalZones.containsKey(country)) {
-			return regionalZones.get(country).getRegions(tz);
-		}
-
-		// no fallback
-		return null;
+		return get().getRegions(tz, country);
 	}
 	
 	public static String getARegion(TimeZone tz, String country) {
-		// call makes sense only where we have regional info for a country
-		if (regionalZones.containsKey(country)) {
-			return regionalZones.get(country).getARegion(tz);
-		}
-
-		// no fallback
-		return null;
+		return get().getARegion(tz, country);
 	}
 
 	/**
-	 * Note everything initializes on class load. This method need not be
-	 * called, but is provided for convenience to force initialization, e.g. to
-	 * make performance on first actual use more predictable.
+	 * Wait for the data to load, e.g. to make performance on first actual use
+	 * more predictable. Loading starts on class load, so this need not be
+	 * called; see also initAsync().
 	 */
 	public static void init() {
+		try {
+			initAsync().join();
+		}
+		catch (CompletionException e) {
+			// logged by the holder, and reported by lookups
+		}
 	}
 }
@@ -0,0 +1,405 @@
+/**
+ * GeoSenseData.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+/**
+ * One immutable set of GeoSense data: the tz_world boundaries, zone.tab and
+ * the regional zones, with the lookups GeoSense offers as static methods.
+ * GeoSense itself serves whichever instance its GeoSenseHolder currently
+ * holds, loaded from the default sources on class load; an instance can just
+ * as well be built from any other shapefile, snapshot or zone.tab and used
+ * directly, or swapped into a holder while lookups carry on.
+ * 
+ * @author Frank D. Russo
+ */
+public final class GeoSenseData {
+	private static Logger log = Logger.getLogger(GeoSenseData.class.getName());
+
+	private static final String TZ_WORLD = "tz_world_mp";
+
+	private static final TimeZone[] etcZones = new TimeZone[25];
+
+	static {
+		// NOTE Etc naming convention is opposite the actual offset in hours
+		for (int offset = -12; offset <= 12; offset++)
+			etcZones[offset + 12] = TimeZone.getTimeZone("Etc/GMT" + (offset <= 0 ? "+" + (-offset) : "-" + offset));
+	}
+
+	private final TZWorld tzWorld;
+	private final ZoneTab zoneTab;
+	private final Map<String, RegionalTZ> regionalZones;
+	private final TZMetrics metrics;	// or null for the world's own
+
+	/**
+	 * @param regionalZones
+	 *            regional zones by country, see getTimeZones(country, region),
+	 *            or null
+	 */
+	public GeoSenseData(TZWorld tzWorld, ZoneTab zoneTab, Map<String, RegionalTZ> regionalZones) {
+		if (tzWorld == null || zoneTab == null)
+			throw new IllegalArgumentException("tzWorld and zoneTab are required");
+
+		this.tzWorld = tzWorld;
+		this.zoneTab = zoneTab;
+		this.regionalZones = regionalZones == null ? Collections.<String, RegionalTZ> emptyMap()
+				: Collections.unmodifiableMap(new HashMap<String, RegionalTZ>(regionalZones));
+		this.metrics = null;
+	}
+
+	private GeoSenseData(GeoSenseData data, TZMetrics metrics) {
+		this.tzWorld = data.tzWorld;
+		this.zoneTab = data.zoneTab;
+		this.regionalZones = data.regionalZones;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Pair a TZWorld with the bundled zone.tab and regional zones
+	 */
+	public GeoSenseData(TZWorld tzWorld) throws IOException {
+		this(tzWorld, new ZoneTab(resource("zone.tab")), bundledRegionalZones());
+	}
+
+	/**
+	 * Load the default data, as GeoSense does on class load: from the
+	 * snapshot named by GeoSense.SNAPSHOT_PROPERTY, else the snapshot
+	 * bundled next to the shapefile, else the bundled shapefile, configured
+	 * by TZWorldConfig.fromSystemProperties()
+	 */
+	public static GeoSenseData load() throws IOException {
+		TZWorldConfig config = TZWorldConfig.fromSystemProperties();
+
+		String snapshotFile = System.getProperty(GeoSense.SNAPSHOT_PROPERTY);
+		if (snapshotFile != null)
+			return load(new File(snapshotFile), config);
+
+		URL snapshot = GeoSenseData.class.getResource("tzworld/" + TZ_WORLD + TZWorldSnapshot.EXTENSION);
+		if (snapshot != null) {
+			try {
+				long start = System.nanoTime();
+				TZWorld world = TZWorldSnapshot.load(snapshot);
+				world.recordPhase("snapshot", start);
+				return new GeoSenseData(configure(world, config));
+			}
+			catch (IOException e) {
+				// e.g. left over from an older build; the shapefile still works
+				log.warning("Ignoring TZWorld snapshot " + snapshot + ": " + e);
+			}
+		}
+
+		return load(GeoSenseData.class.getResource("tzworld/"), TZ_WORLD, config);
+	}
+
+	/**
+	 * Load tz_world from a shapefile, with the bundled zone.tab and regional
+	 * zones
+	 */
+	public static GeoSenseData load(URL tzroot, String mapName, TZWorldConfig config) throws IOException {
+		return new GeoSenseData(new TZWorld(tzroot, mapName, config));
+	}
+
+	/**
+	 * Memory-map tz_world from a TZWorldSnapshot file, with the bundled
+	 * zone.tab and regional zones
+	 */
+	public static GeoSenseData load(File snapshot, TZWorldConfig config) throws IOException {
+		long start = System.nanoTime();
+		TZWorld world = TZWorldSnapshot.map(snapshot);
+		world.recordPhase("snapshot", start);
+		return new GeoSenseData(configure(world, config));
+	}
+
+	/**
+	 * Apply the lookup options of a config to a world read from a snapshot,
+	 * which is read without it
+	 */
+	private static TZWorld configure(TZWorld world, TZWorldConfig config) {
+		long start = System.nanoTime();
+		if (config.getEdgeIndexThreshold() > 0) {
+			world.indexEdges(config.getEdgeIndexThreshold());
+			start = world.recordPhase("edgeindex", start);
+		}
+		if (config.getSimplifyTolerance() > 0) {
+			world.simplify(config.getSimplifyTolerance());
+			start = world.recordPhase("simplify", start);
+		}
+		if (world.getRaster() == null && config.getRasterResolution() > 0) {
+			world.setRaster(TZRaster.build(world, config.getRasterResolution(), config.getRasterBudget()));
+			world.recordPhase("raster", start);
+		}
+		if (world.getCache() == null && config.getCacheSize() > 0)
+			world.setCache(new TZCache(config.getCacheSize(), config.getCacheQuantum()));
+		return world;
+	}
+
+	private static Map<String, RegionalTZ> bundledRegionalZones() throws IOException {
+		Map<String, RegionalTZ> regionalZones = new HashMap<String, RegionalTZ>();
+		regionalZones.put("US", new RegionalTZ(resource("tz_US.txt")));
+		return regionalZones;
+	}
+
+	private static InputStream resource(String name) throws IOException {
+		InputStream in = GeoSenseData.class.getResourceAsStream(name);
+		if (in == null)
+			throw new IOException("Missing resource " + name);
+		return in;
+	}
+
+	public TZWorld getTZWorld() {
+		return tzWorld;
+	}
+
+	/**
+	 * The same data, sharing everything with this instance, with its
+	 * coordinate lookups counted in the given metrics rather than the
+	 * world's own. The world itself is left as it is, so it can be shared.
+	 */
+	GeoSenseData withMetrics(TZMetrics metrics) {
+		return metrics == this.metrics ? this : new GeoSenseData(this, metrics);
+	}
+
+	/**
+	 * The metrics lookups count in, or null
+	 */
+	private TZMetrics metrics() {
+		return metrics != null ? metrics : tzWorld.getMetrics();
+	}
+
+	public ZoneTab getZoneTab() {
+		return zoneTab;
+	}
+
+	public TimeZone getTimeZone(double lat, double lon) {
+		int tzidx = tzWorld.findTimeZoneOrdinal(lat, lon, metrics());
+		if (tzidx >= 0)
+			return tzWorld.getTimeZone(tzidx);
+
+		// fall back to a normalized Etc time zone by longitude
+		return getTimeZone(getEtcOrdinal(lon));
+	}
+
+	/**
+	 * See GeoSense.getTimeZone(lat, lon, maxDistanceKm)
+	 */
+	public TimeZone getTimeZone(double lat, double lon, double maxDistanceKm) {
+		TZNearest nearest = tzWorld.findNearestTimeZone(lat, lon, maxDistanceKm, metrics());
+		if (nearest != null)
+			return nearest.getTimeZone();
+
+		return getTimeZone(getEtcOrdinal(lon));
+	}
+
+	/**
+	 * See GeoSense.getNearestTimeZone
+	 */
+	public TZNearest getNearestTimeZone(double lat, double lon, double maxDistanceKm) {
+		return tzWorld.findNearestTimeZone(lat, lon, maxDistanceKm, metrics());
+	}
+
+	/**
+	 * See GeoSense.getTimeZones(minLat, minLon, maxLat, maxLon)
+	 */
+	public List<TimeZone> getTimeZones(double minLat, double minLon, double maxLat, double maxLon) {
+		return tzWorld.findTimeZones(minLat, minLon, maxLat, maxLon);
+	}
+
+	/**
+	 * See GeoSense.getTimeZones(lats, lons)
+	 */
+	public List<TimeZone> getTimeZones(double[] lats, double[] lons) {
+		return tzWorld.findTimeZones(lats, lons);
+	}
+
+	/**
+	 * See GeoSense.newLookupContext. The context stays with this instance's
+	 * data.
+	 */
+	public TZLookupContext newLookupContext() {
+		return new TZLookupContext(tzWorld, metrics);
+	}
+
+	/**
+	 * See GeoSense.getTimeZone(lat, lon, context)
+	 */
+	public TimeZone getTimeZone(double lat, double lon, TZLookupContext context) {
+		TimeZone tz = context.findTimeZone(lat, lon);
+		if (tz != null)
+			return tz;
+
+		return getTimeZone(getEtcOrdinal(lon));
+	}
+
+	/**
+	 * See GeoSense.getTimeZoneSegments
+	 */
+	public List<TZTrajectory.Segment> getTimeZoneSegments(double[] lats, double[] lons, long[] times) {
+		int[] bounds = new int[lats.length + 1];
+		int[] ordinals = new int[lats.length];
+		int count = TZTrajectory.split(tzWorld, lats, lons, bounds, ordinals, metrics);
+
+		List<TZTrajectory.Segment> segments = new ArrayList<TZTrajectory.Segment>(count);
+		for (int s = 0; s < count; s++) {
+			if (ordinals[s] >= 0) {
+				segments.add(new TZTrajectory.Segment(bounds[s], bounds[s + 1], ordinals[s],
+						tzWorld.getTimeZone(ordinals[s]), times));
+				continue;
+			}
+
+			// split by Etc zone
+			int from = bounds[s];
+			for (int i = from + 1; i <= bounds[s + 1]; i++) {
+				int etc = getEtcOrdinal(lons[i - 1]);
+				if (i == bounds[s + 1] || getEtcOrdinal(lons[i]) != etc) {
+					segments.add(new TZTrajectory.Segment(from, i, etc, getEtcTimeZone(etc), times));
+					from = i;
+				}
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * See GeoSense.getTimeZoneOrdinals(lats, lons, ordinals)
+	 */
+	public void getTimeZoneOrdinals(double[] lats, double[] lons, int[] ordinals) {
+		TZWorld.checkLengths(lats, lons, ordinals);
+		tzWorld.findTimeZoneOrdinals(lats, lons, ordinals, 0, lats.length, metrics());
+		for (int i = 0; i < lats.length; i++)
+			if (ordinals[i] < 0)
+				ordinals[i] = getEtcOrdinal(lons[i]);
+	}
+
+	/**
+	 * See GeoSense.getTimeZoneOrdinals(lats, lons, ordinals, pool)
+	 */
+	public void getTimeZoneOrdinals(double[] lats, double[] lons, int[] ordinals, ForkJoinPool pool) {
+		tzWorld.findTimeZoneOrdinals(lats, lons, ordinals, pool, metrics());
+		for (int i = 0; i < lats.length; i++)
+			if (ordinals[i] < 0)
+				ordinals[i] = getEtcOrdinal(lons[i]);
+	}
+
+	/**
+	 * The time zone for an ordinal from getTimeZoneOrdinals. Ordinals of
+	 * tz_world zones are only good for the instance that produced them.
+	 */
+	public TimeZone getTimeZone(int ordinal) {
+		return ordinal >= 0 ? tzWorld.getTimeZone(ordinal) : getEtcTimeZone(ordinal);
+	}
+
+	/**
+	 * Ordinal of the Etc zone for a longitude: -1 - (offset + 12) for whole
+	 * hour offsets -12 .. +12
+	 */
+	static int getEtcOrdinal(double lon) {
+		int offset = (int) Math.round(lon / 15.0);
+		return -1 - (offset + 12);
+	}
+
+	static TimeZone getEtcTimeZone(int ordinal) {
+		return etcZones[-1 - ordinal];
+	}
+
+	public TZCache getCache() {
+		return tzWorld.getCache();
+	}
+
+	public TZRaster getRaster() {
+		return tzWorld.getRaster();
+	}
+
+	public TZWorld.TZExtent getTimeZoneExtent(double lat, double lon) {
+		int tzidx = tzWorld.findTimeZoneOrdinal(lat, lon, metrics());
+		return tzidx >= 0 ? tzWorld.getTimeZoneExtent(tzidx) : null;
+	}
+
+	public List<TimeZone> getTimeZones(String country) {
+		return zoneTab.getTimeZones(country);
+	}
+
+	public TimeZone getATimeZone(String country) {
+		return zoneTab.getATimeZone(country);
+	}
+
+	public List<TimeZone> getTimeZones(Locale locale) {
+		return zoneTab.getTimeZones(locale);
+	}
+
+	public TimeZone getATimeZone(Locale locale) {
+		return zoneTab.getATimeZone(locale);
+	}
+
+	public List<String> getCountries(TimeZone tz) {
+		return zoneTab.getCountries(tz);
+	}
+
+	public String getACountry(TimeZone tz) {
+		return zoneTab.getACountry(tz);
+	}
+
+	public List<TimeZone> getTimeZones(String country, String region) {
+		// region is used only where we have regional info for a country
+		RegionalTZ regional = regionalZones.get(country);
+		if (regional != null) {
+			List<TimeZone> tzs = regional.getTimeZones(region);
+			if (tzs != null)
+				return tzs;
+		}
+
+		// fallback is by country
+		return getTimeZones(country);
+	}
+
+	public TimeZone getATimeZone(String country, String region) {
+		// region is used only where we have regional info for a country
+		RegionalTZ regional = regionalZones.get(country);
+		if (regional != null) {
+			TimeZone tz = regional.getATimeZone(region);
+			if (tz != null)
+				return tz;
+		}
+
+		// fallback is by country
+		return getATimeZone(country);
+	}
+
+	public List<String> getRegions(TimeZone tz, String country) {
+		// call makes sense only where we have regional info for a country
+		RegionalTZ regional = regionalZones.get(country);
+		return regional != null ? regional.getRegions(tz) : null;
+	}
+
+	public String getARegion(TimeZone tz, String country) {
+		// call makes sense only where we have regional info for a country
+		RegionalTZ regional = regionalZones.get(country);
+		return regional != null ? regional.getARegion(tz) : null;
+	}
+}
@@ -0,0 +1,274 @@
+/**
+ * GeoSenseHolder.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import com.redlaser.geosense.GeoSense.NotReady;
+
+/**
+ * Holds the current GeoSenseData and swaps in new data while lookups go on.
+ * Readers take the current instance with get(), a single volatile read and
+ * no lock, and finish their lookup on it even if a reload replaces it
+ * meanwhile. Reloads build the new instance on a background thread, one at a
+ * time, and only then swap it in, so lookups never wait on loading. A reload
+ * that fails leaves the current instance in place. Each instance swapped in
+ * counts its lookups in the holder's TZMetrics, so they count on across
+ * reloads; the TZWorld underneath is left untouched, and can be shared.
+ * 
+ * Before the first instance has loaded, lookups through getWhenReady() and
+ * getOrEtc() wait for it, fail, or fall back to Etc zones as the holder's
+ * NotReady says.
+ * 
+ * @author Frank D. Russo
+ */
+public class GeoSenseHolder {
+	private static Logger log = Logger.getLogger(GeoSenseHolder.class.getName());
+
+	private final AtomicReference<GeoSenseData> current = new AtomicReference<GeoSenseData>();
+	private final Callable<GeoSenseData> loader;	// for initAsync() and reload()
+	private final TZMetrics metrics = new TZMetrics();	// carried over reloads
+	private volatile NotReady notReady = NotReady.BLOCK;
+	private volatile Throwable failure;
+	private volatile CompletableFuture<GeoSenseData> pending;	// latest reload
+
+	// at most one reload thread, gone again when idle
+	private final ThreadPoolExecutor reloader = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "geosense-reload");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * A holder that loads from the default sources, see GeoSenseData.load()
+	 */
+	public GeoSenseHolder() {
+		this(new Callable<GeoSenseData>() {
+			@Override
+			public GeoSenseData call() throws Exception {
+				return GeoSenseData.load();
+			}
+		});
+	}
+
+	/**
+	 * A holder that loads with the given loader, on initAsync() and
+	 * reload()
+	 */
+	public GeoSenseHolder(Callable<GeoSenseData> loader) {
+		if (loader == null)
+			throw new IllegalArgumentException("loader is required");
+		this.loader = loader;
+	}
+
+	public GeoSenseHolder(GeoSenseData data) {
+		this();
+		set(data);
+	}
+
+	/**
+	 * The current data
+	 * 
+	 * @throws IllegalStateException
+	 *             if none has loaded yet, with the last load failure as its
+	 *             cause
+	 */
+	public GeoSenseData get() {
+		GeoSenseData data = current.get();
+		if (data == null)
+			throw new IllegalStateException("GeoSense data not loaded", failure);
+		return data;
+	}
+
+	/**
+	 * The current data, waiting for a reload in progress if there is none
+	 * yet
+	 * 
+	 * @throws IllegalStateException
+	 *             if there is none and no reload brings any
+	 */
+	public GeoSenseData await() {
+		GeoSenseData data = current.get();
+		if (data != null)
+			return data;
+
+		CompletableFuture<GeoSenseData> future = pending;
+		if (future != null) {
+			try {
+				future.join();
+			}
+			catch (CompletionException e) {
+				// reported below, unless other data came in meanwhile
+			}
+		}
+		return get();
+	}
+
+	/**
+	 * The current data, or null
+	 */
+	GeoSenseData peek() {
+		return current.get();
+	}
+
+	public boolean isLoaded() {
+		return current.get() != null;
+	}
+
+	/**
+	 * The current data, waiting for it before it has loaded unless NotReady
+	 * is FAIL
+	 * 
+	 * @throws IllegalStateException
+	 *             if it failed to load, or is not loaded yet with NotReady
+	 *             FAIL
+	 */
+	public GeoSenseData getWhenReady() {
+		return notReady == NotReady.FAIL ? get() : await();
+	}
+
+	/**
+	 * As getWhenReady(), but null where the NotReady ETC fallback applies:
+	 * while nothing has loaded and no load has failed, or a retry is under
+	 * way. Once a load has failed, lookups report it rather than answer
+	 * with Etc zones indefinitely.
+	 * 
+	 * @throws IllegalStateException
+	 *             as getWhenReady()
+	 */
+	GeoSenseData getOrEtc() {
+		GeoSenseData data = current.get();
+		if (data != null)
+			return data;
+
+		if (notReady == NotReady.ETC) {
+			CompletableFuture<GeoSenseData> future = pending;
+			if (failure == null || (future != null && !future.isDone()))
+				return null;
+		}
+		return getWhenReady();
+	}
+
+	public NotReady getNotReady() {
+		return notReady;
+	}
+
+	/**
+	 * Set what lookups do before the data has loaded
+	 */
+	public void setNotReady(NotReady notReady) {
+		if (notReady == null)
+			throw new IllegalArgumentException("notReady is required");
+		this.notReady = notReady;
+	}
+
+	/**
+	 * Start loading the data in the background, if it is neither loaded nor
+	 * loading already. A call after a failed load tries again.
+	 * 
+	 * @return completes with the data once loaded, or exceptionally if the
+	 *         load failed
+	 */
+	public synchronized CompletableFuture<GeoSenseData> initAsync() {
+		GeoSenseData data = current.get();
+		if (data != null)
+			return CompletableFuture.completedFuture(data);
+
+		CompletableFuture<GeoSenseData> future = pending;
+		if (future == null || future.isDone())
+			future = reload();
+		return future;
+	}
+
+	/**
+	 * Swap in new data. What get() returns from then on shares everything
+	 * with it, but counts its lookups in this holder's metrics.
+	 * 
+	 * @return the data replaced, as get() returned it, or null
+	 */
+	public GeoSenseData set(GeoSenseData data) {
+		if (data == null)
+			throw new IllegalArgumentException("data is required");
+		return current.getAndSet(data.withMetrics(metrics));
+	}
+
+	/**
+	 * The metrics of lookups on whatever data this holds, disabled until
+	 * enabled
+	 */
+	public TZMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Build new data on the reload thread and swap it in once it is complete
+	 * 
+	 * @return completes with the new data, or exceptionally if the loader
+	 *         failed
+	 */
+	public CompletableFuture<GeoSenseData> reload(final Callable<GeoSenseData> loader) {
+		final CompletableFuture<GeoSenseData> future = new CompletableFuture<GeoSenseData>();
+		pending = future;
+		reloader.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					GeoSenseData data = loader.call().withMetrics(metrics);
+					set(data);
+					future.complete(data);
+				}
+				catch (Throwable t) {
+					setFailure(t);
+					future.completeExceptionally(t);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Reload with this holder's loader, by default from the default sources
+	 * (see GeoSenseData.load())
+	 */
+	public CompletableFuture<GeoSenseData> reload() {
+		return reload(loader);
+	}
+
+	/**
+	 * The last load or reload failure, or null
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	void setFailure(Throwable t) {
+		log.severe("GeoSense data failed to load: " + t);
+		failure = t;
+	}
+}
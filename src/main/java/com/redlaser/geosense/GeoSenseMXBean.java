@@ -0,0 +1,65 @@
+/**
+ * GeoSenseMXBean.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.Map;
+
+/**
+ * JMX view of GeoSense, registered by GeoSense.registerMBean() as
+ * GeoSense.OBJECT_NAME. The lookup attributes are those of TZMetrics.Snapshot,
+ * with latencies in microseconds, and stay at zero while metrics are
+ * disabled; MetricsEnabled switches them at runtime.
+ * 
+ * @author Frank D. Russo
+ */
+public interface GeoSenseMXBean {
+	boolean isReady();
+
+	boolean isMetricsEnabled();
+
+	void setMetricsEnabled(boolean enabled);
+
+	void resetMetrics();
+
+	long getLookups();
+
+	long getFallbacks();
+
+	double getFallbackRate();
+
+	long getExactLookups();
+
+	double getCandidatesPerLookup();
+
+	double getRingTestsPerLookup();
+
+	double getVerticesPerLookup();
+
+	double getLatencyP50Micros();
+
+	double getLatencyP99Micros();
+
+	double getLatencyP999Micros();
+
+	double getExactLatencyP50Micros();
+
+	double getExactLatencyP99Micros();
+
+	long getGeometryBytes();
+
+	Map<String, Double> getLoadTimings();
+}
@@ -0,0 +1,137 @@
+/**
+ * GeoSenseMetrics.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The GeoSenseMXBean of a holder, reading a fresh snapshot of its metrics for
+ * each attribute
+ * 
+ * @author Frank D. Russo
+ */
+final class GeoSenseMetrics implements GeoSenseMXBean {
+	private final GeoSenseHolder holder;
+
+	GeoSenseMetrics(GeoSenseHolder holder) {
+		this.holder = holder;
+	}
+
+	/**
+	 * The counts, without the world's size and timings
+	 */
+	private TZMetrics.Snapshot snapshot() {
+		return holder.getMetrics().snapshot(null);
+	}
+
+	private static double micros(long nanos) {
+		return nanos / 1e3;
+	}
+
+	@Override
+	public boolean isReady() {
+		return holder.isLoaded();
+	}
+
+	@Override
+	public boolean isMetricsEnabled() {
+		return holder.getMetrics().isEnabled();
+	}
+
+	@Override
+	public void setMetricsEnabled(boolean enabled) {
+		holder.getMetrics().setEnabled(enabled);
+	}
+
+	@Override
+	public void resetMetrics() {
+		holder.getMetrics().reset();
+	}
+
+	@Override
+	public long getLookups() {
+		return snapshot().getLookups();
+	}
+
+	@Override
+	public long getFallbacks() {
+		return snapshot().getFallbacks();
+	}
+
+	@Override
+	public double getFallbackRate() {
+		return snapshot().getFallbackRate();
+	}
+
+	@Override
+	public long getExactLookups() {
+		return snapshot().getExactLookups();
+	}
+
+	@Override
+	public double getCandidatesPerLookup() {
+		return snapshot().getCandidatesPerLookup();
+	}
+
+	@Override
+	public double getRingTestsPerLookup() {
+		return snapshot().getRingTestsPerLookup();
+	}
+
+	@Override
+	public double getVerticesPerLookup() {
+		return snapshot().getVerticesPerLookup();
+	}
+
+	@Override
+	public double getLatencyP50Micros() {
+		return micros(snapshot().getLatencyNanos(50.0));
+	}
+
+	@Override
+	public double getLatencyP99Micros() {
+		return micros(snapshot().getLatencyNanos(99.0));
+	}
+
+	@Override
+	public double getLatencyP999Micros() {
+		return micros(snapshot().getLatencyNanos(99.9));
+	}
+
+	@Override
+	public double getExactLatencyP50Micros() {
+		return micros(snapshot().getExactLatencyNanos(50.0));
+	}
+
+	@Override
+	public double getExactLatencyP99Micros() {
+		return micros(snapshot().getExactLatencyNanos(99.0));
+	}
+
+	@Override
+	public long getGeometryBytes() {
+		GeoSenseData data = holder.peek();
+		return data != null ? data.getTZWorld().getGeometryBytes() : 0;
+	}
+
+	@Override
+	public Map<String, Double> getLoadTimings() {
+		GeoSenseData data = holder.peek();
+		return data != null ? data.getTZWorld().getLoadTimings() : Collections.<String, Double> emptyMap();
+	}
+}
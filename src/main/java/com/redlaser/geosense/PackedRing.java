@@ -0,0 +1,285 @@
+/**
+ * PackedRing.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+/**
+ * Ring with its vertices delta-encoded and bit-packed, and decoded on the fly.
+ * Neighbouring vertices are close, so the zig-zag encoded change in x and y
+ * from one vertex to the next (see TZGeometry.zigzag) needs far fewer than
+ * 32 bits.
+ * 
+ * The vertices are cut into chunks of CHUNK edges. Each chunk records the
+ * vertex it starts from, the bounds of its edges, and the bit width of its
+ * x and y deltas, which are then packed at that fixed width. A chunk can so
+ * be decoded on its own, and a containment test skips every chunk whose
+ * bounds cannot cross the ray from the point, decoding the rest in a single
+ * pass with no allocation. The chunk bounds stand in for an edge index,
+ * which would cost more memory than the packing saves.
+ * 
+ * @author Frank D. Russo
+ */
+class PackedRing extends Ring {
+	static final int CHUNK = 32;	// edges per chunk
+
+	// per chunk: bit offset, start x, start y, minX, minY, maxX, maxY,
+	// x width | y width << 8
+	private static final int HEADER = 8;
+
+	private final int n;
+	private final long[] bits;
+	private final int[] chunks;
+
+	PackedRing(Ring ring) {
+		n = ring.size();
+		minX = ring.getMinX();
+		minY = ring.getMinY();
+		maxX = ring.getMaxX();
+		maxY = ring.getMaxY();
+
+		int chunkCount = (n + CHUNK - 1) / CHUNK;
+		chunks = new int[HEADER * chunkCount];
+		int[] dx = new int[CHUNK];
+		int[] dy = new int[CHUNK];
+		long[] words = new long[1 + n / 4];
+		long pos = 0;
+		int lastx = n > 0 ? ring.getX(n - 1) : 0;
+		int lasty = n > 0 ? ring.getY(n - 1) : 0;
+		for (int c = 0; c < chunkCount; c++) {
+			int h = HEADER * c;
+			if (pos > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("ring too large to pack");
+			chunks[h] = (int) pos;
+			chunks[h + 1] = chunks[h + 3] = chunks[h + 5] = lastx;
+			chunks[h + 2] = chunks[h + 4] = chunks[h + 6] = lasty;
+
+			int first = c * CHUNK;
+			int count = Math.min(n - first, CHUNK);
+			int xs = 0;
+			int ys = 0;
+			for (int k = 0; k < count; k++) {
+				int x = ring.getX(first + k);
+				int y = ring.getY(first + k);
+				dx[k] = TZGeometry.zigzag(x - lastx);
+				dy[k] = TZGeometry.zigzag(y - lasty);
+				xs |= dx[k];
+				ys |= dy[k];
+				chunks[h + 3] = Math.min(chunks[h + 3], x);
+				chunks[h + 4] = Math.min(chunks[h + 4], y);
+				chunks[h + 5] = Math.max(chunks[h + 5], x);
+				chunks[h + 6] = Math.max(chunks[h + 6], y);
+				lastx = x;
+				lasty = y;
+			}
+
+			int wx = 32 - Integer.numberOfLeadingZeros(xs);
+			int wy = 32 - Integer.numberOfLeadingZeros(ys);
+			chunks[h + 7] = wx | (wy << 8);
+
+			// one word to spare, so reads never run off the end
+			long need = ((pos + (long) count * (wx + wy)) >>> 6) + 2;
+			if (need > words.length) {
+				long[] grown = new long[(int) Math.max(need, 2L * words.length)];
+				System.arraycopy(words, 0, grown, 0, words.length);
+				words = grown;
+			}
+			for (int k = 0; k < count; k++) {
+				pos = write(words, pos, dx[k], wx);
+				pos = write(words, pos, dy[k], wy);
+			}
+		}
+
+		bits = new long[(int) (pos >>> 6) + 2];
+		System.arraycopy(words, 0, bits, 0, bits.length);
+	}
+
+	private static long write(long[] words, long pos, int value, int width) {
+		if (width == 0)
+			return pos;
+
+		long v = value & 0xFFFFFFFFL;
+		int word = (int) (pos >>> 6);
+		int shift = (int) pos & 63;
+		words[word] |= v << shift;
+		if (shift + width > 64)
+			words[word + 1] |= v >>> (64 - shift);
+		return pos + width;
+	}
+
+	/**
+	 * Read width bits at a bit position
+	 */
+	private int read(int pos, int width) {
+		int word = pos >>> 6;
+		int shift = pos & 63;
+		long v = bits[word] >>> shift;
+		if (shift + width > 64)
+			v |= bits[word + 1] << (64 - shift);
+		return (int) (v & ((1L << width) - 1));
+	}
+
+	@Override
+	int size() {
+		return n;
+	}
+
+	@Override
+	int getX(int i) {
+		return decode(i, true);
+	}
+
+	@Override
+	int getY(int i) {
+		return decode(i, false);
+	}
+
+	/**
+	 * Decode one coordinate by running through its chunk
+	 */
+	private int decode(int i, boolean wantX) {
+		int h = HEADER * (i / CHUNK);
+		int pos = chunks[h];
+		int x = chunks[h + 1];
+		int y = chunks[h + 2];
+		int wx = chunks[h + 7] & 0xFF;
+		int wy = chunks[h + 7] >>> 8;
+		for (int k = i - i % CHUNK; k <= i; k++) {
+			x += TZGeometry.unzigzag(read(pos, wx));
+			pos += wx;
+			y += TZGeometry.unzigzag(read(pos, wy));
+			pos += wy;
+		}
+		return wantX ? x : y;
+	}
+
+	@Override
+	Cursor cursor() {
+		return new PackedCursor();
+	}
+
+	/**
+	 * Decodes on from the current vertex while it stays in the same chunk,
+	 * so a walk over the ring decodes each vertex once
+	 */
+	private final class PackedCursor extends Cursor {
+		private int pos;	// bit position of the next vertex
+		private int wx;
+		private int wy;
+
+		PackedCursor() {
+			super(PackedRing.this);
+		}
+
+		@Override
+		void moveTo(int j) {
+			if (i < 0 || j < i || j / CHUNK != i / CHUNK) {
+				int h = HEADER * (j / CHUNK);
+				pos = chunks[h];
+				x = chunks[h + 1];
+				y = chunks[h + 2];
+				wx = chunks[h + 7] & 0xFF;
+				wy = chunks[h + 7] >>> 8;
+				i = j - j % CHUNK - 1;
+			}
+			while (i < j) {
+				x += TZGeometry.unzigzag(read(pos, wx));
+				pos += wx;
+				y += TZGeometry.unzigzag(read(pos, wy));
+				pos += wy;
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * No edge index, see the class comment
+	 */
+	@Override
+	void indexEdges() {
+	}
+
+	@Override
+	boolean contains(int x, int y) {
+		if (n <= 2 || !boundsContain(x, y))
+			return false;
+
+		int[] chunks = this.chunks;
+		boolean inside = false;
+		for (int h = 0, first = 0; h < chunks.length; h += HEADER, first += CHUNK) {
+			// crosses() needs min <= y < max and x < max of an edge
+			if (y < chunks[h + 4] || y >= chunks[h + 6] || x >= chunks[h + 5])
+				continue;
+
+			int pos = chunks[h];
+			int lastx = chunks[h + 1];
+			int lasty = chunks[h + 2];
+			int wx = chunks[h + 7] & 0xFF;
+			int wy = chunks[h + 7] >>> 8;
+			for (int k = first, end = Math.min(n, first + CHUNK); k < end; k++) {
+				int curx = lastx + TZGeometry.unzigzag(read(pos, wx));
+				pos += wx;
+				int cury = lasty + TZGeometry.unzigzag(read(pos, wy));
+				pos += wy;
+				if (crosses(x, y, lastx, lasty, curx, cury))
+					inside = !inside;
+				lastx = curx;
+				lasty = cury;
+			}
+		}
+		return inside;
+	}
+
+	@Override
+	boolean edgeTouches(int rminX, int rminY, int rmaxX, int rmaxY) {
+		if (rmaxX < minX || rmaxY < minY || rminX > maxX || rminY > maxY)
+			return false;
+
+		int[] chunks = this.chunks;
+		for (int h = 0, first = 0; h < chunks.length; h += HEADER, first += CHUNK) {
+			if (rmaxX < chunks[h + 3] || rmaxY < chunks[h + 4] || rminX > chunks[h + 5] || rminY > chunks[h + 6])
+				continue;
+
+			int pos = chunks[h];
+			int lastx = chunks[h + 1];
+			int lasty = chunks[h + 2];
+			int wx = chunks[h + 7] & 0xFF;
+			int wy = chunks[h + 7] >>> 8;
+			for (int k = first, end = Math.min(n, first + CHUNK); k < end; k++) {
+				int curx = lastx + TZGeometry.unzigzag(read(pos, wx));
+				pos += wx;
+				int cury = lasty + TZGeometry.unzigzag(read(pos, wy));
+				pos += wy;
+				if (segmentTouches(lastx, lasty, curx, cury, rminX, rminY, rmaxX, rmaxY))
+					return true;
+				lastx = curx;
+				lasty = cury;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Approximate heap size in bytes
+	 */
+	long getPackedSize() {
+		return 8L * bits.length + 4L * chunks.length;
+	}
+
+	@Override
+	long getByteSize() {
+		return getPackedSize();
+	}
+}
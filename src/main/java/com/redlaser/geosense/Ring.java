@@ -0,0 +1,289 @@
+/**
+ * Ring.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+/**
+ * A single closed ring of a timezone polygon, in integerized coordinates (x =
+ * longitude, y = latitude). Subclasses decide where the vertices live; the
+ * containment test applies the same even-odd crossing rules as
+ * java.awt.Polygon, so lookups give the same answer regardless of storage.
+ * 
+ * @author Frank D. Russo
+ */
+abstract class Ring {
+	protected int minX;
+	protected int minY;
+	protected int maxX;
+	protected int maxY;
+	protected EdgeBands bands;	// for large rings, or null
+
+	/**
+	 * Number of vertices in the ring
+	 */
+	abstract int size();
+
+	abstract int getX(int i);
+
+	abstract int getY(int i);
+
+	int getMinX() {
+		return minX;
+	}
+
+	int getMinY() {
+		return minY;
+	}
+
+	int getMaxX() {
+		return maxX;
+	}
+
+	int getMaxY() {
+		return maxY;
+	}
+
+	/**
+	 * A cursor over the vertices, positioned at none of them yet
+	 */
+	Cursor cursor() {
+		return new Cursor(this);
+	}
+
+	/**
+	 * The vertices as x,y pairs, in a new array
+	 */
+	int[] toArray() {
+		int n = size();
+		int[] coords = new int[2 * n];
+		Cursor cursor = cursor();
+		for (int i = 0; i < n; i++) {
+			cursor.next();
+			coords[2 * i] = cursor.x;
+			coords[2 * i + 1] = cursor.y;
+		}
+		return coords;
+	}
+
+	/**
+	 * Bounds test, half-open on the max side like java.awt.Rectangle. Note min
+	 * and max are compared directly rather than via a width, which would
+	 * overflow an int for rings spanning more than ~214 degrees of longitude.
+	 */
+	boolean boundsContain(int x, int y) {
+		return x >= minX && y >= minY && x < maxX && y < maxY;
+	}
+
+	/**
+	 * Build an index of the edges by latitude band, so containment tests
+	 * only look at edges near the point
+	 */
+	void indexEdges() {
+		if (bands == null && size() > 2)
+			bands = EdgeBands.build(this);
+	}
+
+	boolean isEdgeIndexed() {
+		return bands != null;
+	}
+
+	/**
+	 * Number of edges contains(x, y) looks at, or at most looks at
+	 */
+	int edgesScanned(int x, int y) {
+		if (!boundsContain(x, y))
+			return 0;
+		return bands != null ? bands.edgeCount(y) : size();
+	}
+
+	/**
+	 * Approximate size of the vertices and edge index in bytes, on the heap
+	 * or off it
+	 */
+	long getByteSize() {
+		return 8L * size() + (bands != null ? bands.getSize() : 0);
+	}
+
+	/**
+	 * Determine if an integerized point is inside the ring. Subclasses
+	 * override this with a loop specialized to their storage.
+	 */
+	boolean contains(int x, int y) {
+		int n = size();
+		if (n <= 2 || !boundsContain(x, y))
+			return false;
+		if (bands != null)
+			return bands.contains(this, x, y);
+
+		boolean inside = false;
+		int lastx = getX(n - 1);
+		int lasty = getY(n - 1);
+		for (int i = 0; i < n; i++) {
+			int curx = getX(i);
+			int cury = getY(i);
+			if (crosses(x, y, lastx, lasty, curx, cury))
+				inside = !inside;
+			lastx = curx;
+			lasty = cury;
+		}
+		return inside;
+	}
+
+	/**
+	 * Determine if any edge of the ring touches a closed rectangle. If none
+	 * does, every point of the rectangle is on the same side of the ring, so
+	 * testing one of them answers for all.
+	 */
+	boolean edgeTouches(int rminX, int rminY, int rmaxX, int rmaxY) {
+		int n = size();
+		if (rmaxX < minX || rmaxY < minY || rminX > maxX || rminY > maxY)
+			return false;
+
+		int lastx = getX(n - 1);
+		int lasty = getY(n - 1);
+		for (int i = 0; i < n; i++) {
+			int curx = getX(i);
+			int cury = getY(i);
+			if (segmentTouches(lastx, lasty, curx, cury, rminX, rminY, rmaxX, rmaxY))
+				return true;
+			lastx = curx;
+			lasty = cury;
+		}
+		return false;
+	}
+
+	/**
+	 * Separating axis test of a segment against a closed rectangle: they
+	 * touch unless their bounds are apart, or all four corners lie strictly
+	 * on one side of the segment's line
+	 */
+	static boolean segmentTouches(int x0, int y0, int x1, int y1, int rminX, int rminY, int rmaxX, int rmaxY) {
+		if (Math.max(x0, x1) < rminX || Math.min(x0, x1) > rmaxX || Math.max(y0, y1) < rminY
+				|| Math.min(y0, y1) > rmaxY)
+			return false;
+
+		// signs of the cross products, compared rather than subtracted so
+		// they are exact even for edges spanning the globe
+		long dx = (long) x1 - x0;
+		long dy = (long) y1 - y0;
+		int c1 = side(dx, dy, (long) rminX - x0, (long) rminY - y0);
+		int c2 = side(dx, dy, (long) rmaxX - x0, (long) rminY - y0);
+		int c3 = side(dx, dy, (long) rminX - x0, (long) rmaxY - y0);
+		int c4 = side(dx, dy, (long) rmaxX - x0, (long) rmaxY - y0);
+		return !((c1 > 0 && c2 > 0 && c3 > 0 && c4 > 0) || (c1 < 0 && c2 < 0 && c3 < 0 && c4 < 0));
+	}
+
+	private static int side(long dx, long dy, long px, long py) {
+		return Long.compare(dx * py, dy * px);
+	}
+
+	/**
+	 * Compute bounds from the vertices
+	 */
+	protected void computeBounds() {
+		int n = size();
+		minX = minY = Integer.MAX_VALUE;
+		maxX = maxY = Integer.MIN_VALUE;
+		for (int i = 0; i < n; i++) {
+			int x = getX(i);
+			int y = getY(i);
+			if (x < minX)
+				minX = x;
+			if (x > maxX)
+				maxX = x;
+			if (y < minY)
+				minY = y;
+			if (y > maxY)
+				maxY = y;
+		}
+	}
+
+	/**
+	 * Reads the vertices of a ring in order. Walks over the edges go through
+	 * one rather than getX and getY, which a PackedRing can only answer by
+	 * decoding from the start of a chunk; a cursor keeps its place instead.
+	 */
+	static class Cursor {
+		protected final Ring ring;
+		protected int i = -1;	// the current vertex
+		int x;
+		int y;
+
+		Cursor(Ring ring) {
+			this.ring = ring;
+		}
+
+		/**
+		 * Move to the next vertex, wrapping around from the last to the first
+		 */
+		void next() {
+			moveTo(i + 1 < ring.size() ? i + 1 : 0);
+		}
+
+		/**
+		 * Move to a vertex. Moving forwards is cheapest.
+		 */
+		void moveTo(int i) {
+			this.i = i;
+			x = ring.getX(i);
+			y = ring.getY(i);
+		}
+	}
+
+	/**
+	 * Does a ray cast from (x,y) towards +x cross the edge from (lastx,lasty)
+	 * to (curx,cury)? Only edges with some part strictly to the right of x
+	 * count. This is the edge test from java.awt.Polygon.contains,
+	 * kept in one place so every ring storage shares the exact same
+	 * boundary semantics.
+	 */
+	static boolean crosses(int x, int y, int lastx, int lasty, int curx, int cury) {
+		if (cury == lasty)
+			return false;
+
+		int leftx;
+		if (curx < lastx) {
+			if (x >= lastx)
+				return false;
+			leftx = curx;
+		}
+		else {
+			if (x >= curx)
+				return false;
+			leftx = lastx;
+		}
+
+		double test1, test2;
+		if (cury < lasty) {
+			if (y < cury || y >= lasty)
+				return false;
+			if (x < leftx)
+				return true;
+			test1 = (double) x - curx;
+			test2 = (double) y - cury;
+		}
+		else {
+			if (y < lasty || y >= cury)
+				return false;
+			if (x < leftx)
+				return true;
+			test1 = (double) x - lastx;
+			test2 = (double) y - lasty;
+		}
+
+		return test1 < (test2 / ((double) lasty - cury) * ((double) lastx - curx));
+	}
+}
@@ -0,0 +1,310 @@
+/**
+ * SimplifiedGeometry.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+/**
+ * Douglas-Peucker simplification of the rings of a TZGeometry, with a
+ * tolerance, that can answer most containment tests on its own and knows
+ * when it cannot.
+ * 
+ * Every vertex dropped from a ring lies within the tolerance of the
+ * simplified edge that replaces it, and since distance to a segment is
+ * convex, so does the whole stretch of the exact ring it stood for. The
+ * region between that stretch and the simplified edge is then within the
+ * tolerance of the edge too, and that region is the only place where the
+ * exact and simplified rings can disagree about a point. So a point further
+ * than the tolerance from every simplified edge gets the same answer from
+ * both, and only points near a simplified edge need the exact rings.
+ * Tolerances are in integerized units, the same in x and y.
+ * 
+ * @author Frank D. Russo
+ */
+final class SimplifiedGeometry {
+	static final int OUT = 0;
+	static final int IN = 1;
+	static final int NEAR = 2;	// too close to call
+
+	// headroom for the rounding in Ring.crosses
+	private static final int MARGIN = 2;
+
+	private final int[][] shells;
+	private final int[][] holes;
+	private final int[] holeStart;
+	private final int[][] shellBoxes;	// minX, minY, maxX, maxY of each ring
+	private final int[][] holeBoxes;
+	private final EdgeBands[] shellBands;	// for large rings, or null
+	private final EdgeBands[] holeBands;
+	private final int tolerance;
+	private final double toleranceSq;
+
+	private SimplifiedGeometry(int[][] shells, int[][] holes, int[] holeStart, int tolerance, int threshold) {
+		this.shells = shells;
+		this.holes = holes;
+		this.holeStart = holeStart;
+		this.tolerance = tolerance + MARGIN;
+		this.toleranceSq = (double) this.tolerance * this.tolerance;
+
+		shellBoxes = new int[shells.length][];
+		shellBands = new EdgeBands[shells.length];
+		for (int s = 0; s < shells.length; s++) {
+			shellBoxes[s] = box(shells[s]);
+			shellBands[s] = bands(shells[s], this.tolerance, threshold);
+		}
+		holeBoxes = new int[holes.length][];
+		holeBands = new EdgeBands[holes.length];
+		for (int h = 0; h < holes.length; h++) {
+			holeBoxes[h] = box(holes[h]);
+			holeBands[h] = bands(holes[h], this.tolerance, threshold);
+		}
+	}
+
+	private static int[] box(int[] coords) {
+		int[] box = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+		for (int i = 0; i < coords.length; i += 2) {
+			box[0] = Math.min(box[0], coords[i]);
+			box[1] = Math.min(box[1], coords[i + 1]);
+			box[2] = Math.max(box[2], coords[i]);
+			box[3] = Math.max(box[3], coords[i + 1]);
+		}
+		return box;
+	}
+
+	/**
+	 * Edges of a ring with at least threshold vertices, by the latitude
+	 * bands within the tolerance of them, so a point is only checked against
+	 * the edges that can be near it or cross its ray
+	 */
+	private static EdgeBands bands(int[] coords, int tolerance, int threshold) {
+		if (threshold <= 0 || coords.length / 2 < Math.max(threshold, 3))
+			return null;
+		return EdgeBands.build(new ArrayRing(coords), tolerance);
+	}
+
+	/**
+	 * @param threshold
+	 *            vertex count of the simplified rings to index the edges of,
+	 *            or 0 for none
+	 */
+	static SimplifiedGeometry simplify(TZGeometry exact, int tolerance, int threshold) {
+		int[][] shells = new int[exact.shells.length][];
+		for (int s = 0; s < shells.length; s++)
+			shells[s] = simplify(exact.shells[s], tolerance);
+		int[][] holes = new int[exact.holes.length][];
+		for (int h = 0; h < holes.length; h++)
+			holes[h] = simplify(exact.holes[h], tolerance);
+		return new SimplifiedGeometry(shells, holes, exact.holeStart, tolerance, threshold);
+	}
+
+	/**
+	 * Douglas-Peucker on a ring, split in two at the vertex furthest from
+	 * the first so that the closing vertex is kept
+	 * 
+	 * @return the kept vertices as x,y pairs, including the first and last
+	 */
+	static int[] simplify(Ring ring, int tolerance) {
+		// Douglas-Peucker jumps about the ring, so decode it in one pass first
+		int[] xy = ring.toArray();
+		int n = xy.length / 2;
+		if (n <= 3)
+			return xy;
+
+		boolean[] keep = new boolean[n];
+		keep[0] = keep[n - 1] = true;
+		int far = 0;
+		double farDist = -1;
+		for (int i = 1; i < n - 1; i++) {
+			double dx = (double) xy[2 * i] - xy[0];
+			double dy = (double) xy[2 * i + 1] - xy[1];
+			if (dx * dx + dy * dy > farDist) {
+				far = i;
+				farDist = dx * dx + dy * dy;
+			}
+		}
+		keep[far] = true;
+
+		// explicit stack of spans, as coastlines would recurse too deep
+		double toleranceSq = (double) tolerance * tolerance;
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = far;
+		stack[top++] = far;
+		stack[top++] = n - 1;
+		int kept = far > 0 ? 3 : 2;
+		while (top > 0) {
+			int b = stack[--top];
+			int a = stack[--top];
+			int worst = -1;
+			double worstSq = toleranceSq;
+			for (int i = a + 1; i < b; i++) {
+				double d = distanceSq(xy[2 * i], xy[2 * i + 1], xy[2 * a], xy[2 * a + 1], xy[2 * b], xy[2 * b + 1]);
+				if (d > worstSq) {
+					worst = i;
+					worstSq = d;
+				}
+			}
+
+			if (worst >= 0) {
+				keep[worst] = true;
+				kept++;
+				if (top + 4 > stack.length) {
+					int[] grown = new int[2 * stack.length];
+					System.arraycopy(stack, 0, grown, 0, top);
+					stack = grown;
+				}
+				stack[top++] = a;
+				stack[top++] = worst;
+				stack[top++] = worst;
+				stack[top++] = b;
+			}
+		}
+
+		int[] coords = new int[2 * kept];
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			if (keep[i]) {
+				coords[k++] = xy[2 * i];
+				coords[k++] = xy[2 * i + 1];
+			}
+		}
+		return coords;
+	}
+
+	/**
+	 * Squared distance from a point to a segment
+	 */
+	static double distanceSq(double px, double py, double x0, double y0, double x1, double y1) {
+		double dx = x1 - x0;
+		double dy = y1 - y0;
+		double len = dx * dx + dy * dy;
+		double t = len > 0 ? ((px - x0) * dx + (py - y0) * dy) / len : 0;
+		if (t < 0)
+			t = 0;
+		else if (t > 1)
+			t = 1;
+		double ex = x0 + t * dx - px;
+		double ey = y0 + t * dy - py;
+		return ex * ex + ey * ey;
+	}
+
+	/**
+	 * Classify an integerized point as in or out of the geometry, as
+	 * TZGeometry.contains would, or NEAR if the exact rings must decide
+	 */
+	int classify(int x, int y) {
+		boolean near = false;
+		for (int s = 0; s < shells.length; s++) {
+			int shell = classify(shells[s], shellBoxes[s], shellBands[s], x, y);
+			if (shell == NEAR)
+				near = true;
+			else if (shell == IN) {
+				int hole = inHole(s, x, y);
+				if (hole == OUT)
+					return IN;
+				if (hole == NEAR)
+					near = true;
+			}
+		}
+		return near ? NEAR : OUT;
+	}
+
+	private int inHole(int shell, int x, int y) {
+		boolean near = false;
+		for (int h = holeStart[shell]; h < holeStart[shell + 1]; h++) {
+			int hole = classify(holes[h], holeBoxes[h], holeBands[h], x, y);
+			if (hole == IN)
+				return IN;
+			near |= hole == NEAR;
+		}
+		for (int h = holeStart[shells.length]; h < holes.length; h++) {
+			int hole = classify(holes[h], holeBoxes[h], holeBands[h], x, y);
+			if (hole == IN)
+				return IN;
+			near |= hole == NEAR;
+		}
+		return near ? NEAR : OUT;
+	}
+
+	private int classify(int[] coords, int[] box, EdgeBands bands, int x, int y) {
+		// the exact ring lies within the tolerance of this one, so a point
+		// this far off is outside both
+		int end = coords.length;
+		if (end == 0 || x < box[0] - tolerance || y < box[1] - tolerance || x > box[2] + tolerance
+				|| y > box[3] + tolerance)
+			return OUT;
+
+		boolean inside = false;
+		if (bands != null) {
+			for (int k = bands.start(y), last = bands.end(y); k < last; k++) {
+				int i = 2 * bands.edge(k);
+				int j = i > 0 ? i - 2 : end - 2;
+				if (near(x, y, coords[j], coords[j + 1], coords[i], coords[i + 1]))
+					return NEAR;
+				if (Ring.crosses(x, y, coords[j], coords[j + 1], coords[i], coords[i + 1]))
+					inside = !inside;
+			}
+			return inside ? IN : OUT;
+		}
+
+		int lastx = coords[end - 2];
+		int lasty = coords[end - 1];
+		for (int i = 0; i < end; i += 2) {
+			int curx = coords[i];
+			int cury = coords[i + 1];
+			if (near(x, y, lastx, lasty, curx, cury))
+				return NEAR;
+			if (Ring.crosses(x, y, lastx, lasty, curx, cury))
+				inside = !inside;
+			lastx = curx;
+			lasty = cury;
+		}
+		return inside ? IN : OUT;
+	}
+
+	private boolean near(int x, int y, int x0, int y0, int x1, int y1) {
+		// only edges whose box, grown by the tolerance, holds the point can
+		// be near it
+		return x >= Math.min(x0, x1) - tolerance && x <= Math.max(x0, x1) + tolerance
+				&& y >= Math.min(y0, y1) - tolerance && y <= Math.max(y0, y1) + tolerance
+				&& distanceSq(x, y, x0, y0, x1, y1) <= toleranceSq;
+	}
+
+	/**
+	 * Determine if any simplified ring has its edges indexed
+	 */
+	boolean isEdgeIndexed() {
+		for (EdgeBands bands : shellBands)
+			if (bands != null)
+				return true;
+		for (EdgeBands bands : holeBands)
+			if (bands != null)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Number of vertices kept
+	 */
+	int getVertexCount() {
+		int n = 0;
+		for (int[] ring : shells)
+			n += ring.length / 2;
+		for (int[] ring : holes)
+			n += ring.length / 2;
+		return n;
+	}
+}
@@ -0,0 +1,233 @@
+/**
+ * TZCache.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of lookup results in front of a TZWorld, for traffic that
+ * asks about the same places over and over. Points are snapped to a grid of
+ * quantum degrees, and each grid cell remembers the ordinal found for the
+ * first point looked up in it; a repeated lookup then costs a hash probe
+ * instead of any polygon tests. Near a zone boundary, points in the same cell
+ * may really lie in different zones, so the quantum trades accuracy for hit
+ * rate: the default 1e-4 degree is about 11 m, and 1e-7 degree is the
+ * resolution TZWorld itself works at.
+ * 
+ * The cache is split into lock stripes, and each stripe into sets of four
+ * entries. A cell can only live in its own set, where a full set evicts with
+ * the clock algorithm: entries are marked when hit, and the first unmarked
+ * entry past the clock hand is replaced, unmarking the ones passed over.
+ * 
+ * A cache holds ordinals of one TZWorld, and must not be shared between
+ * worlds.
+ * 
+ * @author Frank D. Russo
+ */
+public final class TZCache {
+	public static final double DEFAULT_QUANTUM = 1e-4;
+
+	private static final int WAYS = 4;
+	static final int MISS = Integer.MIN_VALUE;	// no ordinal cached
+
+	private final double quantum;
+	private final Stripe[] stripes;
+	private final int stripeMask;
+	private final int setMask;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param capacity
+	 *            maximum number of cells cached, rounded up to a power of two
+	 *            and at least 4
+	 * @param quantum
+	 *            grid size in degrees
+	 */
+	public TZCache(int capacity, double quantum) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+		if (!(quantum > 0.0))
+			throw new IllegalArgumentException("quantum must be positive");
+		this.quantum = quantum;
+
+		// enough stripes that threads rarely meet, at least one set each
+		int sets = Math.max(1, Integer.highestOneBit(Math.min(capacity, 1 << 30) - 1) * 2 / WAYS);
+		int stripeCount = Math.min(sets, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) * 2);
+		stripes = new Stripe[stripeCount];
+		for (int s = 0; s < stripes.length; s++)
+			stripes[s] = new Stripe(sets / stripeCount);
+		stripeMask = stripeCount - 1;
+		setMask = sets / stripeCount - 1;
+	}
+
+	/**
+	 * Cached ordinal of the cell containing a point
+	 * 
+	 * @return the ordinal, possibly -1 for no extent, or MISS
+	 */
+	int get(long cell) {
+		long hash = hash(cell);
+		Stripe stripe = stripes[(int) (hash >>> 32) & stripeMask];
+		int ordinal = stripe.get(cell, (int) hash & setMask);
+		if (ordinal == MISS)
+			misses.increment();
+		else
+			hits.increment();
+		return ordinal;
+	}
+
+	void put(long cell, int ordinal) {
+		long hash = hash(cell);
+		if (stripes[(int) (hash >>> 32) & stripeMask].put(cell, (int) hash & setMask, ordinal))
+			evictions.increment();
+	}
+
+	/**
+	 * Grid cell of a point, as a cache key
+	 */
+	long cell(double lat, double lon) {
+		long row = (long) Math.floor((lat + 90.0) / quantum);
+		long col = (long) Math.floor((lon + 180.0) / quantum);
+		return (row << 32) ^ col;
+	}
+
+	/**
+	 * Murmur3 finalizer, so neighbouring cells spread over the stripes (high
+	 * word) and sets (low word)
+	 */
+	private static long hash(long cell) {
+		cell ^= cell >>> 33;
+		cell *= 0xff51afd7ed558ccdL;
+		cell ^= cell >>> 33;
+		cell *= 0xc4ceb9fe1a85ec53L;
+		cell ^= cell >>> 33;
+		return cell;
+	}
+
+	public double getQuantum() {
+		return quantum;
+	}
+
+	/**
+	 * Maximum number of cells held
+	 */
+	public int getCapacity() {
+		return stripes.length * (setMask + 1) * WAYS;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Fraction of lookups answered from the cache, 0 if there were none
+	 */
+	public double getHitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total > 0 ? (double) h / total : 0.0;
+	}
+
+	/**
+	 * Drop all cached cells and reset the statistics
+	 */
+	public void clear() {
+		for (Stripe stripe : stripes)
+			stripe.clear();
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "TZCache[capacity=" + getCapacity() + ", quantum=" + quantum + ", hits=" + getHits() + ", misses="
+				+ getMisses() + ", evictions=" + getEvictions() + "]";
+	}
+
+	/**
+	 * One lock's worth of sets, in parallel arrays
+	 */
+	private static class Stripe {
+		private final long[] cells;
+		private final int[] ordinals;
+		private final boolean[] marked;
+		private final byte[] hands;	// clock hand of each set
+
+		Stripe(int sets) {
+			cells = new long[sets * WAYS];
+			ordinals = new int[sets * WAYS];
+			marked = new boolean[sets * WAYS];
+			hands = new byte[sets];
+			Arrays.fill(ordinals, MISS);
+		}
+
+		synchronized int get(long cell, int set) {
+			int base = set * WAYS;
+			for (int i = base; i < base + WAYS; i++) {
+				if (ordinals[i] != MISS && cells[i] == cell) {
+					marked[i] = true;
+					return ordinals[i];
+				}
+			}
+			return MISS;
+		}
+
+		/**
+		 * @return true if an entry was evicted
+		 */
+		synchronized boolean put(long cell, int set, int ordinal) {
+			int base = set * WAYS;
+			for (int i = base; i < base + WAYS; i++) {
+				if (ordinals[i] == MISS || cells[i] == cell) {
+					// a free entry, or another thread got here first
+					cells[i] = cell;
+					ordinals[i] = ordinal;
+					return false;
+				}
+			}
+
+			int hand = hands[set];
+			while (marked[base + hand]) {
+				marked[base + hand] = false;
+				hand = (hand + 1) % WAYS;
+			}
+			cells[base + hand] = cell;
+			ordinals[base + hand] = ordinal;
+			hands[set] = (byte) ((hand + 1) % WAYS);
+			return true;
+		}
+
+		synchronized void clear() {
+			Arrays.fill(ordinals, MISS);
+			Arrays.fill(marked, false);
+			Arrays.fill(hands, (byte) 0);
+		}
+	}
+}
@@ -0,0 +1,360 @@
+/**
+ * TZGeometry.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.redlaser.geosense.shapefile.ShapeFileShape;
+
+/**
+ * The rings of a TZExtent: shells, and holes grouped by the shell that
+ * contains them. Also packs to and unpacks from a compact byte encoding
+ * (zig-zag varint deltas between vertices), which lazy extents read from a
+ * streamed shapefile hold in place of the rings themselves.
+ * 
+ * @author Frank D. Russo
+ */
+final class TZGeometry {
+	final Ring[] shells;
+
+	// holes grouped by shell: the holes of shells[s] are
+	// holes[holeStart[s]] .. holes[holeStart[s+1]-1]. any holes past
+	// holeStart[shells.length] could not be placed in a shell, and are
+	// applied to all of them
+	final Ring[] holes;
+	final int[] holeStart;
+
+	TZGeometry(Ring[] shells, Ring[] holes, int[] holeStart) {
+		this.shells = shells;
+		this.holes = holes;
+		this.holeStart = holeStart;
+	}
+
+	/**
+	 * Build from the parts of a shapefile polygon, telling shells from holes
+	 * by orientation
+	 */
+	static TZGeometry fromShape(ShapeFileShape shape) {
+		List<Ring> shells = new ArrayList<Ring>();
+		List<Ring> holes = new ArrayList<Ring>();
+		for (double[] part : shape.getCoordinates()) {
+			int[] coords = new int[part.length];
+
+			double area = 0.0;
+			for (int i = 0; i < part.length; i += 2) {
+				coords[i] = TZWorld.integerize(part[i]);
+				coords[i + 1] = TZWorld.integerize(part[i + 1]);
+
+				if (i > 0) {
+					// http://forums.esri.com/Thread.asp?c=2&f=1718&t=174277
+					area += (((part[i] - part[i - 2]) * (part[i + 1] + part[i - 1])) / 2);
+				}
+			}
+
+			Ring ring = new ArrayRing(coords);
+			if (area > 0.0)
+				// clockwise ?? the sense appears to be opposite that
+				// indicated in the forum post
+				shells.add(ring);
+			else {
+				holes.add(ring);
+			}
+		}
+
+		return group(shells.toArray(new Ring[shells.size()]), holes);
+	}
+
+	/**
+	 * Assign each hole to the smallest shell that contains it, and order the
+	 * holes by shell
+	 */
+	private static TZGeometry group(Ring[] shells, List<Ring> holeList) {
+		int[] parents = new int[holeList.size()];
+		int[] counts = new int[shells.length + 1];
+		for (int h = 0; h < parents.length; h++) {
+			parents[h] = findShell(shells, holeList.get(h));
+			counts[parents[h] >= 0 ? parents[h] : shells.length]++;
+		}
+
+		int[] holeStart = new int[shells.length + 1];
+		for (int s = 1; s <= shells.length; s++)
+			holeStart[s] = holeStart[s - 1] + counts[s - 1];
+
+		Ring[] holes = new Ring[parents.length];
+		int[] next = holeStart.clone();
+		int orphan = holeStart[shells.length];
+		for (int h = 0; h < parents.length; h++)
+			holes[parents[h] >= 0 ? next[parents[h]]++ : orphan++] = holeList.get(h);
+
+		return new TZGeometry(shells, holes, holeStart);
+	}
+
+	private static int findShell(Ring[] shells, Ring hole) {
+		int found = -1;
+		double foundArea = Double.MAX_VALUE;
+		for (int s = 0; s < shells.length; s++) {
+			Ring shell = shells[s];
+			if (hole.getMinX() < shell.getMinX() || hole.getMinY() < shell.getMinY()
+					|| hole.getMaxX() > shell.getMaxX() || hole.getMaxY() > shell.getMaxY())
+				continue;
+
+			// a hole may share vertices with its shell, so look for any
+			// vertex strictly inside, sampling large holes
+			int n = hole.size();
+			int step = Math.max(1, n / 16);
+			boolean inside = false;
+			for (int i = 0; i < n && !inside; i += step)
+				inside = shell.contains(hole.getX(i), hole.getY(i));
+
+			double area = ((double) shell.getMaxX() - shell.getMinX()) * ((double) shell.getMaxY() - shell.getMinY());
+			if (inside && area < foundArea) {
+				found = s;
+				foundArea = area;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Index the edges of the rings with at least threshold vertices, see
+	 * EdgeBands
+	 */
+	void indexEdges(int threshold) {
+		for (Ring ring : shells)
+			if (ring.size() >= threshold)
+				ring.indexEdges();
+		for (Ring ring : holes)
+			if (ring.size() >= threshold)
+				ring.indexEdges();
+	}
+
+	/**
+	 * Determine if an integerized point is inside some shell and none of its
+	 * holes
+	 */
+	boolean contains(int x, int y) {
+		return shellContaining(x, y) >= 0;
+	}
+
+	/**
+	 * Find the shell an integerized point is inside, and not in a hole of
+	 * 
+	 * @return shell number, or -1 if none
+	 */
+	int shellContaining(int x, int y) {
+		for (int s = 0; s < shells.length; s++)
+			if (shellContains(s, x, y))
+				return s;
+
+		return -1;
+	}
+
+	/**
+	 * Determine if an integerized point is inside one shell and none of its
+	 * holes
+	 */
+	boolean shellContains(int shell, int x, int y) {
+		return shells[shell].contains(x, y) && !inHole(shell, x, y);
+	}
+
+	/**
+	 * Count the rings a containment test of an integerized point looks into,
+	 * and the vertices it scans there
+	 */
+	void count(int x, int y, TZMetrics metrics) {
+		int rings = 0;
+		long vertices = 0;
+		for (Ring ring : shells) {
+			if (ring.boundsContain(x, y)) {
+				rings++;
+				vertices += ring.edgesScanned(x, y);
+			}
+		}
+		for (Ring ring : holes) {
+			if (ring.boundsContain(x, y)) {
+				rings++;
+				vertices += ring.edgesScanned(x, y);
+			}
+		}
+		metrics.ringTests(rings, vertices);
+	}
+
+	/**
+	 * Approximate size of all rings in bytes, see Ring.getByteSize
+	 */
+	long getByteSize() {
+		long size = 0;
+		for (Ring ring : shells)
+			size += ring.getByteSize();
+		for (Ring ring : holes)
+			size += ring.getByteSize();
+		return size;
+	}
+
+	/**
+	 * Determine if the boundary of any shell or hole touches a closed
+	 * rectangle. If not, the whole rectangle is either inside or outside.
+	 */
+	boolean edgeTouches(int minX, int minY, int maxX, int maxY) {
+		for (Ring shell : shells)
+			if (shell.edgeTouches(minX, minY, maxX, maxY))
+				return true;
+		for (Ring hole : holes)
+			if (hole.edgeTouches(minX, minY, maxX, maxY))
+				return true;
+		return false;
+	}
+
+	private boolean inHole(int shell, int x, int y) {
+		for (int h = holeStart[shell]; h < holeStart[shell + 1]; h++)
+			if (holes[h].contains(x, y))
+				return true;
+
+		for (int h = holeStart[shells.length]; h < holes.length; h++)
+			if (holes[h].contains(x, y))
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Pack into bytes: shell and hole counts and holeStart, then each ring as
+	 * a vertex count followed by the change in x and y from the previous
+	 * vertex. Neighbouring vertices are close, so most deltas take one or two
+	 * bytes rather than four.
+	 */
+	byte[] pack() {
+		Output out = new Output();
+		out.writeVarint(shells.length);
+		out.writeVarint(holes.length);
+		for (int start : holeStart)
+			out.writeVarint(start);
+
+		for (Ring ring : shells)
+			pack(ring, out);
+		for (Ring ring : holes)
+			pack(ring, out);
+
+		return out.toByteArray();
+	}
+
+	private static void pack(Ring ring, Output out) {
+		int n = ring.size();
+		out.writeVarint(n);
+		int lastx = 0;
+		int lasty = 0;
+		for (int i = 0; i < n; i++) {
+			int x = ring.getX(i);
+			int y = ring.getY(i);
+			out.writeVarint(zigzag(x - lastx));
+			out.writeVarint(zigzag(y - lasty));
+			lastx = x;
+			lasty = y;
+		}
+	}
+
+	static TZGeometry unpack(byte[] packed) {
+		Input in = new Input(packed);
+		Ring[] shells = new Ring[in.readVarint()];
+		Ring[] holes = new Ring[in.readVarint()];
+		int[] holeStart = new int[shells.length + 1];
+		for (int s = 0; s < holeStart.length; s++)
+			holeStart[s] = in.readVarint();
+
+		for (int s = 0; s < shells.length; s++)
+			shells[s] = unpack(in);
+		for (int h = 0; h < holes.length; h++)
+			holes[h] = unpack(in);
+
+		return new TZGeometry(shells, holes, holeStart);
+	}
+
+	private static Ring unpack(Input in) {
+		int[] coords = new int[2 * in.readVarint()];
+		int x = 0;
+		int y = 0;
+		for (int i = 0; i < coords.length; i += 2) {
+			x += unzigzag(in.readVarint());
+			y += unzigzag(in.readVarint());
+			coords[i] = x;
+			coords[i + 1] = y;
+		}
+		return new ArrayRing(coords);
+	}
+
+	/**
+	 * Map signed to unsigned so small negative deltas stay small. Deltas are
+	 * computed with int overflow, which the sums in unpack undo exactly.
+	 */
+	static int zigzag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	static int unzigzag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	/**
+	 * Growable byte array for pack
+	 */
+	private static class Output {
+		private byte[] bytes = new byte[256];
+		private int size;
+
+		void writeVarint(int value) {
+			if (size + 5 > bytes.length) {
+				byte[] grown = new byte[bytes.length * 2];
+				System.arraycopy(bytes, 0, grown, 0, size);
+				bytes = grown;
+			}
+			while ((value & ~0x7F) != 0) {
+				bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[size++] = (byte) value;
+		}
+
+		byte[] toByteArray() {
+			byte[] result = new byte[size];
+			System.arraycopy(bytes, 0, result, 0, size);
+			return result;
+		}
+	}
+
+	/**
+	 * Cursor over packed bytes for unpack
+	 */
+	private static class Input {
+		private final byte[] bytes;
+		private int pos;
+
+		Input(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		int readVarint() {
+			int value = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = bytes[pos++];
+				value |= (b & 0x7F) << shift;
+				if (b >= 0)
+					return value;
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * TZIndex.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.Arrays;
+
+/**
+ * The candidate extents of each whole-degree tile (see TZWorld.getIndex(lat,
+ * lon)), in compressed sparse row form: the candidates of tile t are
+ * candidates[offsets[t]] .. candidates[offsets[t+1]-1], in extent order. Two
+ * arrays in all, rather than one per tile, so the index takes a fraction of
+ * the memory and objects, and a lookup reads its tile's candidates from one
+ * contiguous run. This is also the layout TZWorldSnapshot stores.
+ * 
+ * @author Frank D. Russo
+ */
+final class TZIndex {
+	private final int[] offsets;
+	private final int[] candidates;
+
+	/**
+	 * @param offsets
+	 *            TZWorld.INDEX_SIZE + 1 ascending offsets into candidates
+	 */
+	TZIndex(int[] offsets, int[] candidates) {
+		if (offsets.length != TZWorld.INDEX_SIZE + 1 || offsets[0] != 0
+				|| offsets[TZWorld.INDEX_SIZE] != candidates.length)
+			throw new IllegalArgumentException("offsets do not fit the candidates");
+
+		this.offsets = offsets;
+		this.candidates = candidates;
+	}
+
+	/**
+	 * Offset of the first candidate of a tile
+	 */
+	int start(int tile) {
+		return offsets[tile];
+	}
+
+	/**
+	 * Offset past the last candidate of a tile
+	 */
+	int end(int tile) {
+		return offsets[tile + 1];
+	}
+
+	/**
+	 * The candidate at an offset
+	 */
+	int candidate(int k) {
+		return candidates[k];
+	}
+
+	boolean isEmpty(int tile) {
+		return offsets[tile] == offsets[tile + 1];
+	}
+
+	/**
+	 * The candidates of a tile, as a new array, or null if it has none
+	 */
+	int[] get(int tile) {
+		return isEmpty(tile) ? null : Arrays.copyOfRange(candidates, offsets[tile], offsets[tile + 1]);
+	}
+
+	/**
+	 * Determine if two tiles have the same candidates
+	 */
+	boolean sameCandidates(int a, int b) {
+		int n = offsets[a + 1] - offsets[a];
+		if (offsets[b + 1] - offsets[b] != n)
+			return false;
+
+		for (int k = 0; k < n; k++)
+			if (candidates[offsets[a] + k] != candidates[offsets[b] + k])
+				return false;
+		return true;
+	}
+
+	int getCandidateCount() {
+		return candidates.length;
+	}
+
+	int[] getOffsets() {
+		return offsets;
+	}
+
+	int[] getCandidates() {
+		return candidates;
+	}
+
+	/**
+	 * Approximate heap size in bytes
+	 */
+	long getSize() {
+		return 4L * (offsets.length + candidates.length);
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * TZIntersection.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+import com.redlaser.geosense.TZWorld.TZExtent;
+
+/**
+ * The zones a rectangle or polygon touches, such as a map viewport or a
+ * delivery region. Candidate extents come from the index tiles under the
+ * query's bounds, and each is tested exactly: a zone and a query area meet
+ * if their boundaries touch, or else if one lies inside the other, which a
+ * single point of each then decides. Shells lying wholly inside a rectangle
+ * settle it without looking at any edges, so even a viewport of the whole
+ * globe is quick.
+ * 
+ * @author Frank D. Russo
+ */
+final class TZIntersection {
+	private TZIntersection() {
+	}
+
+	/**
+	 * Ordinals of the extents touching a closed rectangle, in integerized
+	 * units
+	 */
+	static BitSet inBox(TZWorld tzWorld, int minX, int minY, int maxX, int maxY) {
+		BitSet found = new BitSet();
+		TZExtent[] extents = tzWorld.getExtents();
+		BitSet seen = candidates(tzWorld, minX, minY, maxX, maxY);
+		for (int i = seen.nextSetBit(0); i >= 0; i = seen.nextSetBit(i + 1))
+			if (touches(extents[i], minX, minY, maxX, maxY))
+				found.set(i);
+		return found;
+	}
+
+	/**
+	 * Ordinals of the extents touching a polygon, given as a ring of x,y
+	 * pairs in integerized units
+	 */
+	static BitSet inPolygon(TZWorld tzWorld, Ring polygon) {
+		BitSet found = new BitSet();
+		TZExtent[] extents = tzWorld.getExtents();
+		BitSet seen = candidates(tzWorld, polygon.getMinX(), polygon.getMinY(), polygon.getMaxX(),
+				polygon.getMaxY());
+		for (int i = seen.nextSetBit(0); i >= 0; i = seen.nextSetBit(i + 1))
+			if (touches(extents[i], polygon))
+				found.set(i);
+		return found;
+	}
+
+	/**
+	 * Distinct time zones of a set of ordinals
+	 */
+	static List<TimeZone> timeZones(TZWorld tzWorld, BitSet ordinals) {
+		List<TimeZone> tzs = new ArrayList<TimeZone>();
+		Set<String> ids = new HashSet<String>();
+		for (int i = ordinals.nextSetBit(0); i >= 0; i = ordinals.nextSetBit(i + 1)) {
+			TimeZone tz = tzWorld.getTimeZone(i);
+			if (ids.add(tz.getID()))
+				tzs.add(tz);
+		}
+		return tzs;
+	}
+
+	/**
+	 * Extents listed in the tiles under a rectangle whose bounds overlap it
+	 */
+	private static BitSet candidates(TZWorld tzWorld, int minX, int minY, int maxX, int maxY) {
+		int firstRow = Math.max(-90, Math.floorDiv(minY, TZWorld.SCALE_FACTOR));
+		int lastRow = Math.min(89, Math.floorDiv(maxY, TZWorld.SCALE_FACTOR));
+		int firstCol = Math.max(-180, Math.floorDiv(minX, TZWorld.SCALE_FACTOR));
+		int lastCol = Math.min(179, Math.floorDiv(maxX, TZWorld.SCALE_FACTOR));
+
+		TZExtent[] extents = tzWorld.getExtents();
+		TZIndex index = tzWorld.getIndex();
+		BitSet seen = new BitSet(extents.length);
+		BitSet candidates = new BitSet(extents.length);
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int col = firstCol; col <= lastCol; col++) {
+				int tile = (row + 90) * 360 + col + 180;
+				for (int k = index.start(tile), end = index.end(tile); k < end; k++) {
+					int i = index.candidate(k);
+					if (seen.get(i))
+						continue;
+					seen.set(i);
+
+					TZExtent extent = extents[i];
+					if (extent.getMaxX() >= minX && extent.getMaxY() >= minY && extent.getMinX() <= maxX
+							&& extent.getMinY() <= maxY)
+						candidates.set(i);
+				}
+			}
+		}
+		return candidates;
+	}
+
+	static boolean touches(TZExtent extent, int minX, int minY, int maxX, int maxY) {
+		TZGeometry geometry = extent.getGeometry();
+		for (Ring shell : geometry.shells)
+			if (shell.size() > 0 && shell.getMinX() >= minX && shell.getMinY() >= minY && shell.getMaxX() <= maxX
+					&& shell.getMaxY() <= maxY)
+				return true;
+
+		// otherwise the rectangle is wholly in or out
+		return geometry.edgeTouches(minX, minY, maxX, maxY) || geometry.contains(minX, minY);
+	}
+
+	static boolean touches(TZExtent extent, Ring polygon) {
+		TZGeometry geometry = extent.getGeometry();
+		for (Ring ring : geometry.shells)
+			if (edgesTouch(ring, polygon))
+				return true;
+		for (Ring ring : geometry.holes)
+			if (edgesTouch(ring, polygon))
+				return true;
+
+		// no boundaries meet, so either lies wholly in or out of the other
+		if (geometry.contains(polygon.getX(0), polygon.getY(0)))
+			return true;
+		for (Ring shell : geometry.shells)
+			if (shell.size() > 0 && polygon.contains(shell.getX(0), shell.getY(0)))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Determine if any edge of a ring touches any edge of a (small) polygon
+	 */
+	private static boolean edgesTouch(Ring ring, Ring polygon) {
+		int pminX = polygon.getMinX();
+		int pminY = polygon.getMinY();
+		int pmaxX = polygon.getMaxX();
+		int pmaxY = polygon.getMaxY();
+		if (ring.getMaxX() < pminX || ring.getMaxY() < pminY || ring.getMinX() > pmaxX || ring.getMinY() > pmaxY)
+			return false;
+
+		int n = ring.size();
+		int m = polygon.size();
+		Ring.Cursor cursor = ring.cursor();
+		cursor.moveTo(n - 1);
+		int lastx = cursor.x;
+		int lasty = cursor.y;
+		for (int i = 0; i < n; i++) {
+			cursor.next();
+			int curx = cursor.x;
+			int cury = cursor.y;
+			if (Ring.segmentTouches(lastx, lasty, curx, cury, pminX, pminY, pmaxX, pmaxY)) {
+				int px = polygon.getX(m - 1);
+				int py = polygon.getY(m - 1);
+				for (int j = 0; j < m; j++) {
+					int qx = polygon.getX(j);
+					int qy = polygon.getY(j);
+					if (segmentsTouch(lastx, lasty, curx, cury, px, py, qx, qy))
+						return true;
+					px = qx;
+					py = qy;
+				}
+			}
+			lastx = curx;
+			lasty = cury;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine if two closed segments share a point, exactly
+	 */
+	static boolean segmentsTouch(int ax, int ay, int bx, int by, int cx, int cy, int dx, int dy) {
+		if (Math.max(ax, bx) < Math.min(cx, dx) || Math.max(cx, dx) < Math.min(ax, bx)
+				|| Math.max(ay, by) < Math.min(cy, dy) || Math.max(cy, dy) < Math.min(ay, by))
+			return false;
+
+		// with the boxes overlapping, collinear segments overlap too
+		int d1 = orientation(ax, ay, bx, by, cx, cy);
+		int d2 = orientation(ax, ay, bx, by, dx, dy);
+		int d3 = orientation(cx, cy, dx, dy, ax, ay);
+		int d4 = orientation(cx, cy, dx, dy, bx, by);
+		return d1 * d2 <= 0 && d3 * d4 <= 0;
+	}
+
+	private static int orientation(int ax, int ay, int bx, int by, int px, int py) {
+		return Long.compare(((long) bx - ax) * ((long) py - ay), ((long) by - ay) * ((long) px - ax));
+	}
+}
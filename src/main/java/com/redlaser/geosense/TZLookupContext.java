@@ -0,0 +1,161 @@
+/**
+ * TZLookupContext.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.TimeZone;
+
+import com.redlaser.geosense.TZWorld.TZExtent;
+
+/**
+ * Lookups for a run of nearby points, such as a vehicle track. The context
+ * remembers the extent and shell the last point was found in, and tests them
+ * first: while the points stay in one zone, each lookup is a bounds check
+ * and a single ring test, plus a check that no extent the point's index tile
+ * lists ahead of the last one contains it. When a point leaves the zone, the
+ * lookup falls back to TZWorld and remembers where it landed instead. The
+ * answers are the same as TZWorld's exact lookups, so they can differ from a
+ * TZWorld with a coarse TZCache.
+ * 
+ * A context is not thread safe; give each thread, or each track, its own.
+ * 
+ * <pre>
+ * TZLookupContext context = new TZLookupContext(tzWorld);
+ * for (Fix fix : track)
+ * 	fix.setTimeZone(context.findTimeZone(fix.getLat(), fix.getLon()));
+ * </pre>
+ * 
+ * @author Frank D. Russo
+ */
+public final class TZLookupContext {
+	private final TZWorld tzWorld;
+	private final TZMetrics metrics;	// or null for the world's own
+	private int extent = -1;	// ordinal of the last hit, or -1
+	private int shell = -1;	// shell of the last hit in extent, or -1 if not known
+	private int tile = -1;	// index tile of the last hit, or -1 if not known
+	private int position = -1;	// offset of extent among the candidates of tile, or -1 if not listed
+	private long hits;
+	private long misses;
+
+	public TZLookupContext(TZWorld tzWorld) {
+		this(tzWorld, null);
+	}
+
+	/**
+	 * A context whose lookups, other than repeat hits, count in the given
+	 * metrics rather than the world's own, unless null
+	 */
+	TZLookupContext(TZWorld tzWorld, TZMetrics metrics) {
+		this.tzWorld = tzWorld;
+		this.metrics = metrics;
+	}
+
+	public TZWorld getTZWorld() {
+		return tzWorld;
+	}
+
+	public TimeZone findTimeZone(double lat, double lon) {
+		int tzidx = findTimeZoneOrdinal(lat, lon);
+		return tzidx >= 0 ? tzWorld.getTimeZone(tzidx) : null;
+	}
+
+	public TZExtent findTimeZoneExtent(double lat, double lon) {
+		int tzidx = findTimeZoneOrdinal(lat, lon);
+		return tzidx >= 0 ? tzWorld.getTimeZoneExtent(tzidx) : null;
+	}
+
+	/**
+	 * As TZWorld.findTimeZoneOrdinal, trying the last extent found first
+	 * 
+	 * @return ordinal, or -1 if no extent contains the point
+	 */
+	public int findTimeZoneOrdinal(double lat, double lon) {
+		if (extent >= 0) {
+			TZExtent last = tzWorld.getTimeZoneExtent(extent);
+			int x = TZWorld.integerize(lon);
+			int y = TZWorld.integerize(lat);
+			if (last.boundsContain(x, y)) {
+				TZGeometry geometry = last.getGeometry();
+				if (shell < 0 || !geometry.shellContains(shell, x, y))
+					shell = geometry.shellContaining(x, y);
+				if (shell >= 0 && leads(lat, lon)) {
+					hits++;
+					return extent;
+				}
+			}
+		}
+
+		misses++;
+		extent = metrics != null ? tzWorld.findTimeZoneOrdinal(lat, lon, metrics)
+				: tzWorld.findTimeZoneOrdinal(lat, lon);
+		shell = -1;
+		tile = -1;
+		return extent;
+	}
+
+	/**
+	 * Determine if TZWorld would find a point inside the last extent there:
+	 * the point's tile must list the extent, and no extent it lists before
+	 * that may contain the point
+	 */
+	private boolean leads(double lat, double lon) {
+		int t = TZWorld.getIndex(lat, lon);
+		if (t < 0 || t >= TZWorld.INDEX_SIZE)
+			return false;
+
+		TZIndex index = tzWorld.getIndex();
+		if (t != tile) {
+			tile = t;
+			position = -1;
+			for (int k = index.start(t), end = index.end(t); k < end; k++) {
+				if (index.candidate(k) == extent) {
+					position = k;
+					break;
+				}
+			}
+		}
+		if (position < 0)
+			return false;
+
+		for (int k = index.start(t); k < position; k++)
+			if (tzWorld.getTimeZoneExtent(index.candidate(k)).contains(lat, lon))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Forget the last extent, e.g. before starting on an unrelated track
+	 */
+	public void reset() {
+		extent = -1;
+		shell = -1;
+		tile = -1;
+	}
+
+	/**
+	 * Number of lookups answered by the last extent
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Number of lookups that went to TZWorld
+	 */
+	public long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,333 @@
+/**
+ * TZMetrics.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and times the lookups it is passed to (see TZWorld.findTimeZoneOrdinal
+ * and GeoSenseHolder.getMetrics): how many there were, how many found no zone
+ * and so fall back to an Etc zone, and for those the cache and raster could
+ * not answer, how many extents, rings and vertices the polygon tests went
+ * through. Latencies go into histograms of the HDR kind, with buckets an
+ * eighth of a power of two wide, so any percentile is good to about 12%.
+ * 
+ * Everything is counted in LongAdders, so threads looking up at once do not
+ * contend, and nothing is counted at all while the metrics are disabled,
+ * which they can be at any time.
+ * 
+ * @author Frank D. Russo
+ */
+public final class TZMetrics {
+	private volatile boolean enabled;
+
+	private final LongAdder lookups = new LongAdder();
+	private final LongAdder fallbacks = new LongAdder();
+	private final LongAdder exactLookups = new LongAdder();
+	private final LongAdder candidates = new LongAdder();
+	private final LongAdder ringTests = new LongAdder();
+	private final LongAdder vertices = new LongAdder();
+	private final Histogram latency = new Histogram();
+	private final Histogram exactLatency = new Histogram();
+
+	public TZMetrics() {
+	}
+
+	public TZMetrics(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Start or stop counting; counts so far are kept
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Zero all counts
+	 */
+	public void reset() {
+		lookups.reset();
+		fallbacks.reset();
+		exactLookups.reset();
+		candidates.reset();
+		ringTests.reset();
+		vertices.reset();
+		latency.reset();
+		exactLatency.reset();
+	}
+
+	void lookup(long nanos, int tzidx) {
+		lookups.increment();
+		if (tzidx < 0)
+			fallbacks.increment();
+		latency.record(nanos);
+	}
+
+	/**
+	 * A lookup the cache and raster could not answer, by the index and
+	 * polygon tests
+	 */
+	void exactLookup(long nanos) {
+		exactLookups.increment();
+		exactLatency.record(nanos);
+	}
+
+	/**
+	 * An extent tested for a point
+	 */
+	void candidate() {
+		candidates.increment();
+	}
+
+	void ringTests(int rings, long scanned) {
+		if (rings > 0) {
+			ringTests.add(rings);
+			vertices.add(scanned);
+		}
+	}
+
+	/**
+	 * The counts so far, with the size and load timings of a world
+	 * 
+	 * @param tzWorld
+	 *            the world to report on, or null
+	 */
+	public Snapshot snapshot(TZWorld tzWorld) {
+		return new Snapshot(this, tzWorld);
+	}
+
+	/**
+	 * Log-linear histogram of nanosecond values: exact below 16, then 8
+	 * buckets to each power of two up to 2^40 ns, about 18 minutes, where
+	 * longer values are clamped
+	 */
+	static final class Histogram {
+		private static final int SUB_BITS = 3;
+		private static final int SUB = 1 << SUB_BITS;
+		private static final int LINEAR = 2 * SUB;
+		private static final int MAX_EXPONENT = 40;
+		static final int BUCKETS = LINEAR + (MAX_EXPONENT - SUB_BITS) * SUB;
+
+		private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+		Histogram() {
+			for (int b = 0; b < BUCKETS; b++)
+				counts[b] = new LongAdder();
+		}
+
+		void record(long nanos) {
+			counts[bucket(nanos)].increment();
+		}
+
+		void reset() {
+			for (LongAdder count : counts)
+				count.reset();
+		}
+
+		long[] getCounts() {
+			long[] copy = new long[BUCKETS];
+			for (int b = 0; b < BUCKETS; b++)
+				copy[b] = counts[b].sum();
+			return copy;
+		}
+
+		static int bucket(long value) {
+			if (value < LINEAR)
+				return (int) Math.max(value, 0);
+
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			if (exponent > MAX_EXPONENT)
+				return BUCKETS - 1;
+			int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB - 1);
+			return LINEAR + (exponent - SUB_BITS - 1) * SUB + sub;
+		}
+
+		/**
+		 * Largest value falling in a bucket
+		 */
+		static long highest(int bucket) {
+			if (bucket < LINEAR)
+				return bucket;
+
+			int exponent = (bucket - LINEAR) / SUB + SUB_BITS + 1;
+			int sub = (bucket - LINEAR) % SUB;
+			long width = 1L << (exponent - SUB_BITS);
+			return (SUB + sub) * width + width - 1;
+		}
+
+		/**
+		 * Value at a percentile of the counts, as the highest value of its
+		 * bucket, or 0 if there are none
+		 */
+		static long percentile(long[] counts, double percentile) {
+			long total = 0;
+			for (long count : counts)
+				total += count;
+			if (total == 0)
+				return 0;
+
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+			long seen = 0;
+			for (int b = 0; b < counts.length; b++) {
+				seen += counts[b];
+				if (seen >= rank)
+					return highest(b);
+			}
+			return highest(counts.length - 1);
+		}
+	}
+
+	/**
+	 * The metrics at one moment, for reporting
+	 */
+	public static final class Snapshot {
+		private final boolean enabled;
+		private final long lookups;
+		private final long fallbacks;
+		private final long exactLookups;
+		private final long candidates;
+		private final long ringTests;
+		private final long vertices;
+		private final long[] latency;
+		private final long[] exactLatency;
+		private final long geometryBytes;
+		private final Map<String, Double> loadTimings;
+
+		Snapshot(TZMetrics metrics, TZWorld tzWorld) {
+			enabled = metrics.enabled;
+			lookups = metrics.lookups.sum();
+			fallbacks = metrics.fallbacks.sum();
+			exactLookups = metrics.exactLookups.sum();
+			candidates = metrics.candidates.sum();
+			ringTests = metrics.ringTests.sum();
+			vertices = metrics.vertices.sum();
+			latency = metrics.latency.getCounts();
+			exactLatency = metrics.exactLatency.getCounts();
+			geometryBytes = tzWorld != null ? tzWorld.getGeometryBytes() : 0;
+			loadTimings = tzWorld != null ? Collections.unmodifiableMap(tzWorld.getLoadTimings()) : Collections
+					.<String, Double> emptyMap();
+		}
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public long getLookups() {
+			return lookups;
+		}
+
+		/**
+		 * Lookups no zone contained, which GeoSense answers with an Etc zone
+		 */
+		public long getFallbacks() {
+			return fallbacks;
+		}
+
+		public double getFallbackRate() {
+			return ratio(fallbacks, lookups);
+		}
+
+		/**
+		 * Lookups the cache and raster (if any) could not answer
+		 */
+		public long getExactLookups() {
+			return exactLookups;
+		}
+
+		/**
+		 * Extents tested per exact lookup
+		 */
+		public double getCandidatesPerLookup() {
+			return ratio(candidates, exactLookups);
+		}
+
+		/**
+		 * Rings tested per exact lookup
+		 */
+		public double getRingTestsPerLookup() {
+			return ratio(ringTests, exactLookups);
+		}
+
+		/**
+		 * Vertices scanned per exact lookup
+		 */
+		public double getVerticesPerLookup() {
+			return ratio(vertices, exactLookups);
+		}
+
+		public long getCandidates() {
+			return candidates;
+		}
+
+		public long getRingTests() {
+			return ringTests;
+		}
+
+		public long getVertices() {
+			return vertices;
+		}
+
+		/**
+		 * Lookup latency at a percentile, e.g. 99.9
+		 */
+		public long getLatencyNanos(double percentile) {
+			return Histogram.percentile(latency, percentile);
+		}
+
+		/**
+		 * Latency of the exact lookups at a percentile
+		 */
+		public long getExactLatencyNanos(double percentile) {
+			return Histogram.percentile(exactLatency, percentile);
+		}
+
+		/**
+		 * Approximate size of the rings, see TZWorld.getGeometryBytes
+		 */
+		public long getGeometryBytes() {
+			return geometryBytes;
+		}
+
+		/**
+		 * Milliseconds each load phase took, see TZWorld.getLoadTimings
+		 */
+		public Map<String, Double> getLoadTimings() {
+			return loadTimings;
+		}
+
+		private static double ratio(long n, long d) {
+			return d > 0 ? (double) n / d : 0.0;
+		}
+
+		@Override
+		public String toString() {
+			return "TZMetrics[lookups=" + lookups + ", fallbackRate=" + getFallbackRate() + ", p50="
+					+ getLatencyNanos(50) + "ns, p99=" + getLatencyNanos(99) + "ns, exactLookups=" + exactLookups
+					+ ", candidatesPerLookup=" + getCandidatesPerLookup() + ", verticesPerLookup="
+					+ getVerticesPerLookup() + ", geometryBytes=" + geometryBytes + ", loadTimings=" + loadTimings
+					+ "]";
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/**
+ * TZNearest.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.BitSet;
+import java.util.TimeZone;
+
+import com.redlaser.geosense.TZWorld.TZExtent;
+
+/**
+ * The zone nearest a point, for points that fall just outside every zone:
+ * ships and rigs offshore, or GPS fixes jittering across a coastline. The
+ * search collects the extents listed in the index tiles within range of the
+ * point, orders them by the distance to their bounding boxes, and measures
+ * the distance to their rings only until the next box is further than the
+ * nearest boundary found; rings are likewise skipped by their bounds, and
+ * edges by their latitude span.
+ * 
+ * Distances are measured on an equirectangular projection centered on the
+ * point, which is within a fraction of a percent of the great circle distance
+ * at the few tens of kilometers this is meant for, away from the poles.
+ * 
+ * @author Frank D. Russo
+ */
+public final class TZNearest {
+	static final double KM_PER_DEGREE = 111.195;	// mean earth radius 6371 km
+
+	private final int ordinal;
+	private final TimeZone timeZone;
+	private final double distance;
+
+	TZNearest(int ordinal, TimeZone timeZone, double distance) {
+		this.ordinal = ordinal;
+		this.timeZone = timeZone;
+		this.distance = distance;
+	}
+
+	/**
+	 * Ordinal of the zone, as from TZWorld.findTimeZoneOrdinal
+	 */
+	public int getOrdinal() {
+		return ordinal;
+	}
+
+	public TimeZone getTimeZone() {
+		return timeZone;
+	}
+
+	/**
+	 * Distance in kilometers to the zone's boundary, 0 for a point inside
+	 */
+	public double getDistance() {
+		return distance;
+	}
+
+	@Override
+	public String toString() {
+		return timeZone.getID() + " at " + distance + " km";
+	}
+
+	/**
+	 * See TZWorld.findNearestTimeZone
+	 */
+	static TZNearest find(TZWorld tzWorld, double lat, double lon, double maxDistanceKm, TZMetrics metrics) {
+		int tzidx = tzWorld.findTimeZoneOrdinal(lat, lon, metrics);
+		if (tzidx >= 0)
+			return new TZNearest(tzidx, tzWorld.getTimeZone(tzidx), 0.0);
+		if (!(lat >= -90.0 && lat <= 90.0 && lon >= -180.0 && lon <= 180.0) || !(maxDistanceKm >= 0.0))
+			return null;
+
+		Metric metric = new Metric(lat, lon);
+		double maxLat = maxDistanceKm / KM_PER_DEGREE;
+		double maxLon = maxLat / metric.cosLat;
+
+		int firstRow = Math.max(-90, (int) Math.floor(lat - maxLat));
+		int lastRow = Math.min(89, (int) Math.floor(lat + maxLat));
+		int firstCol = -180;
+		int lastCol = 179;
+		if (maxLon < 179.0) {
+			firstCol = (int) Math.floor(lon - maxLon);
+			lastCol = (int) Math.floor(lon + maxLon);
+		}
+
+		// candidate extents by the distance to their bounds
+		TZExtent[] extents = tzWorld.getExtents();
+		TZIndex index = tzWorld.getIndex();
+		BitSet seen = new BitSet(extents.length);
+		int[] candidates = new int[extents.length];
+		double[] bounds = new double[extents.length];
+		int count = 0;
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int col = firstCol; col <= lastCol; col++) {
+				int tile = (row + 90) * 360 + Math.floorMod(col + 180, 360);
+				for (int c = index.start(tile), end = index.end(tile); c < end; c++) {
+					int i = index.candidate(c);
+					if (seen.get(i))
+						continue;
+					seen.set(i);
+
+					TZExtent extent = extents[i];
+					double bound = metric.boxDistance(extent.getMinX(), extent.getMinY(), extent.getMaxX(),
+							extent.getMaxY());
+					if (bound > maxDistanceKm)
+						continue;
+
+					// insertion sort, there are only ever a few
+					int k = count++;
+					for (; k > 0 && bounds[k - 1] > bound; k--) {
+						candidates[k] = candidates[k - 1];
+						bounds[k] = bounds[k - 1];
+					}
+					candidates[k] = i;
+					bounds[k] = bound;
+				}
+			}
+		}
+
+		int nearest = -1;
+		double best = maxDistanceKm;
+		for (int c = 0; c < count && bounds[c] <= best; c++) {
+			TZExtent extent = extents[candidates[c]];
+			// the lookup can miss a point inside, as through a coarse cache
+			if (bounds[c] == 0.0 && extent.contains(lat, lon))
+				return new TZNearest(candidates[c], tzWorld.getTimeZone(candidates[c]), 0.0);
+
+			double d = metric.distance(extent.getGeometry(), best);
+			if (d < best) {
+				nearest = candidates[c];
+				best = d;
+			}
+		}
+		return nearest >= 0 ? new TZNearest(nearest, tzWorld.getTimeZone(nearest), best) : null;
+	}
+
+	/**
+	 * Distances from one point, in kilometers on a plane where a degree of
+	 * latitude is KM_PER_DEGREE and a degree of longitude that times the
+	 * cosine of the point's latitude
+	 */
+	private static class Metric {
+		private final int x;
+		private final int y;
+		private final double cosLat;
+		private final double kmPerUnitX;
+		private final double kmPerUnitY;
+
+		Metric(double lat, double lon) {
+			x = TZWorld.integerize(lon);
+			y = TZWorld.integerize(lat);
+			// keep longitude meaningful right up to the poles
+			cosLat = Math.max(Math.cos(Math.toRadians(lat)), 1e-6);
+			kmPerUnitY = KM_PER_DEGREE / TZWorld.SCALE_FACTOR;
+			kmPerUnitX = kmPerUnitY * cosLat;
+		}
+
+		/**
+		 * Longitude offset of x from the point the short way around, in
+		 * units
+		 */
+		private long dx(int x) {
+			long d = (long) x - this.x;
+			long full = 360L * TZWorld.SCALE_FACTOR;
+			if (d > full / 2)
+				d -= full;
+			else if (d < -full / 2)
+				d += full;
+			return d;
+		}
+
+		double boxDistance(int minX, int minY, int maxX, int maxY) {
+			double ex = 0.0;
+			if (x < minX || x > maxX)
+				ex = Math.min(Math.abs(dx(minX)), Math.abs(dx(maxX))) * kmPerUnitX;
+			double ey = 0.0;
+			if (y < minY)
+				ey = ((long) minY - y) * kmPerUnitY;
+			else if (y > maxY)
+				ey = ((long) y - maxY) * kmPerUnitY;
+			return Math.sqrt(ex * ex + ey * ey);
+		}
+
+		/**
+		 * Distance to the nearest edge of any ring of a geometry, or limit if
+		 * none is nearer
+		 */
+		double distance(TZGeometry geometry, double limit) {
+			for (Ring ring : geometry.shells)
+				limit = distance(ring, limit);
+			for (Ring ring : geometry.holes)
+				limit = distance(ring, limit);
+			return limit;
+		}
+
+		private double distance(Ring ring, double limit) {
+			int n = ring.size();
+			if (n == 0 || boxDistance(ring.getMinX(), ring.getMinY(), ring.getMaxX(), ring.getMaxY()) > limit)
+				return limit;
+
+			// edges further off in latitude alone are skipped unmeasured
+			long reach = (long) Math.ceil(limit / kmPerUnitY);
+			double limitSq = limit * limit;
+			Ring.Cursor cursor = ring.cursor();
+			cursor.moveTo(n - 1);
+			int lastx = cursor.x;
+			int lasty = cursor.y;
+			for (int i = 0; i < n; i++) {
+				cursor.next();
+				int curx = cursor.x;
+				int cury = cursor.y;
+				if ((long) Math.min(lasty, cury) - y <= reach && (long) y - Math.max(lasty, cury) <= reach) {
+					// the edge's own span, so it is not wrapped apart
+					double x0 = dx(lastx) * kmPerUnitX;
+					double x1 = x0 + ((long) curx - lastx) * kmPerUnitX;
+					double y0 = ((long) lasty - y) * kmPerUnitY;
+					double y1 = ((long) cury - y) * kmPerUnitY;
+					double d = SimplifiedGeometry.distanceSq(0.0, 0.0, x0, y0, x1, y1);
+					if (d < limitSq) {
+						limitSq = d;
+						limit = Math.sqrt(d);
+						reach = (long) Math.ceil(limit / kmPerUnitY);
+					}
+				}
+				lastx = curx;
+				lasty = cury;
+			}
+			return limit;
+		}
+	}
+}
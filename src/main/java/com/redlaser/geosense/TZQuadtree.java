@@ -0,0 +1,786 @@
+/**
+ * TZQuadtree.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.Arrays;
+
+import com.redlaser.geosense.TZWorld.TZExtent;
+
+/**
+ * Adaptive quadtree refining the whole-degree tile index of a TZWorld. A tile
+ * with candidate extents is split into quadrants for as long as some
+ * candidate's boundary crosses it, down to a maximum depth. That leaves three
+ * kinds of cells:
+ * <ul>
+ * <li>inside - entirely within one extent, so a lookup needs no polygon test
+ * at all</li>
+ * <li>empty - not covered by any candidate, so a lookup goes straight to the
+ * Etc fallback</li>
+ * <li>boundary - crossed by the boundaries of a few candidates, which are
+ * tested in turn, optionally followed by an extent that covers the rest of
+ * the cell</li>
+ * </ul>
+ * Cells are resolved against the candidates of their tile, in index order, so
+ * lookups answer exactly as a scan of the tile would - only faster. Deep in a
+ * large zone or out at sea a lookup is now a few array reads.
+ * 
+ * Over lazy extents the tree is built from the bounds of their shells alone,
+ * so none is decoded at load. A cell is then empty where no shell's bounds
+ * reach, and otherwise a boundary cell listing the candidates whose shell
+ * bounds it touches; there are no inside cells.
+ * 
+ * The tree is kept in flat int arrays. A reference carries its kind in the top
+ * two bits: 00 internal (offset in nodes of four child references, ordered
+ * SW, SE, NW, NE), 01 inside (extent number), 10 boundary (offset in lists of
+ * a count, that many extent numbers, then the extent covering the rest of the
+ * cell or -1), 11 empty.
+ * 
+ * @author Frank D. Russo
+ */
+class TZQuadtree {
+	static final int EMPTY = -1;
+
+	private static final int SCALE_FACTOR = TZWorld.SCALE_FACTOR;
+	private static final int INSIDE = 0x40000000;
+	private static final int BOUNDARY = 0x80000000;
+	private static final int PAYLOAD = 0x3FFFFFFF;
+
+	private int depth;
+	private int[] roots;
+	private int[] nodes;
+	private int[] lists;
+
+	TZQuadtree(int depth, int[] roots, int[] nodes, int[] lists) {
+		this.depth = depth;
+		this.roots = roots;
+		this.nodes = nodes;
+		this.lists = lists;
+	}
+
+	/**
+	 * Build a quadtree over an existing tile index
+	 * 
+	 * @param maxDepth
+	 *            maximum number of times a tile is split
+	 * @param budget
+	 *            approximate limit on the size of the tree in bytes, after
+	 *            which cells are no longer split
+	 */
+	static TZQuadtree build(TZExtent[] extents, TZIndex index, int maxDepth, long budget) {
+		for (TZExtent extent : extents)
+			if (extent.isLazy())
+				return new BoundsBuilder(extents, index, maxDepth, budget).build();
+		return new Builder(extents, index, maxDepth, budget).build();
+	}
+
+	int getDepth() {
+		return depth;
+	}
+
+	int[] getRoots() {
+		return roots;
+	}
+
+	int[] getNodes() {
+		return nodes;
+	}
+
+	int[] getLists() {
+		return lists;
+	}
+
+	/**
+	 * Determine if every reference stays inside the arrays and refers to one
+	 * of extentCount extents, and every internal node comes after its parent,
+	 * so no lookup can run off the tree or loop in it. For trees read back
+	 * from a snapshot.
+	 */
+	boolean isConsistent(int extentCount) {
+		if (roots.length != TZWorld.INDEX_SIZE)
+			return false;
+		for (int ref : roots)
+			if (!isConsistent(ref, -1, extentCount))
+				return false;
+		for (int node = 0; node < nodes.length; node++)
+			if (!isConsistent(nodes[node], node - node % 4, extentCount))
+				return false;
+		return true;
+	}
+
+	private boolean isConsistent(int ref, int parent, int extentCount) {
+		switch (ref >>> 30) {
+		case 0:
+			return ref > parent && ref % 4 == 0 && ref <= nodes.length - 4;
+
+		case 1:
+			return (ref & PAYLOAD) < extentCount;
+
+		case 2:
+			int pos = ref & PAYLOAD;
+			if (pos >= lists.length || lists[pos] < 0 || lists[pos] > lists.length - pos - 2)
+				return false;
+			int end = pos + lists[pos];
+			while (pos < end) {
+				int tzidx = lists[++pos];
+				if (tzidx < 0 || tzidx >= extentCount)
+					return false;
+			}
+			return lists[end + 1] >= EMPTY && lists[end + 1] < extentCount;
+
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Find the extent containing a point
+	 * 
+	 * @param tile
+	 *            the index tile of the point
+	 * @return extent number, or -1 if none
+	 */
+	int find(double lat, double lon, int tile, TZExtent[] extents) {
+		return find(lat, lon, tile, extents, null);
+	}
+
+	/**
+	 * As find(lat, lon, tile, extents), counting the extents tested in
+	 * metrics, if not null
+	 */
+	int find(double lat, double lon, int tile, TZExtent[] extents, TZMetrics metrics) {
+		int ref = roots[tile];
+		if ((ref >>> 30) == 0) {
+			int x = TZWorld.integerize(lon);
+			int y = TZWorld.integerize(lat);
+			int x0 = (tile % 360 - 180) * SCALE_FACTOR;
+			int y0 = (tile / 360 - 90) * SCALE_FACTOR;
+			int x1 = x0 + SCALE_FACTOR;
+			int y1 = y0 + SCALE_FACTOR;
+			do {
+				int mx = x0 + ((x1 - x0) >> 1);
+				int my = y0 + ((y1 - y0) >> 1);
+				int child = 0;
+				if (x >= mx) {
+					child = 1;
+					x0 = mx;
+				}
+				else
+					x1 = mx;
+				if (y >= my) {
+					child += 2;
+					y0 = my;
+				}
+				else
+					y1 = my;
+				ref = nodes[ref + child];
+			} while ((ref >>> 30) == 0);
+		}
+
+		switch (ref >>> 30) {
+		case 1:
+			return ref & PAYLOAD;
+
+		case 2:
+			int pos = ref & PAYLOAD;
+			int end = pos + lists[pos];
+			while (pos < end) {
+				int tzidx = lists[++pos];
+				if (metrics == null ? extents[tzidx].contains(lat, lon) : extents[tzidx].contains(lat, lon, metrics))
+					return tzidx;
+			}
+			return lists[end + 1];
+
+		default:
+			return EMPTY;
+		}
+	}
+
+	/**
+	 * Builds the tree one row of tiles at a time. Edges of all rings are first
+	 * bucketed by row; within the row they are bucketed again by tile (to find
+	 * the edges crossing a cell) and by narrow latitude band (to run an exact
+	 * containment test for a cell no edge crosses, scanning only the edges
+	 * that can affect it).
+	 */
+	private static class Builder {
+		// cells are grown by this many units when testing edges against them,
+		// which only needs to absorb floating point error in Ring.crosses
+		private static final int MARGIN = 2;
+		private static final int BUCKET_MARGIN = 2 * MARGIN + 1;
+		private static final int BANDS = 250;
+		private static final int BAND_HEIGHT = SCALE_FACTOR / BANDS;
+
+		// cell state per candidate
+		private static final int UNKNOWN = 0;
+		private static final int OUT = 1;
+		private static final int IN = 2;
+		private static final int CROSSED = 3;
+
+		private TZExtent[] extents;
+		private TZIndex index;
+		private int maxDepth;
+		private long budget;
+
+		// all rings, numbered extent by extent, shells then holes
+		private Ring[] rings;
+		private int[] ringOwner;
+		private int[] ringBase;
+
+		// edges by row, as ring and end vertex
+		private int[] rowStart;
+		private int[] rowRing;
+		private int[] rowVertex;
+
+		// edges of the current row
+		private int rowY0;
+		private int[] ex1 = new int[0];
+		private int[] ey1 = new int[0];
+		private int[] ex2 = new int[0];
+		private int[] ey2 = new int[0];
+		private int[] er = new int[0];
+		private int[] colStart = new int[361];
+		private int[] colEdges = new int[0];
+		private int[] bandStart = new int[BANDS + 1];
+		private int[] bandEdges = new int[0];
+
+		// candidates of the current tile, and the slot of each extent in them
+		private int[] candidates;
+		private int[] slotOf;
+
+		// per-ring crossing parity, valid where paritySet == stamp
+		private boolean[] parity;
+		private int[] paritySet;
+		private int stamp;
+
+		private int[] nodes = new int[1024];
+		private int nodeCount;
+		private int[] lists = new int[1024];
+		private int listCount;
+
+		Builder(TZExtent[] extents, TZIndex index, int maxDepth, long budget) {
+			this.extents = extents;
+			this.index = index;
+			this.maxDepth = maxDepth;
+			this.budget = budget;
+		}
+
+		TZQuadtree build() {
+			ringBase = new int[extents.length];
+			int ringCount = 0;
+			for (int e = 0; e < extents.length; e++) {
+				ringBase[e] = ringCount;
+				ringCount += extents[e].getShells().length + extents[e].getHoles().length;
+			}
+			rings = new Ring[ringCount];
+			ringOwner = new int[ringCount];
+			for (int e = 0; e < extents.length; e++) {
+				Ring[] shells = extents[e].getShells();
+				Ring[] holes = extents[e].getHoles();
+				System.arraycopy(shells, 0, rings, ringBase[e], shells.length);
+				System.arraycopy(holes, 0, rings, ringBase[e] + shells.length, holes.length);
+				Arrays.fill(ringOwner, ringBase[e], ringBase[e] + shells.length + holes.length, e);
+			}
+			parity = new boolean[ringCount];
+			paritySet = new int[ringCount];
+			slotOf = new int[extents.length];
+			Arrays.fill(slotOf, -1);
+
+			bucketRows();
+
+			int[] roots = new int[TZWorld.INDEX_SIZE];
+			Arrays.fill(roots, EMPTY);
+			for (int row = 0; row < 180; row++) {
+				boolean any = false;
+				for (int col = 0; col < 360 && !any; col++)
+					any = !index.isEmpty(row * 360 + col);
+				if (!any)
+					continue;
+
+				loadRow(row);
+				for (int col = 0; col < 360; col++) {
+					int tile = row * 360 + col;
+					if (!index.isEmpty(tile))
+						roots[tile] = buildTile(tile, col);
+				}
+			}
+
+			return new TZQuadtree(maxDepth, roots, Arrays.copyOf(nodes, nodeCount), Arrays.copyOf(lists, listCount));
+		}
+
+		private static int clamp(int v, int min, int max) {
+			return v < min ? min : v > max ? max : v;
+		}
+
+		private static int rowOf(int y) {
+			return clamp(Math.floorDiv(y, SCALE_FACTOR) + 90, 0, 179);
+		}
+
+		private static int colOf(int x) {
+			return clamp(Math.floorDiv(x, SCALE_FACTOR) + 180, 0, 359);
+		}
+
+		private int bandOf(int y) {
+			return clamp(Math.floorDiv(y - rowY0, BAND_HEIGHT), 0, BANDS - 1);
+		}
+
+		/**
+		 * Bucket every edge (numbered by its end vertex) into the rows its
+		 * latitude range touches. Two passes: count, then fill.
+		 */
+		private void bucketRows() {
+			rowStart = new int[181];
+			int[] next = null;
+			for (int pass = 0; pass < 2; pass++) {
+				for (int r = 0; r < rings.length; r++) {
+					Ring ring = rings[r];
+					int n = ring.size();
+					if (n == 0)
+						continue;
+
+					Ring.Cursor cursor = ring.cursor();
+					cursor.moveTo(n - 1);
+					int lasty = cursor.y;
+					for (int i = 0; i < n; i++) {
+						cursor.next();
+						int y = cursor.y;
+						int r0 = rowOf(Math.min(lasty, y) - BUCKET_MARGIN);
+						int r1 = rowOf(Math.max(lasty, y) + BUCKET_MARGIN);
+						for (int row = r0; row <= r1; row++) {
+							if (pass == 0)
+								rowStart[row + 1]++;
+							else {
+								rowRing[next[row]] = r;
+								rowVertex[next[row]++] = i;
+							}
+						}
+						lasty = y;
+					}
+				}
+
+				if (pass == 0) {
+					for (int row = 0; row < 180; row++)
+						rowStart[row + 1] += rowStart[row];
+					rowRing = new int[rowStart[180]];
+					rowVertex = new int[rowStart[180]];
+					next = rowStart.clone();
+				}
+			}
+		}
+
+		/**
+		 * Materialize the edges of a row, and bucket them by tile and band
+		 */
+		private void loadRow(int row) {
+			rowY0 = (row - 90) * SCALE_FACTOR;
+			int start = rowStart[row];
+			int m = rowStart[row + 1] - start;
+			if (ex1.length < m) {
+				int len = Math.max(m, 2 * ex1.length);
+				ex1 = new int[len];
+				ey1 = new int[len];
+				ex2 = new int[len];
+				ey2 = new int[len];
+				er = new int[len];
+			}
+
+			// a row lists each ring's edges in order, so one cursor per ring
+			// mostly just steps on
+			Ring.Cursor cursor = null;
+			for (int j = 0; j < m; j++) {
+				int r = rowRing[start + j];
+				int i = rowVertex[start + j];
+				if (j == 0 || r != er[j - 1])
+					cursor = rings[r].cursor();
+				cursor.moveTo(i > 0 ? i - 1 : rings[r].size() - 1);
+				ex1[j] = cursor.x;
+				ey1[j] = cursor.y;
+				cursor.next();
+				ex2[j] = cursor.x;
+				ey2[j] = cursor.y;
+				er[j] = r;
+			}
+
+			colEdges = bucket(m, colStart, colEdges, true);
+			bandEdges = bucket(m, bandStart, bandEdges, false);
+		}
+
+		/**
+		 * Bucket the edges of the current row by tile column (closed, with
+		 * margin) or by band
+		 */
+		private int[] bucket(int m, int[] start, int[] entries, boolean byColumn) {
+			Arrays.fill(start, 0);
+			int buckets = start.length - 1;
+			for (int pass = 0; pass < 2; pass++) {
+				for (int j = 0; j < m; j++) {
+					int b0, b1;
+					if (byColumn) {
+						b0 = colOf(Math.min(ex1[j], ex2[j]) - BUCKET_MARGIN);
+						b1 = colOf(Math.max(ex1[j], ex2[j]) + BUCKET_MARGIN);
+					}
+					else {
+						b0 = bandOf(Math.min(ey1[j], ey2[j]));
+						b1 = bandOf(Math.max(ey1[j], ey2[j]));
+					}
+					for (int b = b0; b <= b1; b++) {
+						if (pass == 0)
+							start[b + 1]++;
+						else
+							entries[start[b]++] = j;
+					}
+				}
+
+				if (pass == 0) {
+					for (int b = 0; b < buckets; b++)
+						start[b + 1] += start[b];
+					if (entries.length < start[buckets])
+						entries = new int[Math.max(start[buckets], 2 * entries.length)];
+				}
+				else {
+					// filling advanced each start to the next bucket's start
+					System.arraycopy(start, 0, start, 1, buckets);
+					start[0] = 0;
+				}
+			}
+			return entries;
+		}
+
+		private int buildTile(int tile, int col) {
+			candidates = index.get(tile);
+			for (int c = 0; c < candidates.length; c++)
+				slotOf[candidates[c]] = c;
+
+			int[] edges = new int[colStart[col + 1] - colStart[col]];
+			int count = 0;
+			for (int k = colStart[col]; k < colStart[col + 1]; k++) {
+				int j = colEdges[k];
+				if (slotOf[ringOwner[er[j]]] >= 0)
+					edges[count++] = j;
+			}
+
+			int x0 = (col - 180) * SCALE_FACTOR;
+			int ref = classify(x0, rowY0, x0 + SCALE_FACTOR, rowY0 + SCALE_FACTOR, edges, count, 0);
+
+			for (int c = 0; c < candidates.length; c++)
+				slotOf[candidates[c]] = -1;
+			return ref;
+		}
+
+		/**
+		 * Classify the closed cell [x0,x1] x [y0,y1], given the edges that
+		 * may cross it, splitting it if need be
+		 * 
+		 * @return a reference to the resulting node or leaf
+		 */
+		private int classify(int x0, int y0, int x1, int y1, int[] edges, int count, int depth) {
+			int k = candidates.length;
+			int[] state = new int[k];
+			boolean[] straddles = new boolean[k];
+			for (int c = 0; c < k; c++) {
+				TZExtent extent = extents[candidates[c]];
+				if (x1 < extent.getMinX() || x0 >= extent.getMaxX() || y1 < extent.getMinY() || y0 >= extent.getMaxY())
+					state[c] = OUT;
+				else
+					straddles[c] = x0 < extent.getMinX() || x1 >= extent.getMaxX() || y0 < extent.getMinY()
+							|| y1 >= extent.getMaxY();
+			}
+
+			// edges crossing this cell are all its children will need
+			int[] crossing = new int[count];
+			int crossingCount = 0;
+			for (int i = 0; i < count; i++) {
+				int j = edges[i];
+				int c = slotOf[ringOwner[er[j]]];
+				if (state[c] != OUT && touches(j, x0 - MARGIN, y0 - MARGIN, x1 + MARGIN, y1 + MARGIN)) {
+					crossing[crossingCount++] = j;
+					state[c] = CROSSED;
+				}
+			}
+
+			// for the rest, containment is the same throughout the cell
+			for (int c = 0; c < k; c++) {
+				if (state[c] == UNKNOWN) {
+					testCenter(x0 + ((x1 - x0) >> 1), y0 + ((y1 - y0) >> 1), state, straddles);
+					break;
+				}
+			}
+
+			// resolve as a scan of the candidates in index order would
+			int crossed = 0;
+			int fallback = EMPTY;
+			for (int c = 0; c < k; c++) {
+				if (state[c] == IN) {
+					fallback = candidates[c];
+					break;
+				}
+				if (state[c] == CROSSED)
+					crossed++;
+			}
+			if (crossed == 0)
+				return fallback != EMPTY ? INSIDE | fallback : EMPTY;
+
+			if (depth < maxDepth && 4L * (nodeCount + 4 + listCount) <= budget) {
+				int node = nodeCount;
+				if (nodes.length < nodeCount + 4)
+					nodes = Arrays.copyOf(nodes, 2 * nodes.length);
+				nodeCount += 4;
+
+				int mx = x0 + ((x1 - x0) >> 1);
+				int my = y0 + ((y1 - y0) >> 1);
+				int sw = classify(x0, y0, mx, my, crossing, crossingCount, depth + 1);
+				int se = classify(mx, y0, x1, my, crossing, crossingCount, depth + 1);
+				int nw = classify(x0, my, mx, y1, crossing, crossingCount, depth + 1);
+				int ne = classify(mx, my, x1, y1, crossing, crossingCount, depth + 1);
+
+				// children that all came out the same simple leaf (the edges
+				// only grazed the margin) collapse back into it
+				if (sw == se && sw == nw && sw == ne && ((sw >>> 30) == 1 || sw == EMPTY)) {
+					nodeCount = node;
+					return sw;
+				}
+
+				nodes[node] = sw;
+				nodes[node + 1] = se;
+				nodes[node + 2] = nw;
+				nodes[node + 3] = ne;
+				return node;
+			}
+
+			int pos = listCount;
+			if (lists.length < listCount + crossed + 2)
+				lists = Arrays.copyOf(lists, Math.max(listCount + crossed + 2, 2 * lists.length));
+			lists[listCount++] = crossed;
+			for (int c = 0; c < k && state[c] != IN; c++)
+				if (state[c] == CROSSED)
+					lists[listCount++] = candidates[c];
+			lists[listCount++] = fallback;
+			return BOUNDARY | pos;
+		}
+
+		/**
+		 * Does edge j touch the closed rectangle?
+		 */
+		private boolean touches(int j, int rx0, int ry0, int rx1, int ry1) {
+			int ax = ex1[j], ay = ey1[j], bx = ex2[j], by = ey2[j];
+			if (Math.max(ax, bx) < rx0 || Math.min(ax, bx) > rx1 || Math.max(ay, by) < ry0 || Math.min(ay, by) > ry1)
+				return false;
+
+			// with overlapping bounds, the edge misses only if all four
+			// corners are strictly on the same side of its line
+			double dx = (double) bx - ax;
+			double dy = (double) by - ay;
+			double px0 = (double) rx0 - ax, py0 = (double) ry0 - ay;
+			double px1 = (double) rx1 - ax, py1 = (double) ry1 - ay;
+			int sides = side(dx, dy, px0, py0) | side(dx, dy, px1, py0) | side(dx, dy, px1, py1) | side(dx, dy, px0, py1);
+			return sides != 1 && sides != 2;
+		}
+
+		/**
+		 * Which side of the line through the origin along (dx,dy) a point is
+		 * on: 1 left, 2 right, 3 on it
+		 */
+		private static int side(double dx, double dy, double px, double py) {
+			double side = dx * py - dy * px;
+			return side > 0 ? 1 : side < 0 ? 2 : 3;
+		}
+
+		/**
+		 * Resolve the UNKNOWN candidates by an exact containment test at one
+		 * point, scanning only the edges in the point's band
+		 */
+		private void testCenter(int x, int y, int[] state, boolean[] straddles) {
+			stamp++;
+			int band = bandOf(y);
+			for (int b = bandStart[band]; b < bandStart[band + 1]; b++) {
+				int j = bandEdges[b];
+				int r = er[j];
+				int c = slotOf[ringOwner[r]];
+				if (c >= 0 && state[c] == UNKNOWN && Ring.crosses(x, y, ex1[j], ey1[j], ex2[j], ey2[j])) {
+					if (paritySet[r] != stamp) {
+						paritySet[r] = stamp;
+						parity[r] = true;
+					}
+					else
+						parity[r] = !parity[r];
+				}
+			}
+
+			for (int c = 0; c < state.length; c++) {
+				if (state[c] == UNKNOWN) {
+					// a cell straddling the extent bounds is only simple if
+					// it is out; anything else is left to the lookup
+					if (containsByParity(candidates[c]))
+						state[c] = straddles[c] ? CROSSED : IN;
+					else
+						state[c] = OUT;
+				}
+			}
+		}
+
+		private boolean inside(int r) {
+			return paritySet[r] == stamp && parity[r];
+		}
+
+		/**
+		 * Same logic as TZExtent.contains, over the ring parities
+		 */
+		private boolean containsByParity(int e) {
+			TZExtent extent = extents[e];
+			int base = ringBase[e];
+			int shells = extent.getShells().length;
+			int holes = extent.getHoles().length;
+			int[] holeStart = extent.getHoleStart();
+			for (int s = 0; s < shells; s++) {
+				if (!inside(base + s))
+					continue;
+
+				boolean inHole = false;
+				for (int h = holeStart[s]; h < holeStart[s + 1] && !inHole; h++)
+					inHole = inside(base + shells + h);
+				for (int h = holeStart[shells]; h < holes && !inHole; h++)
+					inHole = inside(base + shells + h);
+				if (!inHole)
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Builds the tree from the shell bounds of the extents (see
+	 * TZExtent.getShellBounds), without looking at their rings. A cell is
+	 * split while some candidate's shell bounds cross it, since a quadrant
+	 * may then drop that candidate.
+	 */
+	private static class BoundsBuilder {
+		private TZExtent[] extents;
+		private TZIndex index;
+		private int maxDepth;
+		private long budget;
+
+		private int[] nodes = new int[1024];
+		private int nodeCount;
+		private int[] lists = new int[1024];
+		private int listCount;
+
+		BoundsBuilder(TZExtent[] extents, TZIndex index, int maxDepth, long budget) {
+			this.extents = extents;
+			this.index = index;
+			this.maxDepth = maxDepth;
+			this.budget = budget;
+		}
+
+		TZQuadtree build() {
+			int[] roots = new int[TZWorld.INDEX_SIZE];
+			Arrays.fill(roots, EMPTY);
+			for (int tile = 0; tile < TZWorld.INDEX_SIZE; tile++) {
+				if (index.isEmpty(tile))
+					continue;
+
+				int[] candidates = index.get(tile);
+				int x0 = (tile % 360 - 180) * SCALE_FACTOR;
+				int y0 = (tile / 360 - 90) * SCALE_FACTOR;
+				roots[tile] = classify(x0, y0, x0 + SCALE_FACTOR, y0 + SCALE_FACTOR, candidates, candidates.length, 0);
+			}
+			return new TZQuadtree(maxDepth, roots, Arrays.copyOf(nodes, nodeCount), Arrays.copyOf(lists, listCount));
+		}
+
+		/**
+		 * Classify the closed cell [x0,x1] x [y0,y1] against the first count
+		 * candidates, in index order, splitting it if need be
+		 * 
+		 * @return a reference to the resulting node or leaf
+		 */
+		private int classify(int x0, int y0, int x1, int y1, int[] candidates, int count, int depth) {
+			// the candidates whose shell bounds touch the cell, and whether
+			// they all cover it, in which case no quadrant drops any
+			int[] touching = new int[count];
+			int touchingCount = 0;
+			boolean covered = true;
+			for (int c = 0; c < count; c++) {
+				int[] bounds = extents[candidates[c]].getShellBounds();
+				boolean touches = false;
+				boolean covers = false;
+				for (int b = 0; b < bounds.length && !covers; b += 4) {
+					// shell bounds are half-open on the max side
+					if (bounds[b] <= x1 && x0 < bounds[b + 2] && bounds[b + 1] <= y1 && y0 < bounds[b + 3]) {
+						touches = true;
+						covers = bounds[b] <= x0 && x1 < bounds[b + 2] && bounds[b + 1] <= y0 && y1 < bounds[b + 3];
+					}
+				}
+				if (touches) {
+					touching[touchingCount++] = candidates[c];
+					covered &= covers;
+				}
+			}
+			if (touchingCount == 0)
+				return EMPTY;
+
+			if (!covered && depth < maxDepth && 4L * (nodeCount + 4 + listCount) <= budget) {
+				int node = nodeCount;
+				int list = listCount;
+				if (nodes.length < nodeCount + 4)
+					nodes = Arrays.copyOf(nodes, 2 * nodes.length);
+				nodeCount += 4;
+
+				int mx = x0 + ((x1 - x0) >> 1);
+				int my = y0 + ((y1 - y0) >> 1);
+				int sw = classify(x0, y0, mx, my, touching, touchingCount, depth + 1);
+				int se = classify(mx, y0, x1, my, touching, touchingCount, depth + 1);
+				int nw = classify(x0, my, mx, y1, touching, touchingCount, depth + 1);
+				int ne = classify(mx, my, x1, y1, touching, touchingCount, depth + 1);
+
+				// quadrants that all kept every candidate gain nothing
+				if (!sameList(sw, touching, touchingCount) || !sameList(se, touching, touchingCount)
+						|| !sameList(nw, touching, touchingCount) || !sameList(ne, touching, touchingCount)) {
+					nodes[node] = sw;
+					nodes[node + 1] = se;
+					nodes[node + 2] = nw;
+					nodes[node + 3] = ne;
+					return node;
+				}
+				nodeCount = node;
+				listCount = list;
+			}
+
+			int pos = listCount;
+			if (lists.length < listCount + touchingCount + 2)
+				lists = Arrays.copyOf(lists, Math.max(listCount + touchingCount + 2, 2 * lists.length));
+			lists[listCount++] = touchingCount;
+			for (int c = 0; c < touchingCount; c++)
+				lists[listCount++] = touching[c];
+			lists[listCount++] = EMPTY;
+			return BOUNDARY | pos;
+		}
+
+		/**
+		 * Is ref a boundary leaf listing exactly these candidates?
+		 */
+		private boolean sameList(int ref, int[] candidates, int count) {
+			if ((ref >>> 30) != 2)
+				return false;
+
+			int pos = ref & PAYLOAD;
+			if (lists[pos] != count)
+				return false;
+			for (int c = 0; c < count; c++)
+				if (lists[pos + 1 + c] != candidates[c])
+					return false;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,389 @@
+/**
+ * TZRaster.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.redlaser.geosense.TZWorld.TZExtent;
+
+/**
+ * Fine grid over the globe holding the zone ordinal of every cell, run-length
+ * compressed by row, for the highest lookup rates. A cell that some zone
+ * boundary comes near holds BOUNDARY instead, and lookups there fall back to
+ * the exact polygon tests; anywhere else a lookup is a division and a binary
+ * search over the few runs of one row. Answers are the same as without the
+ * raster.
+ * 
+ * The build is linear in the number of edges and runs. Each edge marks the
+ * cells it passes near, row by row, as intervals of columns; the unmarked
+ * cells between two intervals are then clear of every boundary, so one exact
+ * lookup answers for the whole stretch. Stretches are split where the index
+ * tiles under them list different candidates, since lookups scan a tile's
+ * candidates in turn. Cell sizes divide a degree evenly, so a cell never
+ * straddles two tiles.
+ * 
+ * The raster has a hard memory budget: if it would outgrow the budget at the
+ * requested resolution, it is built at the next coarser one, and so on up to
+ * whole degrees; if it does not fit even then, there is no raster.
+ * 
+ * @author Frank D. Russo
+ */
+public final class TZRaster {
+	static final int BOUNDARY = -2;	// find() result: use the exact test
+
+	private static final int SCALE_FACTOR = TZWorld.SCALE_FACTOR;
+	private static final long X0 = -180L * SCALE_FACTOR;
+	private static final long Y0 = -90L * SCALE_FACTOR;
+	private static final int MARGIN = 2;	// units around an edge marked as near it
+
+	private final int cellSize;	// in units
+	private final int rows;
+	private final int cols;
+	private final int[] rowStart;	// runs of row r: rowStart[r] .. rowStart[r+1]-1
+	private final int[] runCol;	// first column of each run
+	private final short[] runValue;	// ordinal, -1 for none, or BOUNDARY
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder fallbacks = new LongAdder();
+
+	private TZRaster(int cellSize, int[] rowStart, int[] runCol, short[] runValue) {
+		this.cellSize = cellSize;
+		this.rows = 180 * (SCALE_FACTOR / cellSize);
+		this.cols = 360 * (SCALE_FACTOR / cellSize);
+		this.rowStart = rowStart;
+		this.runCol = runCol;
+		this.runValue = runValue;
+	}
+
+	/**
+	 * Rasterize a world
+	 * 
+	 * @param resolution
+	 *            cell size in degrees, rounded up to one that divides a degree
+	 *            evenly
+	 * @param budget
+	 *            limit on the size of the raster in bytes
+	 * @return the raster, or null if it does not fit the budget
+	 */
+	static TZRaster build(TZWorld tzWorld, double resolution, long budget) {
+		if (!(resolution > 0.0))
+			throw new IllegalArgumentException("resolution must be positive");
+		if (tzWorld.getTimeZoneCount() >= Short.MAX_VALUE)
+			throw new IllegalArgumentException("too many zones to rasterize");
+
+		int[] sizes = cellSizes();
+		double units = resolution * SCALE_FACTOR;
+		for (int cellSize : sizes) {
+			// a column count of 360 * 10^7 would overflow
+			if (cellSize < 2 || cellSize < units - 1e-6)
+				continue;
+
+			TZRaster raster = new Builder(tzWorld, cellSize, budget).build();
+			if (raster != null)
+				return raster;
+		}
+		return null;
+	}
+
+	/**
+	 * The cell sizes in units that divide a degree, smallest first
+	 */
+	private static int[] cellSizes() {
+		int[] sizes = new int[64];
+		int n = 0;
+		for (int twos = 1; twos <= 128; twos *= 2)
+			for (int fives = 1; fives <= 78125; fives *= 5)
+				sizes[n++] = twos * fives;
+		Arrays.sort(sizes);
+		return sizes;
+	}
+
+	/**
+	 * Look a point up in the raster
+	 * 
+	 * @return ordinal, -1 if no zone contains the point, or BOUNDARY if the
+	 *         exact test must decide
+	 */
+	int find(double lat, double lon) {
+		if (!(lat >= -90.0 && lat < 90.0 && lon >= -180.0 && lon < 180.0)) {
+			fallbacks.increment();
+			return BOUNDARY;
+		}
+
+		int row = (int) ((TZWorld.integerize(lat) - Y0) / cellSize);
+		int col = (int) ((TZWorld.integerize(lon) - X0) / cellSize);
+
+		// the last run of the row starting at or before col
+		int lo = rowStart[row];
+		int hi = rowStart[row + 1] - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (runCol[mid] <= col)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+
+		int value = runValue[lo];
+		if (value == BOUNDARY)
+			fallbacks.increment();
+		else
+			hits.increment();
+		return value;
+	}
+
+	/**
+	 * Cell size in degrees, which may be coarser than asked for to fit the
+	 * budget
+	 */
+	public double getResolution() {
+		return (double) cellSize / SCALE_FACTOR;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getColumns() {
+		return cols;
+	}
+
+	/**
+	 * Number of runs over all rows
+	 */
+	public int getRunCount() {
+		return runCol.length;
+	}
+
+	/**
+	 * Approximate size in bytes
+	 */
+	public long getSize() {
+		return size(rows, runCol.length);
+	}
+
+	private static long size(int rows, long runs) {
+		return 4L * (rows + 1) + 6L * runs;
+	}
+
+	/**
+	 * Number of lookups answered by the raster alone
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Number of lookups that needed the exact polygon tests
+	 */
+	public long getFallbacks() {
+		return fallbacks.sum();
+	}
+
+	/**
+	 * Fraction of lookups that needed the exact polygon tests, 0 if there
+	 * were none
+	 */
+	public double getFallbackRate() {
+		long f = fallbacks.sum();
+		long total = f + hits.sum();
+		return total > 0 ? (double) f / total : 0.0;
+	}
+
+	@Override
+	public String toString() {
+		return "TZRaster[resolution=" + getResolution() + ", runs=" + getRunCount() + ", size=" + getSize()
+				+ ", hits=" + getHits() + ", fallbacks=" + getFallbacks() + "]";
+	}
+
+	/**
+	 * Builds a raster at one cell size
+	 */
+	private static class Builder {
+		private final TZWorld tzWorld;
+		private final TZIndex index;
+		private final int cellSize;
+		private final int cellsPerDegree;
+		private final int rows;
+		private final int cols;
+		private final long budget;
+
+		// marked column intervals (first << 32 | last) of row r:
+		// marks[markStart[r]] .. marks[markStart[r+1]-1]
+		private int[] markStart;
+		private long[] marks;
+		private int[] next;
+
+		private int[] runCol = new int[1024];
+		private short[] runValue = new short[1024];
+		private int runCount;
+
+		Builder(TZWorld tzWorld, int cellSize, long budget) {
+			this.tzWorld = tzWorld;
+			this.index = tzWorld.getIndex();
+			this.cellSize = cellSize;
+			this.cellsPerDegree = SCALE_FACTOR / cellSize;
+			this.rows = 180 * cellsPerDegree;
+			this.cols = 360 * cellsPerDegree;
+			this.budget = budget;
+		}
+
+		TZRaster build() {
+			if (size(rows, rows) > budget)
+				return null;
+
+			// count the marks of each row, then fill them in
+			markStart = new int[rows + 1];
+			markEdges(false);
+			long total = 0;
+			for (int r = 0; r < rows; r++) {
+				total += markStart[r + 1];
+				if (total > Integer.MAX_VALUE - 8)
+					return null;
+				markStart[r + 1] = (int) total;
+			}
+			marks = new long[markStart[rows]];
+			next = markStart.clone();
+			markEdges(true);
+
+			int[] rowStart = new int[rows + 1];
+			for (int r = 0; r < rows; r++) {
+				fillRow(r);
+				rowStart[r + 1] = runCount;
+				if (size(rows, runCount) > budget)
+					return null;
+			}
+			return new TZRaster(cellSize, rowStart, Arrays.copyOf(runCol, runCount),
+					Arrays.copyOf(runValue, runCount));
+		}
+
+		private void markEdges(boolean fill) {
+			for (TZExtent extent : tzWorld.getExtents()) {
+				TZGeometry geometry = extent.getGeometry();
+				for (Ring ring : geometry.shells)
+					markEdges(ring, fill);
+				for (Ring ring : geometry.holes)
+					markEdges(ring, fill);
+			}
+		}
+
+		private void markEdges(Ring ring, boolean fill) {
+			int n = ring.size();
+			if (n == 0)
+				return;
+
+			Ring.Cursor cursor = ring.cursor();
+			cursor.moveTo(n - 1);
+			long lastx = cursor.x;
+			long lasty = cursor.y;
+			for (int i = 0; i < n; i++) {
+				cursor.next();
+				long curx = cursor.x;
+				long cury = cursor.y;
+				long minY = Math.min(lasty, cury);
+				long maxY = Math.max(lasty, cury);
+				int first = clamp(Math.floorDiv(minY - MARGIN - Y0, cellSize), rows);
+				int last = clamp(Math.floorDiv(maxY + MARGIN - Y0, cellSize), rows);
+				for (int r = first; r <= last; r++) {
+					if (!fill) {
+						markStart[r + 1]++;
+						continue;
+					}
+
+					// the edge's x range within the row's latitudes; x is
+					// monotonic along the edge
+					double xa, xb;
+					if (lasty == cury) {
+						xa = lastx;
+						xb = curx;
+					}
+					else {
+						long bandLo = Y0 + (long) r * cellSize;
+						double ya = Math.max(minY, Math.min(maxY, bandLo));
+						double yb = Math.max(minY, Math.min(maxY, bandLo + cellSize));
+						double slope = (double) (curx - lastx) / (cury - lasty);
+						xa = lastx + (ya - lasty) * slope;
+						xb = lastx + (yb - lasty) * slope;
+					}
+					long lo = Math.floorDiv((long) Math.floor(Math.min(xa, xb)) - MARGIN - X0, cellSize);
+					long hi = Math.floorDiv((long) Math.ceil(Math.max(xa, xb)) + MARGIN - X0, cellSize);
+					marks[next[r]++] = ((long) clamp(lo, cols) << 32) | clamp(hi, cols);
+				}
+				lastx = curx;
+				lasty = cury;
+			}
+		}
+
+		private static int clamp(long v, int n) {
+			return (int) Math.max(0, Math.min(n - 1, v));
+		}
+
+		private void fillRow(int r) {
+			Arrays.sort(marks, markStart[r], markStart[r + 1]);
+			int rowRuns = runCount;
+			int col = 0;
+			for (int m = markStart[r]; m < markStart[r + 1]; m++) {
+				int lo = (int) (marks[m] >>> 32);
+				int hi = (int) marks[m];
+				if (lo > col)
+					fillClear(r, col, lo - 1, rowRuns);
+				if (hi >= col) {
+					addRun(Math.max(lo, col), BOUNDARY, rowRuns);
+					col = hi + 1;
+				}
+			}
+			if (col < cols)
+				fillClear(r, col, cols - 1, rowRuns);
+		}
+
+		/**
+		 * Fill columns from to to (inclusive) of a row, which no boundary
+		 * comes near, split where the tiles' candidates change
+		 */
+		private void fillClear(int r, int from, int to, int rowRuns) {
+			int tileRow = (r / cellsPerDegree) * 360;
+			while (from <= to) {
+				int tile = from / cellsPerDegree;
+				int end = Math.min(to, (tile + 1) * cellsPerDegree - 1);
+				while (end < to && index.sameCandidates(tileRow + tile, tileRow + tile + 1)) {
+					tile++;
+					end = Math.min(to, (tile + 1) * cellsPerDegree - 1);
+				}
+
+				// any point of the stretch will do; take the middle of a cell
+				double lat = (Y0 + (long) r * cellSize + cellSize / 2.0) / SCALE_FACTOR;
+				double lon = (X0 + (long) from * cellSize + cellSize / 2.0) / SCALE_FACTOR;
+				addRun(from, tzWorld.exactOrdinal(lat, lon), rowRuns);
+				from = end + 1;
+			}
+		}
+
+		private void addRun(int col, int value, int rowRuns) {
+			if (runCount > rowRuns && runValue[runCount - 1] == value)
+				return;
+
+			if (runCount == runCol.length) {
+				runCol = Arrays.copyOf(runCol, 2 * runCount);
+				runValue = Arrays.copyOf(runValue, 2 * runCount);
+			}
+			runCol[runCount] = col;
+			runValue[runCount] = (short) value;
+			runCount++;
+		}
+	}
+}
@@ -0,0 +1,453 @@
+/**
+ * TZStreams.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.TimeZone;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collector;
+import java.util.stream.DoubleStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * java.util.stream support for timezone lookup. Calling
+ * GeoSense.getTimeZone(lat, lon) inside Stream.map resolves one point at a
+ * time; the helpers here instead buffer elements into micro-batches and
+ * resolve each batch with TZWorld.findTimeZoneOrdinals, which visits the
+ * points in tile order. Results match GeoSense.getTimeZone(lat, lon),
+ * including the Etc fallback, and all helpers split for parallel streams.
+ * Examples:
+ * 
+ * <pre>
+ * Stream&lt;Tagged&gt; tagged = TZStreams.mapToTimeZone(events, Event::getLat, Event::getLon, Tagged::new);
+ * Map&lt;TimeZone, List&lt;Event&gt;&gt; byZone = events.collect(TZStreams.groupingByTimeZone(Event::getLat, Event::getLon));
+ * Stream&lt;TimeZone&gt; zones = TZStreams.timeZones(lats, lons);
+ * </pre>
+ * 
+ * The variants taking a TZWorld resolve against that world rather than the
+ * one GeoSense loaded.
+ * 
+ * @author Frank D. Russo
+ */
+public class TZStreams {
+	static final int BATCH_SIZE = 1024;	// points per micro-batch
+	private static final int MAX_SPLIT = 1 << 16;	// largest chunk split off an unsized source
+
+	private TZStreams() {
+	}
+
+	/**
+	 * Map each element of a stream, together with the time zone at its
+	 * coordinates, to a result. Encounter order, size and parallelism of the
+	 * source stream are kept.
+	 */
+	public static <T, R> Stream<R> mapToTimeZone(Stream<T> stream, ToDoubleFunction<? super T> lat,
+			ToDoubleFunction<? super T> lon, BiFunction<? super T, TimeZone, ? extends R> mapper) {
+		return mapToTimeZone(GeoSense.getTZWorld(), stream, lat, lon, mapper);
+	}
+
+	public static <T, R> Stream<R> mapToTimeZone(TZWorld tzWorld, Stream<T> stream, ToDoubleFunction<? super T> lat,
+			ToDoubleFunction<? super T> lon, BiFunction<? super T, TimeZone, ? extends R> mapper) {
+		Spliterator<R> spliterator = spliterator(tzWorld, stream.spliterator(), lat, lon, mapper);
+		return StreamSupport.stream(spliterator, stream.isParallel()).onClose(stream::close);
+	}
+
+	/**
+	 * Wrap a spliterator over elements with coordinates into one over mapped
+	 * results, resolving the time zones a micro-batch at a time
+	 */
+	public static <T, R> Spliterator<R> spliterator(Spliterator<T> source, ToDoubleFunction<? super T> lat,
+			ToDoubleFunction<? super T> lon, BiFunction<? super T, TimeZone, ? extends R> mapper) {
+		return spliterator(GeoSense.getTZWorld(), source, lat, lon, mapper);
+	}
+
+	public static <T, R> Spliterator<R> spliterator(TZWorld tzWorld, Spliterator<T> source,
+			ToDoubleFunction<? super T> lat, ToDoubleFunction<? super T> lon,
+			BiFunction<? super T, TimeZone, ? extends R> mapper) {
+		return new MappingSpliterator<T, R>(tzWorld, source, lat, lon, mapper);
+	}
+
+	/**
+	 * Time zones for pairs of coordinates taken from two streams of equal
+	 * length
+	 * 
+	 * @throws IllegalArgumentException
+	 *             (on consumption) if the streams differ in length
+	 */
+	public static Stream<TimeZone> timeZones(DoubleStream lats, DoubleStream lons) {
+		return timeZones(GeoSense.getTZWorld(), lats, lons);
+	}
+
+	public static Stream<TimeZone> timeZones(TZWorld tzWorld, DoubleStream lats, DoubleStream lons) {
+		boolean parallel = lats.isParallel() || lons.isParallel();
+		return StreamSupport.stream(new PairSpliterator(tzWorld, lats.iterator(), lons.iterator()), parallel)
+				.onClose(lats::close).onClose(lons::close);
+	}
+
+	/**
+	 * Collector grouping elements by the time zone at their coordinates. Lists
+	 * keep encounter order.
+	 */
+	public static <T> Collector<T, ?, Map<TimeZone, List<T>>> groupingByTimeZone(ToDoubleFunction<? super T> lat,
+			ToDoubleFunction<? super T> lon) {
+		return groupingByTimeZone(GeoSense.getTZWorld(), lat, lon);
+	}
+
+	public static <T> Collector<T, ?, Map<TimeZone, List<T>>> groupingByTimeZone(final TZWorld tzWorld,
+			final ToDoubleFunction<? super T> lat, final ToDoubleFunction<? super T> lon) {
+		return Collector.of(
+				() -> new Grouping<T>(tzWorld),
+				(grouping, t) -> grouping.add(t, lat.applyAsDouble(t), lon.applyAsDouble(t)),
+				Grouping::merge,
+				Grouping::finish);
+	}
+
+	/**
+	 * Resolve the first n points of a micro-batch, with the same Etc fallback
+	 * as GeoSense.getTimeZoneOrdinals
+	 */
+	static void resolve(TZWorld tzWorld, double[] lats, double[] lons, int[] ordinals, int n) {
+		tzWorld.findTimeZoneOrdinals(lats, lons, ordinals, 0, n);
+		for (int i = 0; i < n; i++)
+			if (ordinals[i] < 0)
+				ordinals[i] = GeoSenseData.getEtcOrdinal(lons[i]);
+	}
+
+	static TimeZone getTimeZone(TZWorld tzWorld, int ordinal) {
+		return ordinal >= 0 ? tzWorld.getTimeZone(ordinal) : GeoSenseData.getEtcTimeZone(ordinal);
+	}
+
+	/**
+	 * Spliterator resolving a source spliterator a micro-batch at a time.
+	 * Splitting delegates to the source, so parallel streams scale as well as
+	 * the source splits.
+	 */
+	private static class MappingSpliterator<T, R> implements Spliterator<R>, Consumer<T> {
+		private final TZWorld tzWorld;
+		private final Spliterator<T> source;
+		private final ToDoubleFunction<? super T> lat;
+		private final ToDoubleFunction<? super T> lon;
+		private final BiFunction<? super T, TimeZone, ? extends R> mapper;
+
+		// current micro-batch, allocated on first use
+		private Object[] elements;
+		private double[] lats;
+		private double[] lons;
+		private int[] ordinals;
+		private int count;
+		private int pos;
+
+		MappingSpliterator(TZWorld tzWorld, Spliterator<T> source, ToDoubleFunction<? super T> lat,
+				ToDoubleFunction<? super T> lon, BiFunction<? super T, TimeZone, ? extends R> mapper) {
+			this.tzWorld = tzWorld;
+			this.source = source;
+			this.lat = lat;
+			this.lon = lon;
+			this.mapper = mapper;
+		}
+
+		/**
+		 * Buffer one element from the source
+		 */
+		@Override
+		public void accept(T t) {
+			elements[count] = t;
+			lats[count] = lat.applyAsDouble(t);
+			lons[count] = lon.applyAsDouble(t);
+			count++;
+		}
+
+		/**
+		 * Make sure the batch has an unconsumed element, reading and resolving
+		 * the next one if needed
+		 */
+		private boolean fill() {
+			if (pos < count)
+				return true;
+
+			if (elements == null) {
+				elements = new Object[BATCH_SIZE];
+				lats = new double[BATCH_SIZE];
+				lons = new double[BATCH_SIZE];
+				ordinals = new int[BATCH_SIZE];
+			}
+			else {
+				for (int i = 0; i < count; i++)
+					elements[i] = null;
+			}
+			count = pos = 0;
+			while (count < BATCH_SIZE && source.tryAdvance(this))
+				;
+
+			resolve(tzWorld, lats, lons, ordinals, count);
+			return count > 0;
+		}
+
+		@SuppressWarnings("unchecked")
+		private R next() {
+			R result = mapper.apply((T) elements[pos], getTimeZone(tzWorld, ordinals[pos]));
+			pos++;
+			return result;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super R> action) {
+			if (!fill())
+				return false;
+			action.accept(next());
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super R> action) {
+			while (fill()) {
+				while (pos < count)
+					action.accept(next());
+			}
+		}
+
+		@Override
+		public Spliterator<R> trySplit() {
+			// buffered elements come before the rest of the source
+			if (pos < count)
+				return null;
+
+			Spliterator<T> prefix = source.trySplit();
+			return prefix != null ? new MappingSpliterator<T, R>(tzWorld, prefix, lat, lon, mapper) : null;
+		}
+
+		@Override
+		public long estimateSize() {
+			long size = source.estimateSize() + (count - pos);
+			return size < 0 ? Long.MAX_VALUE : size;
+		}
+
+		@Override
+		public int characteristics() {
+			return source.characteristics() & (ORDERED | SIZED | SUBSIZED);
+		}
+	}
+
+	/**
+	 * Spliterator over the time zones of coordinate pairs read from two
+	 * iterators, or from arrays split off them. Splitting reads a chunk of
+	 * pairs into arrays, like the spliterators the JDK builds over iterators.
+	 */
+	private static class PairSpliterator implements Spliterator<TimeZone> {
+		private final TZWorld tzWorld;
+
+		// unsized source
+		private final PrimitiveIterator.OfDouble latIterator;
+		private final PrimitiveIterator.OfDouble lonIterator;
+		private int splitSize = BATCH_SIZE;
+
+		// array source
+		private final double[] sourceLats;
+		private final double[] sourceLons;
+		private int next;
+		private int end;
+
+		// current micro-batch
+		private final double[] lats = new double[BATCH_SIZE];
+		private final double[] lons = new double[BATCH_SIZE];
+		private final int[] ordinals = new int[BATCH_SIZE];
+		private int count;
+		private int pos;
+
+		PairSpliterator(TZWorld tzWorld, PrimitiveIterator.OfDouble latIterator,
+				PrimitiveIterator.OfDouble lonIterator) {
+			this.tzWorld = tzWorld;
+			this.latIterator = latIterator;
+			this.lonIterator = lonIterator;
+			this.sourceLats = null;
+			this.sourceLons = null;
+		}
+
+		PairSpliterator(TZWorld tzWorld, double[] sourceLats, double[] sourceLons, int next, int end) {
+			this.tzWorld = tzWorld;
+			this.latIterator = null;
+			this.lonIterator = null;
+			this.sourceLats = sourceLats;
+			this.sourceLons = sourceLons;
+			this.next = next;
+			this.end = end;
+		}
+
+		private boolean fill() {
+			if (pos < count)
+				return true;
+
+			count = pos = 0;
+			if (latIterator == null) {
+				count = Math.min(BATCH_SIZE, end - next);
+				System.arraycopy(sourceLats, next, lats, 0, count);
+				System.arraycopy(sourceLons, next, lons, 0, count);
+				next += count;
+			}
+			else {
+				while (count < BATCH_SIZE && hasNext()) {
+					lats[count] = latIterator.nextDouble();
+					lons[count] = lonIterator.nextDouble();
+					count++;
+				}
+			}
+
+			resolve(tzWorld, lats, lons, ordinals, count);
+			return count > 0;
+		}
+
+		private boolean hasNext() {
+			boolean hasLat = latIterator.hasNext();
+			if (hasLat != lonIterator.hasNext())
+				throw new IllegalArgumentException("lats and lons must be the same length");
+			return hasLat;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super TimeZone> action) {
+			if (!fill())
+				return false;
+			action.accept(getTimeZone(tzWorld, ordinals[pos++]));
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super TimeZone> action) {
+			while (fill()) {
+				while (pos < count)
+					action.accept(getTimeZone(tzWorld, ordinals[pos++]));
+			}
+		}
+
+		@Override
+		public Spliterator<TimeZone> trySplit() {
+			if (pos < count)
+				return null;
+
+			if (latIterator == null) {
+				int n = end - next;
+				if (n <= BATCH_SIZE)
+					return null;
+				int mid = next + n / 2;
+				PairSpliterator prefix = new PairSpliterator(tzWorld, sourceLats, sourceLons, next, mid);
+				next = mid;
+				return prefix;
+			}
+
+			// read a growing chunk, as sizes are unknown
+			double[] chunkLats = new double[splitSize];
+			double[] chunkLons = new double[splitSize];
+			int n = 0;
+			while (n < splitSize && hasNext()) {
+				chunkLats[n] = latIterator.nextDouble();
+				chunkLons[n] = lonIterator.nextDouble();
+				n++;
+			}
+			if (n == 0)
+				return null;
+
+			splitSize = Math.min(splitSize * 2, MAX_SPLIT);
+			return new PairSpliterator(tzWorld, chunkLats, chunkLons, 0, n);
+		}
+
+		@Override
+		public long estimateSize() {
+			return latIterator == null ? (end - next) + (count - pos) : Long.MAX_VALUE;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL | (latIterator == null ? SIZED | SUBSIZED : 0);
+		}
+	}
+
+	/**
+	 * Mutable container for groupingByTimeZone. Elements are grouped by
+	 * TimeZone as they are added, since distinct extents may share a zone,
+	 * with each ordinal's group remembered so its TimeZone is looked up once
+	 */
+	private static class Grouping<T> {
+		private final TZWorld tzWorld;
+		private final Map<TimeZone, List<T>> groups = new HashMap<TimeZone, List<T>>();
+		private final Map<Integer, List<T>> byOrdinal = new HashMap<Integer, List<T>>();
+		private final Object[] elements = new Object[BATCH_SIZE];
+		private final double[] lats = new double[BATCH_SIZE];
+		private final double[] lons = new double[BATCH_SIZE];
+		private final int[] ordinals = new int[BATCH_SIZE];
+		private int count;
+
+		Grouping(TZWorld tzWorld) {
+			this.tzWorld = tzWorld;
+		}
+
+		void add(T t, double lat, double lon) {
+			elements[count] = t;
+			lats[count] = lat;
+			lons[count] = lon;
+			if (++count == BATCH_SIZE)
+				flush();
+		}
+
+		@SuppressWarnings("unchecked")
+		private void flush() {
+			resolve(tzWorld, lats, lons, ordinals, count);
+			for (int i = 0; i < count; i++) {
+				List<T> group = byOrdinal.get(ordinals[i]);
+				if (group == null) {
+					group = group(getTimeZone(tzWorld, ordinals[i]));
+					byOrdinal.put(ordinals[i], group);
+				}
+				group.add((T) elements[i]);
+				elements[i] = null;
+			}
+			count = 0;
+		}
+
+		private List<T> group(TimeZone tz) {
+			List<T> group = groups.get(tz);
+			if (group == null) {
+				group = new ArrayList<T>();
+				groups.put(tz, group);
+			}
+			return group;
+		}
+
+		/**
+		 * Append the groups of other, whose elements all come after ours
+		 */
+		Grouping<T> merge(Grouping<T> other) {
+			flush();
+			other.flush();
+			for (Map.Entry<TimeZone, List<T>> entry : other.groups.entrySet())
+				group(entry.getKey()).addAll(entry.getValue());
+			return this;
+		}
+
+		Map<TimeZone, List<T>> finish() {
+			flush();
+			return groups;
+		}
+	}
+}
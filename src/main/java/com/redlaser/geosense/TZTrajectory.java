@@ -0,0 +1,255 @@
+/**
+ * TZTrajectory.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Time zones along an ordered track of samples, such as a GPS trace, as runs
+ * of consecutive samples in the same zone. Rather than looking up every
+ * sample, a run is extended in growing strides: if the next stride of
+ * samples all fall in index tiles with the same candidates, and no edge of
+ * the current zone's rings, or of the candidates listed ahead of it,
+ * touches the bounding box of the stride, they are all in the zone and none
+ * of them is looked up. Likewise a run outside every zone is extended while
+ * no candidate's edges touch the box. Only near a boundary or a change of
+ * candidates does it fall back to sample by sample lookups, so a dense track
+ * costs roughly one lookup per zone crossing plus a few ring scans per run.
+ * The runs are the same as looking up every sample, short of a coarse
+ * TZCache.
+ * 
+ * @author Frank D. Russo
+ */
+public final class TZTrajectory {
+	private static final int MAX_STRIDE = 1 << 16;
+
+	private TZTrajectory() {
+	}
+
+	/**
+	 * A run of consecutive samples in the same zone
+	 */
+	public static final class Segment {
+		private final int from;
+		private final int to;
+		private final int ordinal;
+		private final TimeZone timeZone;
+		private final long startTime;
+		private final long endTime;
+
+		Segment(int from, int to, int ordinal, TimeZone timeZone, long[] times) {
+			this.from = from;
+			this.to = to;
+			this.ordinal = ordinal;
+			this.timeZone = timeZone;
+			this.startTime = times != null ? times[from] : 0;
+			this.endTime = times != null ? times[to - 1] : 0;
+		}
+
+		/**
+		 * Index of the first sample in the run
+		 */
+		public int getFrom() {
+			return from;
+		}
+
+		/**
+		 * Index after the last sample in the run; the zone changes between
+		 * samples to - 1 and to
+		 */
+		public int getTo() {
+			return to;
+		}
+
+		/**
+		 * Ordinal of the zone, as from TZWorld.findTimeZoneOrdinal or
+		 * GeoSense.getTimeZoneOrdinals
+		 */
+		public int getOrdinal() {
+			return ordinal;
+		}
+
+		/**
+		 * The zone, or null for samples outside every TZWorld zone
+		 */
+		public TimeZone getTimeZone() {
+			return timeZone;
+		}
+
+		/**
+		 * Time of the first sample, if times were given
+		 */
+		public long getStartTime() {
+			return startTime;
+		}
+
+		/**
+		 * Time of the last sample, if times were given
+		 */
+		public long getEndTime() {
+			return endTime;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + from + ", " + to + ") " + (timeZone != null ? timeZone.getID() : "none");
+		}
+	}
+
+	/**
+	 * Split a track into runs of samples in the same TZWorld zone
+	 * 
+	 * @param times
+	 *            time of each sample, or null
+	 * @return the runs, in order, covering every sample
+	 */
+	public static List<Segment> segments(TZWorld tzWorld, double[] lats, double[] lons, long[] times) {
+		int[] bounds = new int[lats.length + 1];
+		int[] ordinals = new int[lats.length];
+		int count = split(tzWorld, lats, lons, bounds, ordinals, null);
+
+		List<Segment> segments = new ArrayList<Segment>(count);
+		for (int s = 0; s < count; s++) {
+			TimeZone tz = ordinals[s] >= 0 ? tzWorld.getTimeZone(ordinals[s]) : null;
+			segments.add(new Segment(bounds[s], bounds[s + 1], ordinals[s], tz, times));
+		}
+		return segments;
+	}
+
+	/**
+	 * Split a track into runs, in primitive form: run s covers samples
+	 * bounds[s] up to bounds[s+1] and has zone ordinals[s]
+	 * 
+	 * @param bounds
+	 *            at least one longer than the track
+	 * @param ordinals
+	 *            at least as long as the track
+	 * @param metrics
+	 *            to count the lookups in, or null for the world's own
+	 * @return number of runs
+	 */
+	static int split(TZWorld tzWorld, double[] lats, double[] lons, int[] bounds, int[] ordinals,
+			TZMetrics metrics) {
+		int n = lats.length;
+		if (lons.length != n)
+			throw new IllegalArgumentException("lats and lons must be the same length");
+		if (n == 0)
+			return 0;
+
+		TZLookupContext context = new TZLookupContext(tzWorld, metrics);
+		int count = 0;
+		int zone = context.findTimeZoneOrdinal(lats[0], lons[0]);
+		bounds[0] = 0;
+		int[] box = new int[4];
+		int stride = 1;
+		int i = 0;
+		while (i < n - 1) {
+			// i is in zone; try to skip ahead without looking anything up
+			int j = Math.min(i + stride, n - 1);
+			if (bounds(lats, lons, i, j, box)) {
+				int tile = commonTile(tzWorld.getIndex(), lats, lons, i, j);
+				if (tile >= 0 && !boundaryTouches(tzWorld, zone, tile, box)) {
+					i = j;
+					stride = Math.min(2 * stride, MAX_STRIDE);
+					continue;
+				}
+			}
+			if (stride > 1) {
+				stride /= 2;
+				continue;
+			}
+
+			int next = context.findTimeZoneOrdinal(lats[i + 1], lons[i + 1]);
+			if (next != zone) {
+				ordinals[count++] = zone;
+				bounds[count] = i + 1;
+				zone = next;
+			}
+			i++;
+		}
+		ordinals[count++] = zone;
+		bounds[count] = n;
+		return count;
+	}
+
+	/**
+	 * Bounding box of samples from to to (inclusive), as minX, minY, maxX,
+	 * maxY
+	 * 
+	 * @return false if some sample is out of range
+	 */
+	private static boolean bounds(double[] lats, double[] lons, int from, int to, int[] box) {
+		box[0] = box[1] = Integer.MAX_VALUE;
+		box[2] = box[3] = Integer.MIN_VALUE;
+		for (int k = from; k <= to; k++) {
+			if (!(lats[k] >= -90.0 && lats[k] <= 90.0 && lons[k] >= -180.0 && lons[k] <= 180.0))
+				return false;
+
+			int x = TZWorld.integerize(lons[k]);
+			int y = TZWorld.integerize(lats[k]);
+			box[0] = Math.min(box[0], x);
+			box[1] = Math.min(box[1], y);
+			box[2] = Math.max(box[2], x);
+			box[3] = Math.max(box[3], y);
+		}
+		return true;
+	}
+
+	/**
+	 * The index tile of samples from to to (inclusive), if they all fall in
+	 * tiles with the same candidates, so their lookups try the same extents in
+	 * the same order
+	 * 
+	 * @return the tile of the first sample, or -1 if they do not
+	 */
+	private static int commonTile(TZIndex index, double[] lats, double[] lons, int from, int to) {
+		int tile = TZWorld.getIndex(lats[from], lons[from]);
+		int last = tile;
+		for (int k = from; k <= to; k++) {
+			int t = TZWorld.getIndex(lats[k], lons[k]);
+			if (t < 0 || t >= TZWorld.INDEX_SIZE)
+				return -1;
+			if (t != last && !index.sameCandidates(tile, t))
+				return -1;
+			last = t;
+		}
+		return tile;
+	}
+
+	/**
+	 * Determine if a boundary that could change the lookup of points in a box
+	 * touches it. Points in tiles with the candidates of the given tile are
+	 * found in the first candidate containing them, so if none of the
+	 * candidates up to the zone, or all of them for no zone (-1), has an edge
+	 * touching the box, every point in the box is in the zone just when one of
+	 * them is.
+	 */
+	private static boolean boundaryTouches(TZWorld tzWorld, int zone, int tile, int[] box) {
+		TZIndex index = tzWorld.getIndex();
+		for (int k = index.start(tile), end = index.end(tile); k < end; k++) {
+			int i = index.candidate(k);
+			if (tzWorld.getTimeZoneExtent(i).getGeometry().edgeTouches(box[0], box[1], box[2], box[3]))
+				return true;
+			if (i == zone)
+				return false;
+		}
+		// a lookup here cannot find a zone the tile does not list
+		return zone >= 0;
+	}
+}
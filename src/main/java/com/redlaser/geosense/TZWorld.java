@@ -16,21 +16,23 @@
  */
 package com.redlaser.geosense;
 
-import java.awt.Polygon;
 import java.awt.Rectangle;
-import java.awt.geom.Point2D;
-import java.awt.geom.Rectangle2D;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
 import java.net.URL;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.redlaser.geosense.shapefile.ShapeFile;
 import com.redlaser.geosense.shapefile.ShapeFileShape;
-import com.redlaser.geosense.shapefile.ShapeType;
 
 /**
  * Access wrapper for the tz_world shapefile maintained by Eric Muller
@@ -52,98 +54,208 @@ import com.redlaser.geosense.shapefile.ShapeType;
  * @author Frank D. Russo
  */
 public class TZWorld {
-	private static final int SCALE_FACTOR = 10000000;	// doubles stored as ints shifted 7 decimal places left
-	private static final int INDEX_SIZE = 180 * 360;	// index by unit degrees
+	static final int SCALE_FACTOR = 10000000;	// doubles stored as ints shifted 7 decimal places left
+	static final int INDEX_SIZE = 180 * 360;	// index by unit degrees
+	static final double METERS_PER_DEGREE = 111700.0;	// upper bound, of latitude near the poles
+	static final String TZID = "TZID";	// .dbf field with the zone name
+	private static final int HILBERT_ORDER = 15;
+	private static final int BATCH_SORT_THRESHOLD = 64;	// below this, sorting costs more than it saves
+	private static final int PARALLEL_THRESHOLD = 16384;	// smallest chunk worth forking
 
 	private TZExtent[] tzExtents;
-	private int[][] index;
+	private TZIndex index;
+	private TZQuadtree quadtree;
+	private volatile TZCache cache;
+	private volatile TZRaster raster;
+	private volatile TZMetrics metrics;	// or null when not collecting
+	private final Map<String, Double> loadTimings = Collections
+			.synchronizedMap(new LinkedHashMap<String, Double>());
 
 	public TZWorld(URL tzroot, String mapName) throws IOException {
-		// read the shape file as a series of (multi) shapes
+		this(tzroot, mapName, new TZWorldConfig());
+	}
+
+	public TZWorld(URL tzroot, String mapName, TZWorldConfig config) throws IOException {
+		long start = System.nanoTime();
 		ShapeFile tzShapeFile = new ShapeFile(tzroot, mapName);
+		try {
+			// the zone name is the only metadata used
+			tzShapeFile.setColumns(TZID);
+			tzExtents = TZWorldLoader.readExtents(tzShapeFile, config);
+		}
+		finally {
+			tzShapeFile.close();
+		}
+		start = recordPhase("read", start);
+		if (config.isPackedRings()) {
+			TZWorldLoader.packRings(tzExtents);
+			start = recordPhase("pack", start);
+		}
 
-		List<TZExtent> tzx = new ArrayList<TZExtent>();
-		while (true) {
-			ShapeFileShape shape = tzShapeFile.readShape();
-			if (shape == null)
-				break;
+		index = TZWorldLoader.buildIndex(tzExtents, config.isParallelLoad());
+		start = recordPhase("index", start);
 
-			if (shape.getShapeType() == ShapeType.Polygon) {
-				// we can work with that
-				TZExtent extent = new TZExtent(shape);
-				tzx.add(extent);
-			}
+		// refine the tiles so most lookups need no polygon test at all
+		if (config.isQuadtree()) {
+			quadtree = TZQuadtree.build(tzExtents, index, config.getQuadtreeDepth(), config.getQuadtreeBudget());
+			start = recordPhase("quadtree", start);
 		}
-		tzShapeFile.close();
-
-		// convert to a more static array
-		tzExtents = tzx.toArray(new TZExtent[tzx.size()]);
-
-		// build an index by whole-degree tiles. the trick is, build the index
-		// on the bounds of the contained individual polygons rather than the
-		// whole thing, so we can gracefully deal with disjoint zones (e.g. GMT)
-		Map<Integer, List<Integer>> idxmap = new HashMap<Integer, List<Integer>>();
-		for (int i = 0; i < tzExtents.length; i++) {
-			TZExtent t = tzExtents[i];
-			for (Polygon path : t.includes) {
-				Rectangle r = path.getBounds();
-				// x = lon, y = lat !!!
-				for (Integer tile : getCoveredIndices(r.y, r.x, r.y + r.height, r.x + r.width)) {
-					if (!idxmap.containsKey(tile))
-						idxmap.put(tile, new ArrayList<Integer>());
-
-					List<Integer> list = idxmap.get(tile);
-					if (!list.contains(i))
-						list.add(i);
-				}
-			}
+
+		// and the rest need few edge tests even on long coastlines
+		if (config.getEdgeIndexThreshold() > 0) {
+			indexEdges(config.getEdgeIndexThreshold());
+			start = recordPhase("edgeindex", start);
 		}
 
-		index = new int[INDEX_SIZE][];
-		int[] sizes = new int[11];
-		for (int lat = -90; lat < 90; lat++) {
-			for (int lon = -180; lon < 180; lon++) {
-				int tile = getIndex(lat, lon);
-				List<Integer> tzs = idxmap.get(tile);
-				if (tzs == null)
-					sizes[0]++;
-				else {
-					index[tile] = new int[tzs.size()];
-					int l = index[tile].length;
-					for (int t = 0; t < l; t++)
-						index[tile][t] = tzs.get(t);
-
-					sizes[l < 10 ? l : 10]++;
-				}
-			}
+		// the edge index goes off the heap along with the vertices
+		if (config.isOffHeapGeometry() && !config.isPackedRings()) {
+			TZWorldLoader.moveOffHeap(tzExtents);
+			start = recordPhase("offheap", start);
+		}
+		if (config.getSimplifyTolerance() > 0) {
+			simplify(config.getSimplifyTolerance());
+			start = recordPhase("simplify", start);
 		}
+
+		if (config.getRasterResolution() > 0) {
+			raster = TZRaster.build(this, config.getRasterResolution(), config.getRasterBudget());
+			recordPhase("raster", start);
+		}
+
+		if (config.getCacheSize() > 0)
+			cache = new TZCache(config.getCacheSize(), config.getCacheQuantum());
 	}
 
 	/**
-	 * Map a lat,lon pair (unscaled) to a single tile in the index
+	 * Assemble from already-built extents and index, e.g. as read back from a
+	 * TZWorldSnapshot
 	 */
-	private static int getIndex(double lat, double lon) {
-		int idx = ((int) Math.floor(lat) + 90) * 360 + (int) Math.floor(lon) + 180;
-		return idx;
+	TZWorld(TZExtent[] tzExtents, TZIndex index, TZQuadtree quadtree) {
+		this.tzExtents = tzExtents;
+		this.index = index;
+		this.quadtree = quadtree;
+	}
+
+	/**
+	 * Index the edges of every ring with at least threshold vertices by
+	 * latitude band, see EdgeBands
+	 */
+	void indexEdges(int threshold) {
+		for (TZExtent extent : tzExtents)
+			extent.indexEdges(threshold);
+	}
+
+	/**
+	 * Simplify every extent's rings to within a tolerance, keeping the exact
+	 * rings for points near the simplified boundaries, see
+	 * SimplifiedGeometry
+	 * 
+	 * @param meters
+	 *            tolerance
+	 */
+	void simplify(double meters) {
+		// a degree is at most ~111.7 km in either direction, so this many
+		// units are at most the given meters anywhere
+		int tolerance = (int) (meters / METERS_PER_DEGREE * SCALE_FACTOR);
+		for (TZExtent extent : tzExtents)
+			extent.simplify(tolerance);
+	}
+
+	TZExtent[] getExtents() {
+		return tzExtents;
+	}
+
+	TZIndex getIndex() {
+		return index;
+	}
+
+	TZQuadtree getQuadtree() {
+		return quadtree;
+	}
+
+	public TZCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Put a cache of lookup results in front of findTimeZoneOrdinal and the
+	 * lookups built on it, or take it away with null. Only while building the
+	 * world, as the config does: once it is shared, say by GeoSenseData, a
+	 * quantized cache would change the answers every user of it gets.
+	 */
+	void setCache(TZCache cache) {
+		this.cache = cache;
 	}
 
 	/**
-	 * Generate a list of all index tiles covered by a lat,lon rectangle (as
-	 * scaled integers)
+	 * The raster answering most lookups, with its fallback counts, if one was
+	 * built
+	 * 
+	 * @return the raster, or null
+	 */
+	public TZRaster getRaster() {
+		return raster;
+	}
+
+	/**
+	 * Put a raster in front of the exact lookups, or take it away with null.
+	 * The raster must have been built from this world.
 	 */
-	private static Iterable<Integer> getCoveredIndices(int minLat, int minLon, int maxLat, int maxLon) {
-		// scale down
-		minLat = minLat / SCALE_FACTOR;
-		minLon = minLon / SCALE_FACTOR;
-		maxLat = maxLat / SCALE_FACTOR;
-		maxLon = maxLon / SCALE_FACTOR;
+	void setRaster(TZRaster raster) {
+		this.raster = raster;
+	}
+
+	public TZMetrics getMetrics() {
+		return metrics;
+	}
 
-		List<Integer> indices = new ArrayList<Integer>();
-		for (int lat = minLat; lat <= maxLat; lat++)
-			for (int lon = minLon; lon <= maxLon; lon++)
-				indices.add(getIndex(lat, lon));
+	/**
+	 * Count lookups into metrics, or stop with null. Lookups only pay for
+	 * the counting while metrics is enabled. Only while building the world;
+	 * to count the lookups of one user of a shared world, pass metrics to
+	 * findTimeZoneOrdinal(lat, lon, metrics), as GeoSenseHolder does.
+	 */
+	void setMetrics(TZMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Milliseconds each phase of building this world took, in order
+	 */
+	public Map<String, Double> getLoadTimings() {
+		synchronized (loadTimings) {
+			return new LinkedHashMap<String, Double>(loadTimings);
+		}
+	}
+
+	/**
+	 * Record the time since start as a load phase
+	 * 
+	 * @return now, as the start of the next phase
+	 */
+	long recordPhase(String phase, long start) {
+		long now = System.nanoTime();
+		loadTimings.put(phase, (now - start) / 1e6);
+		return now;
+	}
+
+	/**
+	 * Approximate size of the rings of all extents in bytes, see
+	 * Ring.getByteSize
+	 */
+	public long getGeometryBytes() {
+		long size = 0;
+		for (TZExtent extent : tzExtents)
+			size += extent.getByteSize();
+		return size;
+	}
 
-		return indices;
+	/**
+	 * Map a lat,lon pair (unscaled) to a single tile in the index
+	 */
+	static int getIndex(double lat, double lon) {
+		int idx = ((int) Math.floor(lat) + 90) * 360 + (int) Math.floor(lon) + 180;
+		return idx;
 	}
 
 	public TimeZone findTimeZone(double lat, double lon) {
@@ -152,80 +264,533 @@ public class TZWorld {
 	}
 
 	public TZExtent findTimeZoneExtent(double lat, double lon) {
+		int tzidx = findTimeZoneOrdinal(lat, lon);
+		return tzidx >= 0 ? tzExtents[tzidx] : null;
+	}
+
+	/**
+	 * Find the ordinal of the extent containing a point, for use with
+	 * getTimeZone(int) or getTimeZoneExtent(int)
+	 * 
+	 * @return ordinal, or -1 if no extent contains the point
+	 */
+	public int findTimeZoneOrdinal(double lat, double lon) {
+		return findTimeZoneOrdinal(lat, lon, metrics);
+	}
+
+	/**
+	 * As findTimeZoneOrdinal(lat, lon), timing and counting the lookup in the
+	 * given metrics rather than this world's own. Nothing is counted if they
+	 * are null or disabled, and lookups then pay nothing for them.
+	 */
+	public int findTimeZoneOrdinal(double lat, double lon, TZMetrics metrics) {
+		if (metrics != null && !metrics.isEnabled())
+			metrics = null;
+		long start = metrics != null ? System.nanoTime() : 0;
+
+		TZCache cache = this.cache;
+		long cell = 0;
+		int tzidx = TZCache.MISS;
+		if (cache != null) {
+			cell = cache.cell(lat, lon);
+			tzidx = cache.get(cell);
+		}
+		if (tzidx == TZCache.MISS) {
+			TZRaster raster = this.raster;
+			if (raster != null) {
+				tzidx = raster.find(lat, lon);
+				if (tzidx == TZRaster.BOUNDARY)
+					tzidx = TZCache.MISS;
+			}
+			if (tzidx == TZCache.MISS) {
+				tzidx = exactOrdinal(lat, lon, metrics);
+				if (metrics != null)
+					metrics.exactLookup(System.nanoTime() - start);
+			}
+			if (cache != null)
+				cache.put(cell, tzidx);
+		}
+		if (metrics != null)
+			metrics.lookup(System.nanoTime() - start, tzidx);
+		return tzidx;
+	}
+
+	/**
+	 * Lookup by the index and polygon tests alone, with no cache or raster
+	 */
+	int exactOrdinal(double lat, double lon) {
+		return exactOrdinal(lat, lon, null);
+	}
+
+	/**
+	 * As exactOrdinal(lat, lon), counting the extents and rings tested in
+	 * metrics, if not null
+	 */
+	private int exactOrdinal(double lat, double lon, TZMetrics metrics) {
 		int tile = getIndex(lat, lon);
-		if (index[tile] == null)
-			return null;
+		if (quadtree != null)
+			return quadtree.find(lat, lon, tile, tzExtents, metrics);
 
-		for (int tzidx : index[tile]) {
+		for (int k = index.start(tile), end = index.end(tile); k < end; k++) {
+			int tzidx = index.candidate(k);
 			TZExtent extent = tzExtents[tzidx];
-			if (extent.contains(lat, lon)) {
-				return extent;
+			if (metrics == null ? extent.contains(lat, lon) : extent.contains(lat, lon, metrics)) {
+				return tzidx;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Find the zone containing a point or, failing that, the zone whose
+	 * boundary is nearest to it, see TZNearest
+	 * 
+	 * @param maxDistanceKm
+	 *            how far to look
+	 * @return the zone and its distance, or null if none is nearer than
+	 *         maxDistanceKm
+	 */
+	public TZNearest findNearestTimeZone(double lat, double lon, double maxDistanceKm) {
+		return findNearestTimeZone(lat, lon, maxDistanceKm, metrics);
+	}
+
+	/**
+	 * As findNearestTimeZone(lat, lon, maxDistanceKm), counting the lookup in
+	 * the given metrics, or none if null
+	 */
+	TZNearest findNearestTimeZone(double lat, double lon, double maxDistanceKm, TZMetrics metrics) {
+		return TZNearest.find(this, lat, lon, maxDistanceKm, metrics);
+	}
+
+	/**
+	 * The distinct zones touching a rectangle, such as a map viewport, see
+	 * TZIntersection. A rectangle with minLon greater than maxLon crosses the
+	 * antimeridian.
+	 * 
+	 * @return the zones, in ordinal order
+	 */
+	public List<TimeZone> findTimeZones(double minLat, double minLon, double maxLat, double maxLon) {
+		if (!(minLat <= maxLat))
+			throw new IllegalArgumentException("minLat must not be greater than maxLat");
+
+		int minY = integerize(Math.max(minLat, -90.0));
+		int maxY = integerize(Math.min(maxLat, 90.0));
+		BitSet found;
+		if (minLon <= maxLon)
+			found = TZIntersection.inBox(this, integerize(Math.max(minLon, -180.0)), minY,
+					integerize(Math.min(maxLon, 180.0)), maxY);
+		else {
+			found = TZIntersection.inBox(this, integerize(Math.max(minLon, -180.0)), minY, integerize(180.0), maxY);
+			found.or(TZIntersection.inBox(this, integerize(-180.0), minY, integerize(Math.min(maxLon, 180.0)), maxY));
+		}
+		return TZIntersection.timeZones(this, found);
+	}
+
+	/**
+	 * The distinct zones touching a polygon, such as a delivery region, given
+	 * by its vertices in order (closing it is optional)
+	 * 
+	 * @return the zones, in ordinal order
+	 */
+	public List<TimeZone> findTimeZones(double[] lats, double[] lons) {
+		if (lats.length != lons.length || lats.length < 3)
+			throw new IllegalArgumentException("lats and lons must be the same length, at least 3");
+
+		int[] coords = new int[2 * lats.length];
+		for (int i = 0; i < lats.length; i++) {
+			coords[2 * i] = integerize(lons[i]);
+			coords[2 * i + 1] = integerize(lats[i]);
+		}
+		return TZIntersection.timeZones(this, TZIntersection.inPolygon(this, new ArrayRing(coords)));
+	}
+
+	/**
+	 * Batch lookup: fill ordinals[i] with findTimeZoneOrdinal(lats[i],
+	 * lons[i]). Points are visited along a Hilbert curve rather than in array
+	 * order, so consecutive lookups hit the same index tiles and geometry while
+	 * they are still in cache.
+	 */
+	public void findTimeZoneOrdinals(double[] lats, double[] lons, int[] ordinals) {
+		checkLengths(lats, lons, ordinals);
+		findTimeZoneOrdinals(lats, lons, ordinals, 0, lats.length, metrics);
+	}
+
+	static void checkLengths(double[] lats, double[] lons, int[] ordinals) {
+		if (lats.length != lons.length || ordinals.length < lats.length)
+			throw new IllegalArgumentException("lats, lons and ordinals must be the same length");
+	}
+
+	/**
+	 * Batch lookup of the points from (inclusive) to (exclusive)
+	 */
+	public void findTimeZoneOrdinals(double[] lats, double[] lons, int[] ordinals, int from, int to) {
+		findTimeZoneOrdinals(lats, lons, ordinals, from, to, metrics);
+	}
+
+	/**
+	 * As findTimeZoneOrdinals(lats, lons, ordinals, from, to), counting the
+	 * lookups in the given metrics, or none if null
+	 */
+	void findTimeZoneOrdinals(double[] lats, double[] lons, int[] ordinals, int from, int to, TZMetrics metrics) {
+		int n = to - from;
+		if (n < BATCH_SORT_THRESHOLD) {
+			for (int i = from; i < to; i++)
+				ordinals[i] = findTimeZoneOrdinal(lats[i], lons[i], metrics);
+			return;
+		}
+
+		// sort on hilbert key in the high word, position in the low word
+		long[] order = new long[n];
+		for (int i = 0; i < n; i++)
+			order[i] = ((long) hilbertKey(lats[from + i], lons[from + i]) << 32) | i;
+		Arrays.sort(order);
+
+		for (long key : order) {
+			int i = from + (int) key;
+			ordinals[i] = findTimeZoneOrdinal(lats[i], lons[i], metrics);
+		}
+	}
+
+	/**
+	 * Parallel batch lookup: the arrays are split into chunks that are looked
+	 * up as RecursiveActions on the given pool, or on the common pool if pool is
+	 * null. Each chunk writes only its own range of ordinals, so no state is
+	 * shared between tasks.
+	 */
+	public void findTimeZoneOrdinals(double[] lats, double[] lons, int[] ordinals, ForkJoinPool pool) {
+		findTimeZoneOrdinals(lats, lons, ordinals, pool, metrics);
+	}
+
+	/**
+	 * As findTimeZoneOrdinals(lats, lons, ordinals, pool), counting the
+	 * lookups in the given metrics, or none if null
+	 */
+	void findTimeZoneOrdinals(double[] lats, double[] lons, int[] ordinals, ForkJoinPool pool, TZMetrics metrics) {
+		checkLengths(lats, lons, ordinals);
+
+		if (pool == null)
+			pool = ForkJoinPool.commonPool();
+		pool.invoke(new LookupTask(this, metrics, lats, lons, ordinals, 0, lats.length));
+	}
+
+	/**
+	 * Number of distinct ordinals, i.e. extents
+	 */
+	public int getTimeZoneCount() {
+		return tzExtents.length;
+	}
+
+	public TimeZone getTimeZone(int ordinal) {
+		return tzExtents[ordinal].getTimeZone();
+	}
+
+	public TZExtent getTimeZoneExtent(int ordinal) {
+		return tzExtents[ordinal];
+	}
+
+	/**
+	 * Position of a point along a Hilbert curve over a 2^15 x 2^15 grid of the
+	 * globe (cells about 0.01 degree)
+	 */
+	static int hilbertKey(double lat, double lon) {
+		int n = 1 << HILBERT_ORDER;
+		int x = Math.min(n - 1, Math.max(0, (int) ((lon + 180.0) * (n / 360.0))));
+		int y = Math.min(n - 1, Math.max(0, (int) ((lat + 90.0) * (n / 180.0))));
+
+		int d = 0;
+		for (int s = n / 2; s > 0; s /= 2) {
+			int rx = (x & s) != 0 ? 1 : 0;
+			int ry = (y & s) != 0 ? 1 : 0;
+			d += s * s * ((3 * rx) ^ ry);
+
+			// rotate the quadrant so the curve stays continuous
+			if (ry == 0) {
+				if (rx == 1) {
+					x = n - 1 - x;
+					y = n - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
 			}
 		}
+		return d;
+	}
+
+	/**
+	 * Fork/join task for a range of a parallel batch lookup
+	 */
+	private static class LookupTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final TZWorld tzWorld;
+		private final TZMetrics metrics;	// or null
+		private final double[] lats;
+		private final double[] lons;
+		private final int[] ordinals;
+		private final int from;
+		private final int to;
+
+		LookupTask(TZWorld tzWorld, TZMetrics metrics, double[] lats, double[] lons, int[] ordinals, int from,
+				int to) {
+			this.tzWorld = tzWorld;
+			this.metrics = metrics;
+			this.lats = lats;
+			this.lons = lons;
+			this.ordinals = ordinals;
+			this.from = from;
+			this.to = to;
+		}
 
-		return null;
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_THRESHOLD) {
+				tzWorld.findTimeZoneOrdinals(lats, lons, ordinals, from, to, metrics);
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			invokeAll(new LookupTask(tzWorld, metrics, lats, lons, ordinals, from, mid), new LookupTask(tzWorld,
+					metrics, lats, lons, ordinals, mid, to));
+		}
 	}
 
-	private static int integerize(double coord) {
+	static int integerize(double coord) {
 		// shift 7 decimal places left and round down
 		return (int) Math.floor(coord * SCALE_FACTOR);
 	}
 
 	/**
 	 * Descriptor for the geographic extent of a standard time zone. May consist
-	 * of multiple disjoint polygonal regions.
+	 * of multiple disjoint polygonal regions (shells), each of which may have
+	 * holes. Each hole is associated with the shell that contains it, so a
+	 * lookup only tests the holes of a shell that actually contains the point.
+	 * A lazy extent holds only the bounds of its shells until a lookup needs
+	 * its rings, then decodes them into a soft reference: from its record in
+	 * the memory-mapped shapefile, or from a packed copy if the shapefile was
+	 * streamed. If the garbage collector clears them under memory pressure,
+	 * they are simply decoded again.
 	 * 
 	 * @author Frank D. Russo
 	 */
 	public static class TZExtent {
 		private TimeZone timeZone;
-		private Rectangle bbox;
-		private Polygon[] includes;
-		private Polygon[] excludes;
+		private int minX;
+		private int minY;
+		private int maxX;
+		private int maxY;
+
+		// geometry is set for an eager extent; a lazy one has shellBounds,
+		// and either source and recordNum or packed to decode from
+		private TZGeometry geometry;
+		private int[] shellBounds;
+		private ShapeFile source;
+		private int recordNum;
+		private byte[] packed;
+		private volatile SoftReference<TZGeometry> decoded;	// or null
+		private int edgeIndexThreshold;	// see indexEdges, 0 for none
+		private SimplifiedGeometry simplified;	// see simplify, or null
+
+		TZExtent(TimeZone timeZone, int minX, int minY, int maxX, int maxY, Ring[] shells, Ring[] holes,
+				int[] holeStart) {
+			this.timeZone = timeZone;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			this.geometry = new TZGeometry(shells, holes, holeStart);
+		}
 
 		protected TZExtent(ShapeFileShape shape) {
-			timeZone = TimeZone.getTimeZone((String) shape.getShapeMetadata().get("TZID"));
-			Rectangle2D bbox2D = shape.getBbox();
-			int x = integerize(bbox2D.getMinX());
-			int y = integerize(bbox2D.getMinY());
-			int w = integerize(bbox2D.getMaxX()) - x;
-			int h = integerize(bbox2D.getMaxY()) - y;
-			bbox = new Rectangle(x, y, w, h);
-
-			List<Polygon> includes = new ArrayList<Polygon>();
-			List<Polygon> excludes = new ArrayList<Polygon>();
-			for (Point2D[] part : shape.getShapeData()) {
-				int[] xs = new int[part.length];
-				int[] ys = new int[part.length];
-
-				Point2D last = null;
-				double area = 0.0;
-				for (int i = 0; i < part.length; i++) {
-					Point2D point = part[i];
-					xs[i] = integerize(point.getX());
-					ys[i] = integerize(point.getY());
-
-					if (last != null) {
-						// http://forums.esri.com/Thread.asp?c=2&f=1718&t=174277
-						area += (((point.getX() - last.getX()) * (point.getY() + last.getY())) / 2);
-					}
-					last = point;
-				}
+			this(shape, false);
+		}
+
+		/**
+		 * An eager extent, or a lazy one holding its rings packed
+		 */
+		TZExtent(ShapeFileShape shape, boolean lazy) {
+			readHeader(shape);
+			TZGeometry g = TZGeometry.fromShape(shape);
+			if (lazy) {
+				packed = g.pack();
+				shellBounds = shellBounds(g.shells);
+			}
+			else
+				geometry = g;
+		}
 
-				Polygon poly = new Polygon(xs, ys, part.length);
-				if (area > 0.0)
-					// clockwise ?? the sense appears to be opposite that
-					// indicated in the forum post
-					includes.add(poly);
-				else {
-					excludes.add(poly);
+		/**
+		 * A lazy extent that decodes its rings from a record of a mapped
+		 * shapefile
+		 * 
+		 * @param outline
+		 *            the record, as read by ShapeFile.readOutline
+		 */
+		TZExtent(ShapeFileShape outline, ShapeFile source) {
+			readHeader(outline);
+			this.source = source;
+			this.recordNum = outline.getRecordNum();
+
+			// shells are the clockwise parts, as in TZGeometry.fromShape
+			double[] parts = outline.getPartBounds();
+			int shells = 0;
+			for (int p = 4; p < parts.length; p += 5)
+				if (parts[p] > 0.0)
+					shells++;
+			shellBounds = new int[4 * shells];
+			for (int p = 0, b = 0; p < parts.length; p += 5) {
+				if (parts[p + 4] > 0.0) {
+					shellBounds[b++] = integerize(parts[p]);
+					shellBounds[b++] = integerize(parts[p + 1]);
+					shellBounds[b++] = integerize(parts[p + 2]);
+					shellBounds[b++] = integerize(parts[p + 3]);
 				}
 			}
+		}
+
+		private void readHeader(ShapeFileShape shape) {
+			timeZone = TimeZone.getTimeZone((String) shape.getShapeMetadata().get(TZID));
+			minX = integerize(shape.getXmin());
+			minY = integerize(shape.getYmin());
+			maxX = integerize(shape.getXmax());
+			maxY = integerize(shape.getYmax());
+		}
+
+		private static int[] shellBounds(Ring[] shells) {
+			int[] bounds = new int[4 * shells.length];
+			for (int s = 0; s < shells.length; s++) {
+				bounds[4 * s] = shells[s].getMinX();
+				bounds[4 * s + 1] = shells[s].getMinY();
+				bounds[4 * s + 2] = shells[s].getMaxX();
+				bounds[4 * s + 3] = shells[s].getMaxY();
+			}
+			return bounds;
+		}
+
+		/**
+		 * The rings, decoding them if this extent is lazy and they are not
+		 * currently cached
+		 */
+		TZGeometry getGeometry() {
+			if (geometry != null)
+				return geometry;
+
+			SoftReference<TZGeometry> ref = decoded;
+			TZGeometry g = ref != null ? ref.get() : null;
+			if (g == null) {
+				// racing threads may both decode; either result will do
+				g = decode();
+				if (edgeIndexThreshold > 0)
+					g.indexEdges(edgeIndexThreshold);
+				decoded = new SoftReference<TZGeometry>(g);
+			}
+			return g;
+		}
+
+		/**
+		 * Decode the rings of a lazy extent afresh
+		 */
+		private TZGeometry decode() {
+			if (packed != null)
+				return TZGeometry.unpack(packed);
+
+			try {
+				return TZGeometry.fromShape(source.readGeometry(recordNum));
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException("Cannot decode record " + recordNum + " of " + timeZone.getID(), e);
+			}
+		}
+
+		boolean isLazy() {
+			return geometry == null;
+		}
+
+		/**
+		 * Whether the rings are on hand now, without decoding: always for an
+		 * eager extent
+		 */
+		boolean isDecoded() {
+			SoftReference<TZGeometry> ref = decoded;
+			return geometry != null || (ref != null && ref.get() != null);
+		}
+
+		/**
+		 * Bounds of each shell as minX, minY, maxX, maxY, which for a lazy
+		 * extent are known without decoding its rings
+		 */
+		int[] getShellBounds() {
+			return geometry != null ? shellBounds(geometry.shells) : shellBounds;
+		}
+
+		/**
+		 * Replace the rings of an eager extent, e.g. with copies held off
+		 * the heap
+		 */
+		void setGeometry(TZGeometry geometry) {
+			if (this.geometry == null)
+				throw new IllegalStateException("lazy extent");
+			this.geometry = geometry;
+		}
+
+		/**
+		 * Answer containment tests from simplified rings where they can,
+		 * falling back to the exact rings near a simplified edge (see
+		 * SimplifiedGeometry). Simplified rings of at least the edge index
+		 * threshold get edge bands of their own.
+		 * 
+		 * @param tolerance
+		 *            in integerized units
+		 */
+		void simplify(int tolerance) {
+			// a lazy extent decodes just for this, and keeps nothing
+			simplified = SimplifiedGeometry.simplify(geometry != null ? geometry : decode(), tolerance,
+					edgeIndexThreshold);
+		}
+
+		SimplifiedGeometry getSimplified() {
+			return simplified;
+		}
+
+		/**
+		 * Index the edges of rings with at least threshold vertices (see
+		 * EdgeBands). A lazy extent indexes its rings again whenever it has to
+		 * decode them.
+		 */
+		void indexEdges(int threshold) {
+			edgeIndexThreshold = threshold;
+			SoftReference<TZGeometry> ref = decoded;
+			TZGeometry g = geometry != null ? geometry : ref != null ? ref.get() : null;
+			if (g != null)
+				g.indexEdges(threshold);
+		}
+
+		/**
+		 * Drop the decoded rings of a lazy extent, as the garbage collector
+		 * would
+		 */
+		void releaseGeometry() {
+			if (geometry == null)
+				decoded = null;
+		}
+
+		/**
+		 * Size of the packed rings of a lazy extent that has them, or 0
+		 */
+		int getPackedSize() {
+			return packed != null ? packed.length : 0;
+		}
 
-			if (!includes.isEmpty())
-				this.includes = includes.toArray(new Polygon[includes.size()]);
-			if (!excludes.isEmpty())
-				this.excludes = excludes.toArray(new Polygon[excludes.size()]);
+		/**
+		 * Approximate size of the rings in bytes: for a lazy extent, what it
+		 * holds between decodes (packed rings or just shell bounds), whether
+		 * or not they are also decoded just now
+		 */
+		long getByteSize() {
+			if (geometry != null)
+				return geometry.getByteSize();
+			return packed != null ? packed.length : 4L * shellBounds.length;
 		}
 
 		/**
@@ -236,10 +801,39 @@ public class TZWorld {
 		}
 
 		/**
-		 * The bounding rectangle of this extent
+		 * The bounding rectangle of this extent. Note this is the only part of
+		 * TZExtent that uses java.awt.
 		 */
 		public Rectangle getBbox() {
-			return bbox;
+			return new Rectangle(minX, minY, maxX - minX, maxY - minY);
+		}
+
+		int getMinX() {
+			return minX;
+		}
+
+		int getMinY() {
+			return minY;
+		}
+
+		int getMaxX() {
+			return maxX;
+		}
+
+		int getMaxY() {
+			return maxY;
+		}
+
+		Ring[] getShells() {
+			return getGeometry().shells;
+		}
+
+		Ring[] getHoles() {
+			return getGeometry().holes;
+		}
+
+		int[] getHoleStart() {
+			return getGeometry().holeStart;
 		}
 
 		/**
@@ -248,20 +842,39 @@ public class TZWorld {
 		public boolean contains(double lat, double lon) {
 			int ilat = integerize(lat);
 			int ilon = integerize(lon);
-			if (!bbox.contains(ilon, ilat))
+			if (!boundsContain(ilon, ilat))
 				return false;
 
-			if (excludes != null)
-				for (Polygon exclude : excludes)
-					if (exclude.contains(ilon, ilat))
-						return false;
+			if (simplified != null) {
+				int c = simplified.classify(ilon, ilat);
+				if (c != SimplifiedGeometry.NEAR)
+					return c == SimplifiedGeometry.IN;
+			}
+			return getGeometry().contains(ilon, ilat);
+		}
 
-			if (includes != null)
-				for (Polygon include : includes)
-					if (include.contains(ilon, ilat))
-						return true;
+		/**
+		 * As contains(lat, lon), counting the test in metrics
+		 */
+		boolean contains(double lat, double lon, TZMetrics metrics) {
+			int ilat = integerize(lat);
+			int ilon = integerize(lon);
+			metrics.candidate();
+			if (!boundsContain(ilon, ilat))
+				return false;
+
+			if (simplified != null) {
+				int c = simplified.classify(ilon, ilat);
+				if (c != SimplifiedGeometry.NEAR)
+					return c == SimplifiedGeometry.IN;
+			}
+			TZGeometry g = getGeometry();
+			g.count(ilon, ilat, metrics);
+			return g.contains(ilon, ilat);
+		}
 
-			return false;
+		boolean boundsContain(int x, int y) {
+			return x >= minX && y >= minY && x < maxX && y < maxY;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,311 @@
+/**
+ * TZWorldConfig.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+/**
+ * Tuning options for building a TZWorld. The defaults suit a typical server;
+ * each option can also be set by system property, see fromSystemProperties().
+ * 
+ * @author Frank D. Russo
+ */
+public class TZWorldConfig {
+	public static final String QUADTREE_DEPTH_PROPERTY = "geosense.quadtree.depth";
+	public static final String QUADTREE_BUDGET_PROPERTY = "geosense.quadtree.budget";
+	public static final String LAZY_GEOMETRY_PROPERTY = "geosense.lazy";
+	public static final String PACKED_RINGS_PROPERTY = "geosense.packed";
+	public static final String OFF_HEAP_GEOMETRY_PROPERTY = "geosense.offheap";
+	public static final String PARALLEL_LOAD_PROPERTY = "geosense.parallel";
+	public static final String EDGE_INDEX_THRESHOLD_PROPERTY = "geosense.edgeindex.threshold";
+	public static final String SIMPLIFY_TOLERANCE_PROPERTY = "geosense.simplify.meters";
+	public static final String RASTER_RESOLUTION_PROPERTY = "geosense.raster.resolution";
+	public static final String RASTER_BUDGET_PROPERTY = "geosense.raster.budget";
+	public static final String CACHE_SIZE_PROPERTY = "geosense.cache.size";
+	public static final String CACHE_QUANTUM_PROPERTY = "geosense.cache.quantum";
+
+	private boolean quadtree = true;
+	private int quadtreeDepth = 6;
+	private long quadtreeBudget = 16L * 1024 * 1024;
+	private boolean lazyGeometry = false;
+	private boolean packedRings = false;
+	private boolean offHeapGeometry = false;
+	private boolean parallelLoad = true;
+	private int edgeIndexThreshold = 512;
+	private double simplifyTolerance = 0;
+	private double rasterResolution = 0;
+	private long rasterBudget = 64L * 1024 * 1024;
+	private int cacheSize = 0;
+	private double cacheQuantum = TZCache.DEFAULT_QUANTUM;
+
+	/**
+	 * Read options from system properties, falling back to the defaults for
+	 * any that are not set:
+	 * <ul>
+	 * <li>geosense.quadtree.depth - see setQuadtreeDepth; negative disables
+	 * the quadtree</li>
+	 * <li>geosense.quadtree.budget - see setQuadtreeBudget, in bytes</li>
+	 * <li>geosense.lazy - see setLazyGeometry</li>
+	 * <li>geosense.packed - see setPackedRings</li>
+	 * <li>geosense.offheap - see setOffHeapGeometry</li>
+	 * <li>geosense.parallel - see setParallelLoad</li>
+	 * <li>geosense.edgeindex.threshold - see setEdgeIndexThreshold; 0
+	 * disables the edge index</li>
+	 * <li>geosense.simplify.meters - see setSimplifyTolerance</li>
+	 * <li>geosense.raster.resolution - see setRasterResolution, in degrees</li>
+	 * <li>geosense.raster.budget - see setRasterBudget, in bytes</li>
+	 * <li>geosense.cache.size - see setCacheSize</li>
+	 * <li>geosense.cache.quantum - see setCacheQuantum, in degrees</li>
+	 * </ul>
+	 */
+	public static TZWorldConfig fromSystemProperties() {
+		TZWorldConfig config = new TZWorldConfig();
+
+		String depth = System.getProperty(QUADTREE_DEPTH_PROPERTY);
+		if (depth != null) {
+			config.setQuadtreeDepth(Integer.parseInt(depth.trim()));
+			config.setQuadtree(config.getQuadtreeDepth() >= 0);
+		}
+
+		String budget = System.getProperty(QUADTREE_BUDGET_PROPERTY);
+		if (budget != null)
+			config.setQuadtreeBudget(Long.parseLong(budget.trim()));
+
+		String lazy = System.getProperty(LAZY_GEOMETRY_PROPERTY);
+		if (lazy != null)
+			config.setLazyGeometry(Boolean.parseBoolean(lazy.trim()));
+
+		String packed = System.getProperty(PACKED_RINGS_PROPERTY);
+		if (packed != null)
+			config.setPackedRings(Boolean.parseBoolean(packed.trim()));
+
+		String offHeap = System.getProperty(OFF_HEAP_GEOMETRY_PROPERTY);
+		if (offHeap != null)
+			config.setOffHeapGeometry(Boolean.parseBoolean(offHeap.trim()));
+
+		String parallel = System.getProperty(PARALLEL_LOAD_PROPERTY);
+		if (parallel != null)
+			config.setParallelLoad(Boolean.parseBoolean(parallel.trim()));
+
+		String edgeIndex = System.getProperty(EDGE_INDEX_THRESHOLD_PROPERTY);
+		if (edgeIndex != null)
+			config.setEdgeIndexThreshold(Integer.parseInt(edgeIndex.trim()));
+
+		String simplify = System.getProperty(SIMPLIFY_TOLERANCE_PROPERTY);
+		if (simplify != null)
+			config.setSimplifyTolerance(Double.parseDouble(simplify.trim()));
+
+		String resolution = System.getProperty(RASTER_RESOLUTION_PROPERTY);
+		if (resolution != null)
+			config.setRasterResolution(Double.parseDouble(resolution.trim()));
+
+		String rasterBudget = System.getProperty(RASTER_BUDGET_PROPERTY);
+		if (rasterBudget != null)
+			config.setRasterBudget(Long.parseLong(rasterBudget.trim()));
+
+		String cacheSize = System.getProperty(CACHE_SIZE_PROPERTY);
+		if (cacheSize != null)
+			config.setCacheSize(Integer.parseInt(cacheSize.trim()));
+
+		String cacheQuantum = System.getProperty(CACHE_QUANTUM_PROPERTY);
+		if (cacheQuantum != null)
+			config.setCacheQuantum(Double.parseDouble(cacheQuantum.trim()));
+
+		return config;
+	}
+
+	public boolean isQuadtree() {
+		return quadtree;
+	}
+
+	/**
+	 * Whether to build the adaptive quadtree over the tile index (see
+	 * TZQuadtree). Without it, every lookup tests the candidate extents of
+	 * its whole-degree tile.
+	 */
+	public void setQuadtree(boolean quadtree) {
+		this.quadtree = quadtree;
+	}
+
+	public int getQuadtreeDepth() {
+		return quadtreeDepth;
+	}
+
+	/**
+	 * Maximum number of times a whole-degree tile is split in four. Depth 0
+	 * classifies whole tiles only; the default of 6 goes down to cells of
+	 * 1/64 degree (under 2 km).
+	 */
+	public void setQuadtreeDepth(int quadtreeDepth) {
+		this.quadtreeDepth = quadtreeDepth;
+	}
+
+	public long getQuadtreeBudget() {
+		return quadtreeBudget;
+	}
+
+	/**
+	 * Approximate upper bound on quadtree memory, in bytes. Once it is spent,
+	 * remaining cells are not split any further.
+	 */
+	public void setQuadtreeBudget(long quadtreeBudget) {
+		this.quadtreeBudget = quadtreeBudget;
+	}
+
+	public boolean isLazyGeometry() {
+		return lazyGeometry;
+	}
+
+	/**
+	 * Whether to load only the bounds of each zone's shells, and decode its
+	 * rings when a lookup first needs them (see TZWorld.TZExtent): from the
+	 * shapefile if it is memory-mapped, or else from a packed copy. The tile
+	 * index and quadtree are built from the bounds alone, so this cuts both
+	 * startup time and resident heap when traffic comes from a few zones, at
+	 * the cost of a decode on first use and a quadtree that always ends in
+	 * polygon tests. Simplified rings and a raster still visit every zone's
+	 * rings once at load.
+	 */
+	public void setLazyGeometry(boolean lazyGeometry) {
+		this.lazyGeometry = lazyGeometry;
+	}
+
+	public boolean isPackedRings() {
+		return packedRings;
+	}
+
+	/**
+	 * Whether to keep ring vertices delta-encoded, decoding them on the fly
+	 * in containment tests (see PackedRing). Finely traced boundaries take
+	 * about half the memory of plain rings, coarse ones less of a saving, at
+	 * a similar lookup speed, but rings get no edge index.
+	 * Applies to eager geometry only, and takes precedence over
+	 * setOffHeapGeometry.
+	 */
+	public void setPackedRings(boolean packedRings) {
+		this.packedRings = packedRings;
+	}
+
+	public boolean isOffHeapGeometry() {
+		return offHeapGeometry;
+	}
+
+	/**
+	 * Whether to keep the ring vertices and their edge indexes in direct
+	 * buffers outside the Java heap, where the garbage collector never scans
+	 * or copies them. The heap keeps a handle per ring, along with the tile
+	 * index and the quadtree (see setQuadtreeBudget). Applies to eager
+	 * geometry only, so setLazyGeometry takes precedence. A memory-mapped
+	 * TZWorldSnapshot is off the heap already.
+	 */
+	public void setOffHeapGeometry(boolean offHeapGeometry) {
+		this.offHeapGeometry = offHeapGeometry;
+	}
+
+	public boolean isParallelLoad() {
+		return parallelLoad;
+	}
+
+	/**
+	 * Whether to load on all cores, via the common fork/join pool. Shapefile
+	 * records are decoded in parallel when the shapefile is a local file
+	 * (so it can be memory-mapped), and the tile index is built in parallel
+	 * over ranges of tiles. Without it, both run in the calling thread.
+	 */
+	public void setParallelLoad(boolean parallelLoad) {
+		this.parallelLoad = parallelLoad;
+	}
+
+	public int getEdgeIndexThreshold() {
+		return edgeIndexThreshold;
+	}
+
+	/**
+	 * Rings with at least this many vertices get an index of their edges by
+	 * latitude band (see EdgeBands), so a containment test scans only the
+	 * few edges near the point rather than the whole ring. Smaller rings are
+	 * scanned as before. 0 or less disables the index.
+	 */
+	public void setEdgeIndexThreshold(int edgeIndexThreshold) {
+		this.edgeIndexThreshold = edgeIndexThreshold;
+	}
+
+	public double getSimplifyTolerance() {
+		return simplifyTolerance;
+	}
+
+	/**
+	 * Error bound in meters for simplified copies of every ring (see
+	 * SimplifiedGeometry), or 0 for none. Lookups further than this from a
+	 * simplified boundary are answered from the simplified rings alone, and
+	 * the rest from the exact rings, so answers do not change. The simplified
+	 * rings are kept in addition to the exact ones, so this costs memory
+	 * rather than saving it; together with setLazyGeometry, the exact rings
+	 * are only decoded when a lookup near a boundary needs them.
+	 */
+	public void setSimplifyTolerance(double simplifyTolerance) {
+		this.simplifyTolerance = simplifyTolerance;
+	}
+
+	public double getRasterResolution() {
+		return rasterResolution;
+	}
+
+	/**
+	 * Cell size in degrees of a raster answering most lookups with no polygon
+	 * test (see TZRaster), or 0 for none. Rounded up to a size that divides a
+	 * degree evenly, e.g. 0.01.
+	 */
+	public void setRasterResolution(double rasterResolution) {
+		this.rasterResolution = rasterResolution;
+	}
+
+	public long getRasterBudget() {
+		return rasterBudget;
+	}
+
+	/**
+	 * Hard limit on the size of the raster in bytes. A raster that would not
+	 * fit is built at a coarser resolution instead, or not at all.
+	 */
+	public void setRasterBudget(long rasterBudget) {
+		this.rasterBudget = rasterBudget;
+	}
+
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * Number of grid cells to remember lookup results for (see TZCache), or 0
+	 * for no cache
+	 */
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
+	public double getCacheQuantum() {
+		return cacheQuantum;
+	}
+
+	/**
+	 * Size in degrees of the cache's grid cells. Points in the same cell share
+	 * a cached result, so near zone boundaries a coarser grid may answer with
+	 * a neighbouring zone.
+	 */
+	public void setCacheQuantum(double cacheQuantum) {
+		this.cacheQuantum = cacheQuantum;
+	}
+}
@@ -0,0 +1,386 @@
+/**
+ * TZWorldLoader.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.redlaser.geosense.TZWorld.TZExtent;
+import com.redlaser.geosense.shapefile.ShapeFile;
+import com.redlaser.geosense.shapefile.ShapeFileShape;
+import com.redlaser.geosense.shapefile.ShapeType;
+
+/**
+ * Startup work for TZWorld: reading extents from the shapefile and building
+ * the tile index. With a memory-mapped shapefile, records are decoded in
+ * parallel on the common fork/join pool; the index is built in parallel
+ * over disjoint ranges of tiles, in two passes over primitive arrays, one
+ * counting the candidates of each tile and one filling them in, so the
+ * partitions need no merging beyond landing in the same arrays. Results are
+ * the same as a sequential load, in the same order.
+ * 
+ * @author Frank D. Russo
+ */
+class TZWorldLoader {
+	private static final int TILES_PER_TASK = TZWorld.INDEX_SIZE / 64;
+	private static final int MAX_BUFFER = 1 << 30;	// bytes of vertices per direct buffer
+
+	private TZWorldLoader() {
+	}
+
+	/**
+	 * Read the polygon shapes of a shapefile as extents, in record order. Lazy
+	 * extents from a mapped shapefile read just the outline of each record,
+	 * leaving the coordinates in the file until a lookup needs them.
+	 */
+	static TZExtent[] readExtents(ShapeFile shapeFile, TZWorldConfig config) throws IOException {
+		boolean lazy = config.isLazyGeometry();
+		if (shapeFile.isMapped() && (config.isParallelLoad() || lazy)) {
+			TZExtent[] extents = new TZExtent[shapeFile.getNumRecords()];
+			if (config.isParallelLoad()) {
+				AtomicReference<IOException> failure = new AtomicReference<IOException>();
+				ForkJoinPool.commonPool().invoke(new ExtentTask(shapeFile, lazy, extents, 0, extents.length, failure));
+				if (failure.get() != null)
+					throw failure.get();
+			}
+			else {
+				for (int i = 0; i < extents.length; i++)
+					extents[i] = readExtent(shapeFile, i + 1, lazy);
+			}
+
+			// drop records of other shape types
+			List<TZExtent> tzx = new ArrayList<TZExtent>(extents.length);
+			for (TZExtent extent : extents)
+				if (extent != null)
+					tzx.add(extent);
+			return tzx.toArray(new TZExtent[tzx.size()]);
+		}
+
+		// read the shape file as a series of (multi) shapes
+		List<TZExtent> tzx = new ArrayList<TZExtent>();
+		while (true) {
+			ShapeFileShape shape = shapeFile.readShape();
+			if (shape == null)
+				break;
+
+			if (shape.getShapeType() == ShapeType.Polygon) {
+				// we can work with that
+				TZExtent extent = new TZExtent(shape, lazy);
+				tzx.add(extent);
+			}
+		}
+		return tzx.toArray(new TZExtent[tzx.size()]);
+	}
+
+	/**
+	 * Read one record of a mapped shapefile as an extent
+	 * 
+	 * @return the extent, or null if the record is not a polygon
+	 */
+	private static TZExtent readExtent(ShapeFile shapeFile, int recordNum, boolean lazy) throws IOException {
+		ShapeFileShape shape = lazy ? shapeFile.readOutline(recordNum) : shapeFile.readShape(recordNum);
+		if (shape.getShapeType() != ShapeType.Polygon)
+			return null;
+		return lazy ? new TZExtent(shape, shapeFile) : new TZExtent(shape, false);
+	}
+
+	/**
+	 * Move the ring vertices of eager extents off the heap, with their edge
+	 * indexes, into direct buffers that the rings then read in place (see
+	 * BufferRing). All of it shares one buffer unless it passes 1 GB, so what
+	 * stays on the heap is a handle per ring. Lazy extents are left alone.
+	 * 
+	 * @return number of bytes moved
+	 * @throws IllegalArgumentException
+	 *             if a single ring does not fit in a buffer
+	 */
+	static long moveOffHeap(TZExtent[] extents) {
+		return moveOffHeap(extents, MAX_BUFFER);
+	}
+
+	static long moveOffHeap(TZExtent[] extents, int maxBuffer) {
+		long total = 0;
+		for (TZExtent extent : extents)
+			if (!extent.isLazy())
+				total += extent.getGeometry().getByteSize();
+
+		DirectBuffers buffers = new DirectBuffers(total, maxBuffer);
+		for (TZExtent extent : extents) {
+			if (extent.isLazy())
+				continue;
+
+			TZGeometry g = extent.getGeometry();
+			Ring[] shells = new Ring[g.shells.length];
+			for (int s = 0; s < shells.length; s++)
+				shells[s] = copy(g.shells[s], buffers);
+			Ring[] holes = new Ring[g.holes.length];
+			for (int h = 0; h < holes.length; h++)
+				holes[h] = copy(g.holes[h], buffers);
+			extent.setGeometry(new TZGeometry(shells, holes, g.holeStart));
+		}
+		return total;
+	}
+
+	/**
+	 * Delta-encode the rings of eager extents in place, see PackedRing. Lazy
+	 * extents are left alone.
+	 * 
+	 * @return number of bytes the packed rings take
+	 */
+	static long packRings(TZExtent[] extents) {
+		long total = 0;
+		for (TZExtent extent : extents) {
+			if (extent.isLazy())
+				continue;
+
+			TZGeometry g = extent.getGeometry();
+			Ring[] shells = new Ring[g.shells.length];
+			for (int s = 0; s < shells.length; s++) {
+				PackedRing ring = new PackedRing(g.shells[s]);
+				total += ring.getPackedSize();
+				shells[s] = ring;
+			}
+			Ring[] holes = new Ring[g.holes.length];
+			for (int h = 0; h < holes.length; h++) {
+				PackedRing ring = new PackedRing(g.holes[h]);
+				total += ring.getPackedSize();
+				holes[h] = ring;
+			}
+			extent.setGeometry(new TZGeometry(shells, holes, g.holeStart));
+		}
+		return total;
+	}
+
+	/**
+	 * Copy a ring, and its edge index if it has one, each in one piece
+	 */
+	private static Ring copy(Ring ring, DirectBuffers buffers) {
+		int n = ring.size();
+		ByteBuffer buffer = buffers.take(8L * n);
+		int offset = buffer.position();
+		for (int i = 0; i < n; i++) {
+			buffer.putInt(ring.getX(i));
+			buffer.putInt(ring.getY(i));
+		}
+		BufferRing copy = new BufferRing(buffer, offset, n, ring.getMinX(), ring.getMinY(), ring.getMaxX(),
+				ring.getMaxY());
+		if (ring.bands != null)
+			copy.bands = ring.bands.copyTo(buffers.take(ring.bands.getSize()));
+		return copy;
+	}
+
+	/**
+	 * Direct buffers of at most a maximum size, handed out in pieces. A new
+	 * buffer is allocated whenever a piece does not fit in the current one,
+	 * sized for whatever is still to come.
+	 */
+	private static final class DirectBuffers {
+		private final int maxBuffer;
+		private long remaining;	// bytes still to be taken
+		private ByteBuffer buffer;
+
+		DirectBuffers(long total, int maxBuffer) {
+			this.remaining = total;
+			this.maxBuffer = maxBuffer;
+		}
+
+		/**
+		 * A buffer with room for a piece at its position
+		 */
+		ByteBuffer take(long size) {
+			if (size > maxBuffer)
+				throw new IllegalArgumentException("a ring of " + size + " bytes does not fit in a direct buffer of "
+						+ maxBuffer);
+			if (buffer == null || buffer.remaining() < size) {
+				buffer = ByteBuffer.allocateDirect((int) Math.min(Math.max(remaining, size), maxBuffer));
+				buffer.order(ByteOrder.nativeOrder());
+			}
+			remaining -= size;
+			return buffer;
+		}
+	}
+
+	/**
+	 * Build an index by whole-degree tiles. the trick is, build the index on
+	 * the bounds of the contained individual polygons rather than the whole
+	 * thing, so we can gracefully deal with disjoint zones (e.g. GMT)
+	 */
+	static TZIndex buildIndex(TZExtent[] extents, boolean parallel) {
+		// bounds of every shell up front, which lazy extents have without
+		// decoding
+		int[][] shellBounds = new int[extents.length][];
+		for (int i = 0; i < extents.length; i++) {
+			int[] bounds = extents[i].getShellBounds();
+			shellBounds[i] = new int[bounds.length];
+			for (int b = 0; b < bounds.length; b += 4) {
+				// x = lon, y = lat !!!
+				shellBounds[i][b] = bounds[b + 1];
+				shellBounds[i][b + 1] = bounds[b];
+				shellBounds[i][b + 2] = bounds[b + 3];
+				shellBounds[i][b + 3] = bounds[b + 2];
+			}
+		}
+
+		// count the candidates of each tile into offsets[tile + 1]
+		int[] offsets = new int[TZWorld.INDEX_SIZE + 1];
+		runIndexTask(new IndexTask(shellBounds, offsets, null, null, 0, TZWorld.INDEX_SIZE), parallel);
+		for (int tile = 0; tile < TZWorld.INDEX_SIZE; tile++)
+			offsets[tile + 1] += offsets[tile];
+
+		// then fill them in, over the same tiles in the same order
+		int[] candidates = new int[offsets[TZWorld.INDEX_SIZE]];
+		int[] next = Arrays.copyOf(offsets, TZWorld.INDEX_SIZE);
+		runIndexTask(new IndexTask(shellBounds, offsets, next, candidates, 0, TZWorld.INDEX_SIZE), parallel);
+		return new TZIndex(offsets, candidates);
+	}
+
+	private static void runIndexTask(IndexTask task, boolean parallel) {
+		// compute() would fork its halves onto the common pool even from
+		// here, so a sequential build scans the whole range itself
+		if (parallel)
+			ForkJoinPool.commonPool().invoke(task);
+		else
+			task.scan();
+	}
+
+	/**
+	 * Decodes a range of records into extents
+	 */
+	private static class ExtentTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final ShapeFile shapeFile;
+		private final boolean lazy;
+		private final TZExtent[] extents;
+		private final int from;
+		private final int to;
+		private final AtomicReference<IOException> failure;
+
+		ExtentTask(ShapeFile shapeFile, boolean lazy, TZExtent[] extents, int from, int to,
+				AtomicReference<IOException> failure) {
+			this.shapeFile = shapeFile;
+			this.lazy = lazy;
+			this.extents = extents;
+			this.from = from;
+			this.to = to;
+			this.failure = failure;
+		}
+
+		@Override
+		protected void compute() {
+			// records vary from a handful of vertices to hundreds of
+			// thousands, so split all the way down to single records
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ExtentTask(shapeFile, lazy, extents, from, mid, failure),
+						new ExtentTask(shapeFile, lazy, extents, mid, to, failure));
+				return;
+			}
+
+			try {
+				extents[from] = readExtent(shapeFile, from + 1, lazy);
+			}
+			catch (IOException e) {
+				failure.compareAndSet(null, e);
+			}
+		}
+	}
+
+	/**
+	 * Counts or fills the candidates of a range of tiles, counting when there
+	 * is nowhere to fill them yet. Ranges are disjoint, and each visits the
+	 * extents in order, so every tile lists its extents in the same order as
+	 * a sequential build.
+	 */
+	private static class IndexTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int[][] shellBounds;
+		private final int[] offsets;
+		private final int[] next;
+		private final int[] candidates;
+		private final int from;
+		private final int to;
+
+		/**
+		 * @param next
+		 *            where the next candidate of each tile goes, or null to
+		 *            count into offsets[tile + 1]
+		 */
+		IndexTask(int[][] shellBounds, int[] offsets, int[] next, int[] candidates, int from, int to) {
+			this.shellBounds = shellBounds;
+			this.offsets = offsets;
+			this.next = next;
+			this.candidates = candidates;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > TILES_PER_TASK) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new IndexTask(shellBounds, offsets, next, candidates, from, mid), new IndexTask(shellBounds,
+						offsets, next, candidates, mid, to));
+				return;
+			}
+			scan();
+		}
+
+		/**
+		 * Count or fill the whole range in this thread
+		 */
+		void scan() {
+			// the last extent added to each tile; extents come in order, so a
+			// repeat is always the last one
+			int[] last = new int[to - from];
+			Arrays.fill(last, -1);
+			for (int i = 0; i < shellBounds.length; i++) {
+				int[] bounds = shellBounds[i];
+				for (int b = 0; b < bounds.length; b += 4) {
+					// round down, as getIndex does, so negative bounds that are
+					// not whole degrees keep their first tile
+					int minLat = Math.floorDiv(bounds[b], TZWorld.SCALE_FACTOR);
+					int minLon = Math.floorDiv(bounds[b + 1], TZWorld.SCALE_FACTOR);
+					int maxLat = Math.floorDiv(bounds[b + 2], TZWorld.SCALE_FACTOR);
+					int maxLon = Math.floorDiv(bounds[b + 3], TZWorld.SCALE_FACTOR);
+					for (int lat = minLat; lat <= maxLat; lat++) {
+						int first = TZWorld.getIndex(lat, minLon);
+						int end = TZWorld.getIndex(lat, maxLon);
+						for (int tile = Math.max(first, from); tile <= end && tile < to; tile++) {
+							if (last[tile - from] == i)
+								continue;
+							last[tile - from] = i;
+
+							if (next == null)
+								offsets[tile + 1]++;
+							else
+								candidates[next[tile]++] = i;
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,441 @@
+/**
+ * TZWorldSnapshot.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.TimeZone;
+
+import com.redlaser.geosense.TZWorld.TZExtent;
+
+/**
+ * Precompiled binary form of a TZWorld. Building a TZWorld from the tz_world
+ * shapefile means parsing every vertex as a pair of doubles, integerizing it
+ * and rebuilding the tile index, which takes seconds. A snapshot stores the
+ * result of all that - integerized rings, extent bounds and tile index - so
+ * it can be memory-mapped and used as is, in milliseconds. Ring vertices are
+ * never copied onto the heap: lookups read them straight from the mapped
+ * buffer, so JVMs on the same host share a single copy in the page cache.
+ * 
+ * <p>
+ * The format is versioned; a snapshot written by a different format version is
+ * rejected rather than misread. Layout (all ints little-endian):
+ * 
+ * <pre>
+ * header   MAGIC, VERSION, extentCount, ringCount, tileCount, candidateCount, vertexCount
+ * extents  per extent: tzid length, tzid UTF-8 bytes, minX, minY, maxX, maxY, shellCount, holeCount,
+ *          shellCount+1 hole group starts (see TZExtent)
+ * rings    per ring (shells then holes, in extent order): minX, minY, maxX, maxY, n
+ * index    tileCount+1 offsets into candidates, then candidateCount extent numbers
+ * vertices vertexCount (x,y) pairs, ring after ring
+ * quadtree depth (-1 if none), node count, list length, then tileCount roots, nodes, lists (see TZQuadtree)
+ * </pre>
+ * 
+ * A snapshot is typically built once at build time, either with the
+ * <code>snapshot</code> maven profile or by running this class directly:
+ * 
+ * <pre>
+ * java com.redlaser.geosense.TZWorldSnapshot &lt;shapefile dir&gt; &lt;map name&gt; &lt;output file&gt;
+ * </pre>
+ * 
+ * @author Frank D. Russo
+ */
+public class TZWorldSnapshot {
+	public static final String EXTENSION = ".tzs";
+	public static final int VERSION = 4;
+
+	private static final int MAGIC = 0x5A544753; // "GSTZ" little-endian
+
+	/**
+	 * Write a snapshot of a TZWorld to a stream. The stream is not closed.
+	 */
+	public static void write(TZWorld tzWorld, OutputStream os) throws IOException {
+		TZExtent[] extents = tzWorld.getExtents();
+		TZIndex index = tzWorld.getIndex();
+
+		int ringCount = 0;
+		int vertexCount = 0;
+		for (TZExtent extent : extents) {
+			for (Ring ring : rings(extent)) {
+				ringCount++;
+				vertexCount += ring.size();
+			}
+		}
+
+		LittleEndianOutput out = new LittleEndianOutput(os);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(extents.length);
+		out.writeInt(ringCount);
+		out.writeInt(TZWorld.INDEX_SIZE);
+		out.writeInt(index.getCandidateCount());
+		out.writeInt(vertexCount);
+
+		for (TZExtent extent : extents) {
+			byte[] tzid = extent.getTimeZone().getID().getBytes("UTF-8");
+			out.writeInt(tzid.length);
+			out.write(tzid);
+
+			out.writeInt(extent.getMinX());
+			out.writeInt(extent.getMinY());
+			out.writeInt(extent.getMaxX());
+			out.writeInt(extent.getMaxY());
+			out.writeInt(extent.getShells().length);
+			out.writeInt(extent.getHoles().length);
+			for (int start : extent.getHoleStart())
+				out.writeInt(start);
+		}
+
+		for (TZExtent extent : extents) {
+			for (Ring ring : rings(extent)) {
+				out.writeInt(ring.getMinX());
+				out.writeInt(ring.getMinY());
+				out.writeInt(ring.getMaxX());
+				out.writeInt(ring.getMaxY());
+				out.writeInt(ring.size());
+			}
+		}
+
+		// the index is kept in this form, so it goes out as it is
+		for (int offset : index.getOffsets())
+			out.writeInt(offset);
+		for (int candidate : index.getCandidates())
+			out.writeInt(candidate);
+
+		for (TZExtent extent : extents) {
+			for (Ring ring : rings(extent)) {
+				int n = ring.size();
+				Ring.Cursor cursor = ring.cursor();
+				for (int i = 0; i < n; i++) {
+					cursor.next();
+					out.writeInt(cursor.x);
+					out.writeInt(cursor.y);
+				}
+			}
+		}
+
+		TZQuadtree quadtree = tzWorld.getQuadtree();
+		if (quadtree == null)
+			out.writeInt(-1);
+		else {
+			out.writeInt(quadtree.getDepth());
+			out.writeInt(quadtree.getNodes().length);
+			out.writeInt(quadtree.getLists().length);
+			for (int[] array : new int[][] { quadtree.getRoots(), quadtree.getNodes(), quadtree.getLists() })
+				for (int v : array)
+					out.writeInt(v);
+		}
+
+		out.flush();
+	}
+
+	/**
+	 * Write a snapshot of a TZWorld to a file
+	 */
+	public static void write(TZWorld tzWorld, File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			write(tzWorld, out);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Memory-map a snapshot file. The mapping stays valid after this returns,
+	 * for as long as the TZWorld is reachable.
+	 */
+	public static TZWorld map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Load a snapshot from a URL, mapping it if it is a plain file (e.g. an
+	 * exploded classpath) or reading it into a direct buffer otherwise (e.g.
+	 * inside a jar).
+	 */
+	public static TZWorld load(URL url) throws IOException {
+		if ("file".equals(url.getProtocol())) {
+			try {
+				return map(new File(url.toURI()));
+			}
+			catch (URISyntaxException e) {
+				// fall through and stream it
+			}
+		}
+
+		InputStream in = url.openStream();
+		try {
+			return read(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read a snapshot from a stream into a direct buffer. This avoids parsing
+	 * the shapefile, but not the copy; prefer map(File) where possible.
+	 */
+	public static TZWorld read(InputStream in) throws IOException {
+		ReadableByteChannel channel = Channels.newChannel(in);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		while (channel.read(buffer) >= 0) {
+			if (!buffer.hasRemaining()) {
+				ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+		}
+		buffer.flip();
+		return read(buffer);
+	}
+
+	/**
+	 * Interpret a buffer holding a complete snapshot. Extent and index
+	 * metadata are decoded onto the heap (a few hundred KB at most); ring
+	 * vertices stay in the buffer. Every count, offset and reference is
+	 * checked against the buffer, so a truncated or corrupt snapshot fails
+	 * here with an IOException rather than later, in a lookup.
+	 */
+	public static TZWorld read(ByteBuffer buffer) throws IOException {
+		ByteBuffer buf = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		buf.position(0);
+		try {
+			return readWorld(buf);
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("Truncated TZWorld snapshot", e);
+		}
+	}
+
+	private static TZWorld readWorld(ByteBuffer buf) throws IOException {
+		if (buf.remaining() < 28 || buf.getInt() != MAGIC)
+			throw new IOException("Not a TZWorld snapshot");
+		int version = buf.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported TZWorld snapshot version " + version + ", expected " + VERSION);
+
+		int extentCount = readCount(buf);
+		int ringCount = readCount(buf);
+		int tileCount = buf.getInt();
+		int candidateCount = readCount(buf);
+		int vertexCount = readCount(buf);
+		if (tileCount != TZWorld.INDEX_SIZE)
+			throw new IOException("TZWorld snapshot has " + tileCount + " index tiles, expected " + TZWorld.INDEX_SIZE);
+		// the smallest the rest could be, before allocating by these counts
+		if (buf.remaining() < 32L * extentCount + 20L * ringCount + 4L * (tileCount + 1) + 4L * candidateCount + 8L
+				* vertexCount + 4)
+			throw new IOException("Truncated TZWorld snapshot");
+
+		TimeZone[] timeZones = new TimeZone[extentCount];
+		int[][] bounds = new int[extentCount][4];
+		int[] shellCounts = new int[extentCount];
+		int[] holeCounts = new int[extentCount];
+		int[][] holeStarts = new int[extentCount][];
+		long rings = 0;
+		for (int i = 0; i < extentCount; i++) {
+			int length = readCount(buf);
+			if (length > buf.remaining())
+				throw new IOException("Truncated TZWorld snapshot");
+			byte[] tzid = new byte[length];
+			buf.get(tzid);
+			timeZones[i] = TimeZone.getTimeZone(new String(tzid, "UTF-8"));
+
+			for (int b = 0; b < 4; b++)
+				bounds[i][b] = buf.getInt();
+			shellCounts[i] = readCount(buf);
+			holeCounts[i] = readCount(buf);
+			rings += (long) shellCounts[i] + holeCounts[i];
+			if (rings > ringCount)
+				throw new IOException("Corrupt TZWorld snapshot: more rings in extents than " + ringCount);
+			holeStarts[i] = new int[shellCounts[i] + 1];
+			// ascending from 0; holes past the last start belong to no shell
+			for (int s = 0; s <= shellCounts[i]; s++) {
+				int start = buf.getInt();
+				if (s == 0 ? start != 0 : start < holeStarts[i][s - 1] || start > holeCounts[i])
+					throw new IOException("Corrupt TZWorld snapshot: hole starts of extent " + i);
+				holeStarts[i][s] = start;
+			}
+		}
+		if (rings != ringCount)
+			throw new IOException("Corrupt TZWorld snapshot: " + rings + " rings in extents, expected " + ringCount);
+
+		// ring headers come before the vertices they describe, so note where
+		// the vertices start and come back for the headers
+		int ringStart = buf.position();
+		long vertexStart = ringStart + 20L * ringCount + 4L * (tileCount + 1) + 4L * candidateCount;
+		long vertexEnd = vertexStart + 8L * vertexCount;
+		if (buf.limit() < vertexEnd + 4)
+			throw new IOException("Truncated TZWorld snapshot");
+		int indexStart = ringStart + 20 * ringCount;
+
+		TZExtent[] extents = new TZExtent[extentCount];
+		long vertexOffset = vertexStart;
+		for (int i = 0; i < extentCount; i++) {
+			Ring[] shells = new Ring[shellCounts[i]];
+			Ring[] holes = new Ring[holeCounts[i]];
+			for (int r = 0; r < shells.length + holes.length; r++) {
+				int minX = buf.getInt();
+				int minY = buf.getInt();
+				int maxX = buf.getInt();
+				int maxY = buf.getInt();
+				int n = readCount(buf);
+				if (vertexOffset + 8L * n > vertexEnd)
+					throw new IOException("Corrupt TZWorld snapshot: ring sizes exceed " + vertexCount + " vertices");
+				Ring ring = new BufferRing(buf, (int) vertexOffset, n, minX, minY, maxX, maxY);
+				vertexOffset += 8L * n;
+
+				if (r < shells.length)
+					shells[r] = ring;
+				else
+					holes[r - shells.length] = ring;
+			}
+			extents[i] = new TZExtent(timeZones[i], bounds[i][0], bounds[i][1], bounds[i][2], bounds[i][3],
+					shells, holes, holeStarts[i]);
+		}
+		if (vertexOffset != vertexEnd)
+			throw new IOException("Corrupt TZWorld snapshot: ring sizes do not add up to " + vertexCount + " vertices");
+
+		int[] offsets = new int[tileCount + 1];
+		int[] candidates = new int[candidateCount];
+		buf.position(indexStart);
+		IntBuffer indexInts = buf.asIntBuffer();
+		indexInts.get(offsets);
+		indexInts.get(candidates);
+		for (int t = 0; t < tileCount; t++)
+			if (offsets[t] > offsets[t + 1])
+				throw new IOException("Corrupt TZWorld snapshot index");
+		if (offsets[0] != 0 || offsets[tileCount] != candidateCount)
+			throw new IOException("Corrupt TZWorld snapshot index");
+		for (int candidate : candidates)
+			if (candidate < 0 || candidate >= extentCount)
+				throw new IOException("Corrupt TZWorld snapshot index: candidate " + candidate + " of " + extentCount
+						+ " extents");
+		TZIndex index = new TZIndex(offsets, candidates);
+
+		// the quadtree, if any, is small enough to copy onto the heap
+		TZQuadtree quadtree = null;
+		buf.position((int) vertexEnd);
+		int depth = buf.getInt();
+		if (depth >= 0) {
+			int nodeCount = readCount(buf);
+			int listCount = readCount(buf);
+			if (buf.remaining() < 4L * tileCount + 4L * nodeCount + 4L * listCount)
+				throw new IOException("Truncated TZWorld snapshot");
+			int[] nodes = new int[nodeCount];
+			int[] lists = new int[listCount];
+			int[] roots = new int[tileCount];
+			IntBuffer ints = buf.asIntBuffer();
+			ints.get(roots);
+			ints.get(nodes);
+			ints.get(lists);
+			quadtree = new TZQuadtree(depth, roots, nodes, lists);
+			if (!quadtree.isConsistent(extentCount))
+				throw new IOException("Corrupt TZWorld snapshot quadtree");
+		}
+
+		return new TZWorld(extents, index, quadtree);
+	}
+
+	/**
+	 * Read a count or length, which cannot be negative
+	 */
+	private static int readCount(ByteBuffer buf) throws IOException {
+		int n = buf.getInt();
+		if (n < 0)
+			throw new IOException("Corrupt TZWorld snapshot: negative count " + n);
+		return n;
+	}
+
+	private static Ring[] rings(TZExtent extent) {
+		Ring[] shells = extent.getShells();
+		Ring[] holes = extent.getHoles();
+		Ring[] rings = new Ring[shells.length + holes.length];
+		System.arraycopy(shells, 0, rings, 0, shells.length);
+		System.arraycopy(holes, 0, rings, shells.length, holes.length);
+		return rings;
+	}
+
+	/**
+	 * Build step: read a shapefile and write its snapshot.
+	 * 
+	 * @param args
+	 *            shapefile directory, map name (e.g. tz_world_mp), output file
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("usage: TZWorldSnapshot <shapefile dir> <map name> <output file>");
+			System.exit(1);
+		}
+
+		long start = System.currentTimeMillis();
+		TZWorld tzWorld = new TZWorld(new File(args[0]).toURI().toURL(), args[1], TZWorldConfig.fromSystemProperties());
+		File out = new File(args[2]);
+		write(tzWorld, out);
+		System.out.println("wrote " + out + " (" + out.length() + " bytes) in "
+				+ (System.currentTimeMillis() - start) + " msec");
+	}
+
+	/**
+	 * DataOutputStream is big-endian only; the snapshot is little-endian so
+	 * it can be read with native order on common hardware.
+	 */
+	private static class LittleEndianOutput {
+		private DataOutputStream out;
+
+		LittleEndianOutput(OutputStream os) {
+			out = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+		}
+
+		void writeInt(int v) throws IOException {
+			out.writeInt(Integer.reverseBytes(v));
+		}
+
+		void write(byte[] bytes) throws IOException {
+			out.write(bytes);
+		}
+
+		void flush() throws IOException {
+			out.flush();
+		}
+	}
+}
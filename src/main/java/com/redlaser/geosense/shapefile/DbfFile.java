@@ -17,12 +17,15 @@
 package com.redlaser.geosense.shapefile;
 
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.time.DateTimeException;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -34,15 +37,35 @@ import java.util.Map;
  * sufficient to parse the polygon shapefile from tz_world
  * (http://efele.net/maps/tz/world/).
  * 
+ * Like ShpFile, a DbfFile either streams the file sequentially or
+ * memory-maps it; records are fixed length, so a mapped DbfFile can read any
+ * record by number.
+ * 
+ * Character (C), numeric (N), float (F), date (D) and logical (L) fields are
+ * decoded. readRecord returns each record as a new Map of all fields; a
+ * Cursor decodes only the fields asked for, straight from the buffer, and is
+ * reused from record to record.
+ * 
  * @author Frank D. Russo
  */
 public class DbfFile {
 	private static final int BUFFER_SIZE = 8192;
 	private static final int HEADER_BYTES = 32;
-	
-	private InputStream in;
-	private ReadableByteChannel channel;
-	private ByteBuffer buffer;
+	private static final int FIELD_BYTES = 32;
+	private static final byte DELETED = 0x2A;
+
+	// exact powers of ten, for decoding decimals with a single rounding
+	private static final double[] POWERS_OF_TEN = new double[19];
+	static {
+		POWERS_OF_TEN[0] = 1.0;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+	}
+
+	private ReadableByteChannel channel;	// null when mapped
+	private ByteBuffer buffer;	// stream buffer, or the whole mapped file
+	private int next;	// records read sequentially so far
+	private Cursor all;	// all fields, for readRecord
 
 	private int dbfFileType;
 	private int numRecords;
@@ -50,57 +73,70 @@ public class DbfFile {
 	private int recordLen;
 	private int flags;
 	private DbfField[] fields;
-	
+
 	public DbfFile(InputStream s) throws IOException {
-		in = s;
-		channel = Channels.newChannel(in);
+		channel = Channels.newChannel(s);
 		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN); // dbf format is little-endian.
 		buffer.flip();
-		
+		readHeader();
+	}
+
+	/**
+	 * Memory-map a .dbf file
+	 */
+	public DbfFile(File dbf) throws IOException {
+		buffer = ShapeFile.map(dbf).order(ByteOrder.LITTLE_ENDIAN);
+		readHeader();
+	}
+
+	private void readHeader() throws IOException {
 		fillBuffer(HEADER_BYTES);
-		
+
 		// 0
 		dbfFileType = buffer.get(0) & 0xFF;
-		
+
 		// 4-11
 		numRecords = buffer.getInt(4);
-		dataStart = buffer.getShort(8);
-		recordLen = buffer.getShort(10);
-		
+		dataStart = buffer.getShort(8) & 0xFFFF;
+		recordLen = buffer.getShort(10) & 0xFFFF;
+
 		// 28
 		flags = buffer.get(28) & 0xFF;
-		
-		// read the field definitions, starting at 32
-		buffer.position(HEADER_BYTES);
-		fillBuffer(dataStart - HEADER_BYTES);
-		List<DbfField> fields = new ArrayList<DbfField>();
-		while (true) {
-			// gotta do a read-ahead
-			buffer.mark();
-			if (buffer.get() == 0x0D) {
-				break;
-			}
 
-			buffer.reset();
-			fillBuffer(32);
-			
+		// read the field definitions, starting at 32. nothing has been
+		// consumed yet, so the whole header stays at the front of the buffer
+		fillBuffer(dataStart);
+		List<DbfField> fields = new ArrayList<DbfField>();
+		int offset = 0;
+		for (int pos = HEADER_BYTES; pos + FIELD_BYTES <= dataStart && buffer.get(pos) != 0x0D; pos += FIELD_BYTES) {
 			DbfField field = new DbfField();
 			byte[] nameBytes = new byte[11];
-			buffer.get(nameBytes);
+			for (int i = 0; i < nameBytes.length; i++)
+				nameBytes[i] = buffer.get(pos + i);
 			field.setName(new String(nameBytes).trim());
-			
-			field.setFieldType((char) buffer.get());
-			field.setOffset(buffer.getInt());
-			field.setLen(buffer.get());
-			field.setDdigits(buffer.get());
-			field.setFflags(buffer.get());
-			field.setAutoIncNext(buffer.getInt());
-			field.setAutoIncStep(buffer.get());
-			buffer.getLong(); // consume remaining 8 bytes
+
+			field.setFieldType((char) buffer.get(pos + 11));
+			field.setLen(buffer.get(pos + 16) & 0xFF);
+			field.setDdigits(buffer.get(pos + 17) & 0xFF);
+			field.setFflags(buffer.get(pos + 18) & 0xFF);
+			field.setAutoIncNext(buffer.getInt(pos + 19));
+			field.setAutoIncStep(buffer.get(pos + 23) & 0xFF);
+			if (field.getFieldType() == 'C' && field.getDdigits() > 0) {
+				// character fields over 255 bytes keep the high byte of
+				// their length in the decimal count
+				field.setLen(field.getLen() | field.getDdigits() << 8);
+				field.setDdigits(0);
+			}
+
+			// the offset in the descriptor (12-15) is not reliably filled
+			// in, so lay the fields out one after another after the
+			// deletion flag
+			field.setOffset(offset);
+			offset += field.getLen();
 			fields.add(field);
 		}
 		this.fields = fields.toArray(new DbfField[fields.size()]);
-		
+
 		// position to start reading the actual data
 		buffer.position(dataStart);
 	}
@@ -108,41 +144,98 @@ public class DbfFile {
 	public int getDbfFileType() {
 		return dbfFileType;
 	}
-	
+
 	public int getNumRecords() {
 		return numRecords;
 	}
-	
+
 	public int getDataStart() {
 		return dataStart;
 	}
-	
+
 	public int getRecordLen() {
 		return recordLen;
 	}
-	
+
+	public boolean isMapped() {
+		return channel == null;
+	}
+
 	public boolean getFlag(int flag) {
 		int mask = 1 << flag;
 		return (flags & mask) == mask;
 	}
-	
+
 	public int getNumFields() {
 		return fields != null? fields.length : 0;
 	}
-	
+
 	public DbfField getField(int i) {
 		return fields != null && fields.length > i? fields[i] : null;
 	}
 
+	/**
+	 * Find a field by name
+	 * 
+	 * @return the field number, or -1 if there is no such field
+	 */
+	public int getFieldIndex(String name) {
+		for (int i = 0; i < fields.length; i++)
+			if (fields[i].getName().equals(name))
+				return i;
+		return -1;
+	}
+
 	private void fillBuffer(int minBytes) throws IOException {
+		if (buffer.capacity() < minBytes) {
+			// a record bigger than the buffer
+			ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(minBytes, 2 * buffer.capacity()));
+			grown.order(ByteOrder.LITTLE_ENDIAN);
+			grown.put(buffer);
+			grown.flip();
+			buffer = grown;
+		}
+
 		while (buffer.remaining() < minBytes) {
-			buffer.compact();
-			if (channel.read(buffer) <= 0)
+			if (channel == null)
 				throw new EOFException();
+			buffer.compact();
+			int n = channel.read(buffer);
 			buffer.flip();
+			if (n <= 0)
+				throw new EOFException();
 		}
 	}
 
+	/**
+	 * Cursor over the given columns. Its next method reads sequentially,
+	 * sharing the position of readRecord; with a mapped file, seek reads any
+	 * record, and cursors on different threads do not disturb each other.
+	 * 
+	 * @param columns
+	 *            names of the fields to decode, in the order the cursor will
+	 *            number them; none for all fields in file order
+	 * @throws IllegalArgumentException
+	 *             if a column is not in the file
+	 */
+	public Cursor cursor(String... columns) {
+		int[] projection;
+		if (columns.length == 0) {
+			projection = new int[fields.length];
+			for (int i = 0; i < projection.length; i++)
+				projection[i] = i;
+		}
+		else {
+			projection = new int[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				projection[i] = getFieldIndex(columns[i]);
+				if (projection[i] < 0)
+					throw new IllegalArgumentException("No field " + columns[i]);
+			}
+		}
+		return new Cursor(projection);
+	}
+
 	/**
 	 * Sequential read.
 	 * 
@@ -150,45 +243,332 @@ public class DbfFile {
 	 *         returned; for a deleted record, an empty map is returned.
 	 */
 	public Map<String, Object> readRecord() throws IOException {
-		if (buffer.remaining() + in.available() == 0)
-			return null;
-	
-		// this assumes the whole record will fit into the buffer. no
-		// problem in actual use case, just calling out the assumption
-		fillBuffer(recordLen);
-		int start = buffer.position();
-		
-		Map<String, Object> record = new HashMap<String, Object>();
-		boolean deleted = buffer.get() == 0x2A;
-		if (deleted) {
+		if (all == null)
+			all = cursor();
+		return all.next() ? all.toMap() : null;
+	}
+
+	/**
+	 * Random access read of a mapped file. Safe to call from multiple
+	 * threads.
+	 * 
+	 * @param recordNum
+	 *            record number, from 1 like ShpFile records
+	 */
+	public Map<String, Object> readRecord(int recordNum) throws IOException {
+		Cursor cursor = cursor();
+		cursor.seek(recordNum);
+		return cursor.toMap();
+	}
+
+	public void close() throws IOException {
+		if (channel != null)
+			channel.close();
+	}
+
+	/**
+	 * A view of one record at a time, decoding the projected fields on
+	 * demand. Columns are numbered by their position in the projection. The
+	 * values of a streamed record are only valid until the next call to next
+	 * or readRecord.
+	 */
+	public final class Cursor {
+		private final DbfField[] projected;
+		private byte[] chars;	// scratch for strings
+		private int start = -1;	// of the current record in buffer
+		private int recordNum;
+
+		private Cursor(int[] projection) {
+			projected = new DbfField[projection.length];
+			int maxLen = 0;
+			for (int i = 0; i < projection.length; i++) {
+				projected[i] = fields[projection[i]];
+				maxLen = Math.max(maxLen, projected[i].getLen());
+			}
+			chars = new byte[maxLen];
+		}
+
+		/**
+		 * Advance to the next record in the file
+		 * 
+		 * @return false at end of data
+		 */
+		public boolean next() throws IOException {
+			if (next >= numRecords) {
+				start = -1;
+				return false;
+			}
+
+			fillBuffer(recordLen);
+			next++;
+			start = buffer.position();
+			recordNum = next;
 			buffer.position(start + recordLen);
-			return record;
+			return true;
+		}
+
+		/**
+		 * Move to a record of a mapped file
+		 * 
+		 * @param recordNum
+		 *            record number, from 1 like ShpFile records
+		 */
+		public void seek(int recordNum) throws IOException {
+			if (channel != null)
+				throw new IllegalStateException("Random access needs a mapped DbfFile");
+			if (recordNum < 1 || recordNum > numRecords)
+				throw new IndexOutOfBoundsException("No record " + recordNum);
+
+			long start = dataStart + (long) (recordNum - 1) * recordLen;
+			if (start + recordLen > buffer.limit())
+				throw new EOFException();
+			this.start = (int) start;
+			this.recordNum = recordNum;
+		}
+
+		public int getRecordNum() {
+			return recordNum;
+		}
+
+		public boolean isDeleted() {
+			return buffer.get(checkStart()) == DELETED;
+		}
+
+		public int getColumnCount() {
+			return projected.length;
+		}
+
+		public DbfField getField(int column) {
+			return projected[column];
+		}
+
+		/**
+		 * Determine if a value is missing: a blank number or date, or a
+		 * logical that is neither true nor false. Character values are never
+		 * null.
+		 */
+		public boolean isNull(int column) {
+			DbfField field = projected[column];
+			int offset = checkStart() + 1 + field.getOffset();
+			switch (field.getFieldType()) {
+			case 'C':
+				return false;
+			case 'L':
+				return logical(buffer.get(offset)) == null;
+			default:
+				for (int i = 0; i < field.getLen(); i++)
+					if ((buffer.get(offset + i) & 0xFF) > ' ')
+						return false;
+				return true;
+			}
+		}
+
+		/**
+		 * The value of any field as text, trimmed
+		 */
+		public String getString(int column) {
+			DbfField field = projected[column];
+			int offset = checkStart() + 1 + field.getOffset();
+			int from = 0;
+			int to = field.getLen();
+			while (from < to && (buffer.get(offset + from) & 0xFF) <= ' ')
+				from++;
+			while (to > from && (buffer.get(offset + to - 1) & 0xFF) <= ' ')
+				to--;
+			for (int i = from; i < to; i++)
+				chars[i - from] = buffer.get(offset + i);
+			return new String(chars, 0, to - from);
+		}
+
+		/**
+		 * A numeric field as a whole number, truncating any decimals
+		 * 
+		 * @return the value, or 0 if null
+		 */
+		public long getLong(int column) {
+			DbfField field = projected[column];
+			int offset = checkStart() + 1 + field.getOffset();
+			int end = offset + field.getLen();
+			while (offset < end && buffer.get(offset) == ' ')
+				offset++;
+
+			boolean negative = false;
+			if (offset < end && (buffer.get(offset) == '-' || buffer.get(offset) == '+'))
+				negative = buffer.get(offset++) == '-';
+
+			long value = 0;
+			for (; offset < end; offset++) {
+				int digit = buffer.get(offset) - '0';
+				if (digit < 0 || digit > 9)
+					break;
+				value = value * 10 + digit;
+			}
+			return negative ? -value : value;
 		}
-		
-		for (DbfField field : fields) {
-			buffer.position(start + 1 + field.getOffset());
+
+		/**
+		 * A numeric or float field
+		 * 
+		 * @return the value, or NaN if null or unreadable
+		 */
+		public double getDouble(int column) {
+			DbfField field = projected[column];
+			int offset = checkStart() + 1 + field.getOffset();
+			int end = offset + field.getLen();
+			while (offset < end && buffer.get(offset) == ' ')
+				offset++;
+			while (end > offset && buffer.get(end - 1) == ' ')
+				end--;
+			if (offset == end)
+				return Double.NaN;
+
+			// the common case of up to 15 digits with an optional point
+			// is exact in a long, and one division by an exact power of ten
+			// rounds it just as Double.parseDouble would
+			int i = offset;
+			boolean negative = false;
+			if (buffer.get(i) == '-' || buffer.get(i) == '+')
+				negative = buffer.get(i++) == '-';
+
+			long mantissa = 0;
+			int digits = 0;
+			int decimals = -1;
+			for (; i < end; i++) {
+				byte b = buffer.get(i);
+				if (b >= '0' && b <= '9') {
+					mantissa = mantissa * 10 + (b - '0');
+					digits++;
+					if (decimals >= 0)
+						decimals++;
+				}
+				else if (b == '.' && decimals < 0)
+					decimals = 0;
+				else
+					break;
+			}
+
+			if (i == end && digits > 0 && digits <= 15) {
+				double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+				return negative ? -value : value;
+			}
+
+			// exponents, long values, overflow markers
+			try {
+				return Double.parseDouble(getString(column));
+			}
+			catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+
+		/**
+		 * A date field, stored as YYYYMMDD
+		 * 
+		 * @return the date, or null if null or unreadable
+		 */
+		public LocalDate getDate(int column) {
+			DbfField field = projected[column];
+			int offset = checkStart() + 1 + field.getOffset();
+			if (field.getLen() < 8)
+				return null;
+
+			int yyyymmdd = 0;
+			for (int i = 0; i < 8; i++) {
+				int digit = buffer.get(offset + i) - '0';
+				if (digit < 0 || digit > 9)
+					return null;
+				yyyymmdd = yyyymmdd * 10 + digit;
+			}
+
+			try {
+				return LocalDate.of(yyyymmdd / 10000, yyyymmdd / 100 % 100, yyyymmdd % 100);
+			}
+			catch (DateTimeException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * A logical field
+		 * 
+		 * @return true for T or Y, false otherwise
+		 */
+		public boolean getBoolean(int column) {
+			DbfField field = projected[column];
+			return logical(buffer.get(checkStart() + 1 + field.getOffset())) == Boolean.TRUE;
+		}
+
+		/**
+		 * The value of a field by its type: String, Long (numeric without
+		 * decimals) or Double, LocalDate, or Boolean
+		 * 
+		 * @return the value, or null if null or of an unsupported type
+		 */
+		public Object getValue(int column) {
+			DbfField field = projected[column];
 			switch (field.getFieldType()) {
 			case 'C':
-				// the only one needed for now
-				byte[] data = new byte[field.getLen()];
-				buffer.get(data);
-				record.put(field.getName(), new String(data).trim());
-				break;
-				
+				return getString(column);
+			case 'N':
+				if (isNull(column))
+					return null;
+				if (field.getDdigits() == 0 && field.getLen() <= 18)
+					return getLong(column);
+				return getDouble(column);
+			case 'F':
+				return isNull(column) ? null : getDouble(column);
+			case 'D':
+				return getDate(column);
+			case 'L':
+				return logical(buffer.get(checkStart() + 1 + field.getOffset()));
+			default:
 				// other field types are not supported by this implementation
+				return null;
 			}
 		}
-		
-		buffer.position(start + recordLen);
-		return record;
+
+		/**
+		 * The projected fields of the current record by name, omitting
+		 * unsupported types
+		 * 
+		 * @return the fields, or an empty map for a deleted record
+		 */
+		public Map<String, Object> toMap() {
+			Map<String, Object> record = new HashMap<String, Object>();
+			if (isDeleted())
+				return record;
+
+			for (int column = 0; column < projected.length; column++)
+				if ("CNFDL".indexOf(projected[column].getFieldType()) >= 0)
+					record.put(projected[column].getName(), getValue(column));
+			return record;
+		}
+
+		private int checkStart() {
+			if (start < 0)
+				throw new IllegalStateException("No current record");
+			return start;
+		}
 	}
 
-	public void close() throws IOException {
-		if (channel != null)
-			channel.close();
+	private static Boolean logical(byte b) {
+		switch (b) {
+		case 'T':
+		case 't':
+		case 'Y':
+		case 'y':
+			return Boolean.TRUE;
+		case 'F':
+		case 'f':
+		case 'N':
+		case 'n':
+			return Boolean.FALSE;
+		default:
+			return null;	// ? or blank
+		}
 	}
-	
-	static class DbfField {
+
+	public static class DbfField {
 		private String name;
 		private char fieldType;
 		private int offset;
@@ -262,4 +642,4 @@ public class DbfFile {
 			this.autoIncStep = autoIncStep;
 		}
 	}
-}
\ No newline at end of file
+}
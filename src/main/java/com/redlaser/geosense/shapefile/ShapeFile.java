@@ -16,8 +16,13 @@
  */
 package com.redlaser.geosense.shapefile;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Minimal implementation of a parser for the shapefile standard
@@ -25,17 +30,28 @@ import java.net.URL;
  * parse the polygon shapefile from tz_world (http://efele.net/maps/tz/world/).
  * A "shapefile" foo consists of four actual files: foo.shp, foo.shx, foo.dbf
  * and foo.prj. The .shp file is parsed by ShpFile, and the .dbf file is parsed
- * by DbfFile; the others are ignored.
+ * by DbfFile; the .shx index is used to find records in a memory-mapped .shp,
+ * and the .prj is ignored.
+ * 
+ * Shapefiles given by file (including file: URLs) are memory-mapped, and
+ * support reading any record by number; others are streamed sequentially.
  * 
  * @author Frank D. Russo
  */
 public class ShapeFile {
 	private ShpFile shpFile;
 	private DbfFile dbfFile;
+	private String[] columns = new String[0];	// none for all
+	private DbfFile.Cursor metadata;	// sequential reads of the .dbf
 
 	public ShapeFile(URL shapeFileRoot, String name) throws IOException {
 		// main shape geometry file
 		URL shpUrl = new URL(shapeFileRoot, name + ".shp");
+		File shp = toFile(shpUrl);
+		if (shp != null && shp.isFile()) {
+			open(shp.getParentFile(), name);
+			return;
+		}
 		shpFile = new ShpFile(shpUrl.openStream());
 
 		// ignore .shx file, since we'll be reading the whole shapefile
@@ -47,6 +63,75 @@ public class ShapeFile {
 		// ignore .prj file with coordinate system - for tz_world we know this is the global lat-lon system
 	}
 
+	/**
+	 * Memory-map the shapefile name in dir
+	 */
+	public ShapeFile(File dir, String name) throws IOException {
+		open(dir, name);
+	}
+
+	private void open(File dir, String name) throws IOException {
+		// .shx is optional; without it ShpFile finds records itself
+		File shx = new File(dir, name + ".shx");
+		shpFile = new ShpFile(new File(dir, name + ".shp"), shx.isFile() ? shx : null);
+		dbfFile = new DbfFile(new File(dir, name + ".dbf"));
+	}
+
+	private static File toFile(URL url) {
+		if (!"file".equals(url.getProtocol()))
+			return null;
+
+		try {
+			return new File(url.toURI());
+		}
+		catch (URISyntaxException e) {
+			return null;
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Map a whole file read-only. The mapping stays valid after the channel
+	 * is closed.
+	 */
+	static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	public boolean isMapped() {
+		return shpFile.isMapped();
+	}
+
+	/**
+	 * Number of records in a mapped shapefile
+	 * 
+	 * @return number of records, or -1 if streaming
+	 */
+	public int getNumRecords() {
+		return shpFile.getNumRecords();
+	}
+
+	/**
+	 * Restrict the metadata of the shapes read from here on to the given
+	 * fields, so that no others are decoded
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if a column is not in the .dbf
+	 */
+	public void setColumns(String... columns) {
+		metadata = dbfFile.cursor(columns);
+		this.columns = columns.clone();
+	}
+
 	public ShapeFileShape readShape() throws IOException {
 		// shp file provides actual shape data
 		ShapeFileShape shape = shpFile.readShape();
@@ -54,11 +139,50 @@ public class ShapeFile {
 			return null; // EOF
 
 		// dbf file is synced with shp file
-		shape.setShapeMetadata(dbfFile.readRecord());
+		if (metadata == null)
+			metadata = dbfFile.cursor(columns);
+		shape.setShapeMetadata(metadata.next() ? metadata.toMap() : null);
+
+		return shape;
+	}
+
+	/**
+	 * Random access read of a mapped shapefile. Safe to call from multiple
+	 * threads.
+	 * 
+	 * @param recordNum
+	 *            record number, from 1 as in the file
+	 */
+	public ShapeFileShape readShape(int recordNum) throws IOException {
+		ShapeFileShape shape = shpFile.readShape(recordNum);
+		DbfFile.Cursor cursor = dbfFile.cursor(columns);
+		cursor.seek(recordNum);
+		shape.setShapeMetadata(cursor.toMap());
+		return shape;
+	}
 
+	/**
+	 * Random access read of a mapped shapefile's record with its metadata and
+	 * the outline of each part, but not the coordinates (see
+	 * ShapeFileShape.getPartBounds)
+	 */
+	public ShapeFileShape readOutline(int recordNum) throws IOException {
+		ShapeFileShape shape = shpFile.readShape(recordNum, false);
+		DbfFile.Cursor cursor = dbfFile.cursor(columns);
+		cursor.seek(recordNum);
+		shape.setShapeMetadata(cursor.toMap());
 		return shape;
 	}
 
+	/**
+	 * Random access read of a mapped shapefile's record geometry alone, with
+	 * no metadata. The mapping outlives close(), so this still works after
+	 * it.
+	 */
+	public ShapeFileShape readGeometry(int recordNum) throws IOException {
+		return shpFile.readShape(recordNum);
+	}
+
 	public void close() throws IOException {
 		shpFile.close();
 		dbfFile.close();
@@ -28,13 +28,21 @@ import java.util.Map;
  * which is sufficient to parse the polygon shapefile from tz_world
  * (http://efele.net/maps/tz/world/).
  * 
+ * Shape data is held as primitive coordinate arrays. The java.awt.geom views
+ * (getBbox, getShapeData) are built on demand only, so the shapefile can be
+ * read on runtimes that do not include java.awt.
+ * 
  * @author Frank D. Russo
  */
 public class ShapeFileShape {
 	private int recordNum;
 	private ShapeType shapeType;
-	private Rectangle2D bbox;
-	private Point2D[][] shapeData;
+	private double xmin;
+	private double ymin;
+	private double xmax;
+	private double ymax;
+	private double[][] coordinates;
+	private double[] partBounds;
 	private Map<String, Object> shapeMetadata;
 
 	public int getRecordNum() {
@@ -53,20 +61,91 @@ public class ShapeFileShape {
 		this.shapeType = shapeType;
 	}
 
+	public double getXmin() {
+		return xmin;
+	}
+
+	public double getYmin() {
+		return ymin;
+	}
+
+	public double getXmax() {
+		return xmax;
+	}
+
+	public double getYmax() {
+		return ymax;
+	}
+
+	public void setBounds(double xmin, double ymin, double xmax, double ymax) {
+		this.xmin = xmin;
+		this.ymin = ymin;
+		this.xmax = xmax;
+		this.ymax = ymax;
+	}
+
 	public Rectangle2D getBbox() {
-		return bbox;
+		return new Rectangle2D.Double(xmin, ymin, xmax - xmin, ymax - ymin);
 	}
 
 	public void setBbox(Rectangle2D bbox) {
-		this.bbox = bbox;
+		setBounds(bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY());
+	}
+
+	/**
+	 * Shape data as one array per part, each holding x,y pairs
+	 */
+	public double[][] getCoordinates() {
+		return coordinates;
+	}
+
+	public void setCoordinates(double[][] coordinates) {
+		this.coordinates = coordinates;
+	}
+
+	/**
+	 * Outline of each part, read in place of the coordinates (see
+	 * ShapeFile.readOutline): five values per part, xmin, ymin, xmax, ymax
+	 * and the signed area, which is positive for a clockwise ring
+	 * 
+	 * @return the outlines, or null if the coordinates were read
+	 */
+	public double[] getPartBounds() {
+		return partBounds;
+	}
+
+	public void setPartBounds(double[] partBounds) {
+		this.partBounds = partBounds;
 	}
 
 	public Point2D[][] getShapeData() {
+		if (coordinates == null)
+			return null;
+
+		Point2D[][] shapeData = new Point2D[coordinates.length][];
+		for (int i = 0; i < coordinates.length; i++) {
+			double[] part = coordinates[i];
+			shapeData[i] = new Point2D[part.length / 2];
+			for (int j = 0; j < shapeData[i].length; j++)
+				shapeData[i][j] = new Point2D.Double(part[2 * j], part[2 * j + 1]);
+		}
 		return shapeData;
 	}
 
 	public void setShapeData(Point2D[][] shapeData) {
-		this.shapeData = shapeData;
+		if (shapeData == null) {
+			coordinates = null;
+			return;
+		}
+
+		coordinates = new double[shapeData.length][];
+		for (int i = 0; i < shapeData.length; i++) {
+			coordinates[i] = new double[2 * shapeData[i].length];
+			for (int j = 0; j < shapeData[i].length; j++) {
+				coordinates[i][2 * j] = shapeData[i][j].getX();
+				coordinates[i][2 * j + 1] = shapeData[i][j].getY();
+			}
+		}
 	}
 
 	public Map<String, Object> getShapeMetadata() {
@@ -16,13 +16,14 @@
  */
 package com.redlaser.geosense.shapefile;
 
-import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 
@@ -32,33 +33,61 @@ import java.nio.channels.ReadableByteChannel;
  * sufficient to parse the polygon shapefile from tz_world
  * (http://efele.net/maps/tz/world/).
  * 
+ * A ShpFile either streams the file sequentially, or memory-maps it. A mapped
+ * ShpFile takes record offsets from the .shx index (or one pass over the
+ * record headers if there is none), so any record can be read by number in
+ * constant time, from any number of threads.
+ * 
  * @author Frank D. Russo
  */
 public class ShpFile {
 	private static final int BUFFER_SIZE = 8192;
 	private static final int HEADER_BYTES = 100;
+	private static final int SHX_RECORD_BYTES = 8;
 	
-	private InputStream in;
-	private ReadableByteChannel channel;
-	private ByteBuffer buffer;
+	private ReadableByteChannel channel;	// null when mapped
+	private ByteBuffer buffer;	// stream buffer, or the whole mapped file
+	private long position;	// file offset of the next streamed record
+	private int[] offsets;	// file offset of each record when mapped
+	private int next;	// next record for a sequential read when mapped
 
 	private int filecode;
 	private int version;
 	private int length;
 	private ShapeType shapeType;
-	private Rectangle2D bbox;
+	private double xmin;
+	private double ymin;
+	private double xmax;
+	private double ymax;
 	
 	public ShpFile(InputStream s) throws IOException {
-		in = s;
-		channel = Channels.newChannel(in);
+		channel = Channels.newChannel(s);
 		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
 		buffer.flip();
 		
 		fillBuffer(HEADER_BYTES);
-		
+		readHeader();
+		buffer.position(HEADER_BYTES);
+		position = HEADER_BYTES;
+	}
+
+	/**
+	 * Memory-map a .shp file, with record offsets from its .shx index if shx
+	 * is not null
+	 */
+	public ShpFile(File shp, File shx) throws IOException {
+		buffer = ShapeFile.map(shp);
+		if (buffer.remaining() < HEADER_BYTES)
+			throw new EOFException();
+		readHeader();
+
+		offsets = shx != null ? readIndex(ShapeFile.map(shx)) : scanIndex();
+	}
+
+	private void readHeader() {
 		// first part of the header is big-endian
 		buffer.order(ByteOrder.BIG_ENDIAN);
-		filecode = buffer.getInt();
+		filecode = buffer.getInt(0);
 		length = buffer.getInt(24);
 		
 		// then we switch to little-endian :-|
@@ -66,13 +95,53 @@ public class ShpFile {
 		version = buffer.getInt(28);
 		shapeType = ShapeType.forCode(buffer.getInt(32));
 		
-		double xmin = buffer.getDouble(36);
-		double ymin = buffer.getDouble(44);
-		double xmax = buffer.getDouble(52);
-		double ymax = buffer.getDouble(60);
-		bbox = new Rectangle2D.Double(xmin, ymin, xmax-xmin, ymax-ymin);
-		
-		buffer.position(HEADER_BYTES);
+		xmin = buffer.getDouble(36);
+		ymin = buffer.getDouble(44);
+		xmax = buffer.getDouble(52);
+		ymax = buffer.getDouble(60);
+	}
+
+	/**
+	 * Record offsets from a .shx file: after the same 100 byte header as the
+	 * .shp, one big-endian (offset, length) pair per record, both in 16-bit
+	 * words
+	 */
+	private int[] readIndex(ByteBuffer shx) throws IOException {
+		shx.order(ByteOrder.BIG_ENDIAN);
+		int n = (shx.limit() - HEADER_BYTES) / SHX_RECORD_BYTES;
+		if (n < 0)
+			throw new EOFException();
+
+		int[] index = new int[n];
+		for (int i = 0; i < n; i++) {
+			index[i] = 2 * shx.getInt(HEADER_BYTES + i * SHX_RECORD_BYTES);
+			if (index[i] < HEADER_BYTES || index[i] > buffer.limit() - 8)
+				throw new IOException("Bad .shx offset for record " + (i + 1));
+		}
+		return index;
+	}
+
+	/**
+	 * Record offsets found by hopping from record header to record header,
+	 * for a .shp without its .shx
+	 */
+	private int[] scanIndex() {
+		int[] index = new int[64];
+		int n = 0;
+		int end = (int) Math.min(buffer.limit(), 2L * length);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		for (int offset = HEADER_BYTES; offset <= end - 8; offset += 8 + 2 * buffer.getInt(offset + 4)) {
+			if (n == index.length) {
+				int[] grown = new int[2 * n];
+				System.arraycopy(index, 0, grown, 0, n);
+				index = grown;
+			}
+			index[n++] = offset;
+		}
+
+		int[] result = new int[n];
+		System.arraycopy(index, 0, result, 0, n);
+		return result;
 	}
 
 	public int getFilecode() {
@@ -91,17 +160,72 @@ public class ShpFile {
 		return shapeType;
 	}
 	
+	/**
+	 * Bounding box of the whole file. Note this is the only thing here that
+	 * touches java.awt; prefer the individual min/max getters.
+	 */
 	public Rectangle2D getBbox() {
-		return bbox;
+		return new Rectangle2D.Double(xmin, ymin, xmax-xmin, ymax-ymin);
+	}
+
+	public double getXmin() {
+		return xmin;
+	}
+
+	public double getYmin() {
+		return ymin;
+	}
+
+	public double getXmax() {
+		return xmax;
+	}
+
+	public double getYmax() {
+		return ymax;
 	}
 
-	private void fillBuffer(int minBytes) throws IOException {
+	public boolean isMapped() {
+		return channel == null;
+	}
+
+	/**
+	 * Number of records, known only for a mapped file
+	 * 
+	 * @return number of records, or -1 if streaming
+	 */
+	public int getNumRecords() {
+		return offsets != null ? offsets.length : -1;
+	}
+
+	/**
+	 * Make sure at least minBytes are buffered
+	 * 
+	 * @return false if the stream ended before any more bytes were read
+	 */
+	private boolean fillBuffer(int minBytes) throws IOException {
+		if (buffer.capacity() < minBytes) {
+			// a record bigger than the buffer
+			ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(minBytes, 2 * buffer.capacity()));
+			grown.put(buffer);
+			grown.flip();
+			buffer = grown;
+		}
+
 		while (buffer.remaining() < minBytes) {
-			buffer.compact();
-			if (channel.read(buffer) <= 0)
+			if (channel == null)
 				throw new EOFException();
+
+			boolean empty = !buffer.hasRemaining();
+			buffer.compact();
+			int n = channel.read(buffer);
 			buffer.flip();
+			if (n < 0) {
+				if (empty)
+					return false;
+				throw new EOFException();
+			}
 		}
+		return true;
 	}
 
 	/**
@@ -111,19 +235,74 @@ public class ShpFile {
 	 *         is returned.
 	 */
 	public ShapeFileShape readShape() throws IOException {
-		if (buffer.remaining() + in.available() == 0)
+		if (offsets != null)
+			return next < offsets.length ? readShape(++next) : null;
+
+		// the header gives the file length, in 16-bit words
+		if (position >= 2L * length || !fillBuffer(8))
 			return null;
 
-		// record header is big-endian
-		fillBuffer(8);
 		buffer.order(ByteOrder.BIG_ENDIAN);
-		int recordNum = buffer.getInt();
-		int len = 2*buffer.getInt();	// per spec, len is number of 16-bit words
+		int start = buffer.position();
+		int len = 8 + 2 * buffer.getInt(start + 4);	// per spec, len is number of 16-bit words
+		fillBuffer(len);
+
+		start = buffer.position();
+		ShapeFileShape shape = readShape(buffer, start, len, true);
+		buffer.position(start + len);
+		position += len;
+		return shape;
+	}
+
+	/**
+	 * Random access read of a mapped file. Safe to call from multiple
+	 * threads.
+	 * 
+	 * @param recordNum
+	 *            record number, from 1 as in the file
+	 */
+	public ShapeFileShape readShape(int recordNum) throws IOException {
+		return readShape(recordNum, true);
+	}
+
+	/**
+	 * Random access read of a mapped file, optionally with only the outline
+	 * of each part (see ShapeFileShape.getPartBounds) in place of its
+	 * coordinates, which are then scanned in place rather than copied
+	 */
+	public ShapeFileShape readShape(int recordNum, boolean coordinates) throws IOException {
+		if (offsets == null)
+			throw new IllegalStateException("Random access needs a mapped ShpFile");
+		if (recordNum < 1 || recordNum > offsets.length)
+			throw new IndexOutOfBoundsException("No record " + recordNum);
+
+		ByteBuffer buf = buffer.duplicate();
+		int start = offsets[recordNum - 1];
+		buf.order(ByteOrder.BIG_ENDIAN);
+		long len = 8 + 2L * buf.getInt(start + 4);
+		if (start + len > buf.limit())
+			throw new EOFException();
+		return readShape(buf, start, (int) len, coordinates);
+	}
+
+	/**
+	 * Parse the record of len bytes (header included) at start, with its
+	 * coordinates or just the outline of its parts
+	 */
+	private static ShapeFileShape readShape(ByteBuffer buffer, int start, int len, boolean coordinates)
+			throws IOException {
+		// record header is big-endian
+		ByteBuffer record = buffer.duplicate();
+		record.limit(start + len);
+		record.position(start);
+		record = record.slice();
+		record.order(ByteOrder.BIG_ENDIAN);
+		int recordNum = record.getInt();
+		record.getInt();
 		
 		// record data is little-endian
-		fillBuffer(4); len -= 4;
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
-		ShapeType shapeType = ShapeType.forCode(buffer.getInt());
+		record.order(ByteOrder.LITTLE_ENDIAN);
+		ShapeType shapeType = ShapeType.forCode(record.getInt());
 		
 		ShapeFileShape shape = new ShapeFileShape();
 		shape.setRecordNum(recordNum);
@@ -136,49 +315,79 @@ public class ShpFile {
 			
 		// the type of the tz_world data
 		case Polygon:
-			fillBuffer(32); len -= 32;
-			double xmin = buffer.getDouble();
-			double ymin = buffer.getDouble();
-			double xmax = buffer.getDouble();
-			double ymax = buffer.getDouble();
-			Rectangle2D bbox = new Rectangle2D.Double(xmin, ymin, xmax-xmin, ymax-ymin);
-			shape.setBbox(bbox);
+			double xmin = record.getDouble();
+			double ymin = record.getDouble();
+			double xmax = record.getDouble();
+			double ymax = record.getDouble();
+			shape.setBounds(xmin, ymin, xmax, ymax);
 			
-			fillBuffer(8); len -= 8;
-			int numParts = buffer.getInt();
-			int numPoints = buffer.getInt();
+			int numParts = record.getInt();
+			int numPoints = record.getInt();
+			if (numParts < 0 || numPoints < 0 || record.remaining() < 4L * numParts + 16L * numPoints)
+				throw new EOFException();
 
-			fillBuffer(4 * numParts); len -= 4 * numParts;
 			int[] iPart = new int[numParts];
 			for (int i=0; i<numParts; i++){
-				iPart[i] = buffer.getInt();
+				iPart[i] = record.getInt();
 			}
 			
-			Point2D[][] parts = new Point2D[numParts][];
+			// points are packed as x,y pairs per part, just as we hold them
+			DoubleBuffer points = record.asDoubleBuffer();
+			if (!coordinates) {
+				shape.setPartBounds(outline(points, iPart, numPoints));
+				return shape;
+			}
+			double[][] parts = new double[numParts][];
 			for (int i=0; i<numParts; i++) {
-				int start = iPart[i];
+				int begin = iPart[i];
 				int end = i+1<numParts? iPart[i+1] : numPoints;
-				parts[i] = new Point2D[end-start];
-				
-				for (int j=start; j<end; j++) {
-					fillBuffer(16); len -= 16;
-					parts[i][j-start] = new Point2D.Double(buffer.getDouble(), buffer.getDouble());
-				}
+				parts[i] = new double[2*(end-begin)];
+				points.get(parts[i]);
 			}
-			shape.setShapeData(parts);
-			assert len == 0;
+			shape.setCoordinates(parts);
 			return shape;
 			
-			// other shape types are not supported by this implementation 
+			// other shape types are not supported by this implementation,
+			// so come back without data
 			default:
-				break;
+				return shape;
 		}
-		
-		return null;
 	}
 	
+	/**
+	 * Bounds and signed area of each part, see ShapeFileShape.getPartBounds
+	 */
+	private static double[] outline(DoubleBuffer points, int[] iPart, int numPoints) {
+		double[] outline = new double[5 * iPart.length];
+		for (int i = 0; i < iPart.length; i++) {
+			int begin = 2 * iPart[i];
+			int end = 2 * (i + 1 < iPart.length ? iPart[i + 1] : numPoints);
+			double xmin = Double.POSITIVE_INFINITY;
+			double ymin = Double.POSITIVE_INFINITY;
+			double xmax = Double.NEGATIVE_INFINITY;
+			double ymax = Double.NEGATIVE_INFINITY;
+			double area = 0.0;
+			for (int j = begin; j < end; j += 2) {
+				double x = points.get(j);
+				double y = points.get(j + 1);
+				xmin = Math.min(xmin, x);
+				ymin = Math.min(ymin, y);
+				xmax = Math.max(xmax, x);
+				ymax = Math.max(ymax, y);
+				if (j > begin)
+					area += ((x - points.get(j - 2)) * (y + points.get(j - 1))) / 2;
+			}
+			outline[5 * i] = xmin;
+			outline[5 * i + 1] = ymin;
+			outline[5 * i + 2] = xmax;
+			outline[5 * i + 3] = ymax;
+			outline[5 * i + 4] = area;
+		}
+		return outline;
+	}
+
 	public void close() throws IOException {
 		if (channel != null)
 			channel.close();
 	}
-}
\ No newline at end of file
+}
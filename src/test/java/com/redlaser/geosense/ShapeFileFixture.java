@@ -0,0 +1,239 @@
+/**
+ * ShapeFileFixture.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a small synthetic tz_world-style shapefile (.shp, .shx, .dbf) for tests,
+ * so TZWorld can be exercised without the full tz_world data. Shells are
+ * clockwise and holes counter-clockwise, as in the shapefile spec.
+ * 
+ * @author Frank D Russo
+ */
+public class ShapeFileFixture {
+	private List<String> tzids = new ArrayList<String>();
+	private List<double[][][]> shapes = new ArrayList<double[][][]>();
+
+	/**
+	 * The standard test world: a zone with a hole filled by an enclave, a
+	 * finely tessellated round zone, a zone split across the antimeridian and
+	 * a concave zone in the southern/western hemisphere.
+	 */
+	public static ShapeFileFixture world() {
+		ShapeFileFixture fixture = new ShapeFileFixture();
+		fixture.addZone("America/Los_Angeles", box(-125, 32, -115, 42, true), box(-120, 35, -118, 37, false));
+		fixture.addZone("America/Phoenix", box(-120, 35, -118, 37, true));
+		fixture.addZone("Europe/Berlin", star(10.5, 51.0, 4.0, 4.0, 2000));
+		fixture.addZone("Asia/Anadyr", box(170, 60, 180, 70, true), box(-180, 60, -170, 70, true));
+		fixture.addZone("America/Sao_Paulo", star(-50.0, -15.0, 5.0, 12.0, 360));
+		return fixture;
+	}
+
+	public ShapeFileFixture addZone(String tzid, double[][]... parts) {
+		tzids.add(tzid);
+		shapes.add(parts);
+		return this;
+	}
+
+	/**
+	 * Closed axis-aligned box as (lon,lat) points
+	 */
+	public static double[][] box(double minLon, double minLat, double maxLon, double maxLat, boolean clockwise) {
+		double[][] cw = new double[][] { { minLon, minLat }, { minLon, maxLat }, { maxLon, maxLat },
+				{ maxLon, minLat }, { minLon, minLat } };
+		if (clockwise)
+			return cw;
+
+		double[][] ccw = new double[cw.length][];
+		for (int i = 0; i < cw.length; i++)
+			ccw[i] = cw[cw.length - 1 - i];
+		return ccw;
+	}
+
+	/**
+	 * Closed clockwise ring around a center, alternating between two radii
+	 * (equal radii give a circle)
+	 */
+	public static double[][] star(double lon, double lat, double r1, double r2, int n) {
+		double[][] ring = new double[n + 1][];
+		for (int i = 0; i < n; i++) {
+			double a = -2 * Math.PI * i / n;
+			double r = i % 2 == 0 ? r1 : r2;
+			ring[i] = new double[] { lon + r * Math.cos(a), lat + r * Math.sin(a) };
+		}
+		ring[n] = ring[0];
+		return ring;
+	}
+
+	/**
+	 * Write name.shp, name.shx and name.dbf into dir
+	 * 
+	 * @return the URL of dir, as TZWorld expects
+	 */
+	public URL write(File dir, String name) throws IOException {
+		dir.mkdirs();
+		writeShp(new File(dir, name + ".shp"));
+		writeShx(new File(dir, name + ".shx"));
+		writeDbf(new File(dir, name + ".dbf"));
+		return dir.toURI().toURL();
+	}
+
+	private void writeShp(File file) throws IOException {
+		int size = 100;
+		for (double[][][] parts : shapes)
+			size += 8 + recordLength(parts);
+
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.order(ByteOrder.BIG_ENDIAN);
+		buf.putInt(0, 9994);
+		buf.putInt(24, size / 2);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(28, 1000);
+		buf.putInt(32, 5);
+		buf.putDouble(36, -180.0);
+		buf.putDouble(44, -90.0);
+		buf.putDouble(52, 180.0);
+		buf.putDouble(60, 90.0);
+		buf.position(100);
+
+		for (int s = 0; s < shapes.size(); s++) {
+			double[][][] parts = shapes.get(s);
+			buf.order(ByteOrder.BIG_ENDIAN);
+			buf.putInt(s + 1);
+			buf.putInt(recordLength(parts) / 2);
+
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(5);
+			double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+			double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+			int numPoints = 0;
+			for (double[][] part : parts) {
+				for (double[] p : part) {
+					minX = Math.min(minX, p[0]);
+					maxX = Math.max(maxX, p[0]);
+					minY = Math.min(minY, p[1]);
+					maxY = Math.max(maxY, p[1]);
+				}
+				numPoints += part.length;
+			}
+			buf.putDouble(minX);
+			buf.putDouble(minY);
+			buf.putDouble(maxX);
+			buf.putDouble(maxY);
+			buf.putInt(parts.length);
+			buf.putInt(numPoints);
+			int start = 0;
+			for (double[][] part : parts) {
+				buf.putInt(start);
+				start += part.length;
+			}
+			for (double[][] part : parts) {
+				for (double[] p : part) {
+					buf.putDouble(p[0]);
+					buf.putDouble(p[1]);
+				}
+			}
+		}
+
+		writeFile(file, buf.array());
+	}
+
+	/**
+	 * The index: a copy of the .shp header, then each record's offset and
+	 * content length in 16-bit words
+	 */
+	private void writeShx(File file) throws IOException {
+		int size = 100 + 8 * shapes.size();
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.order(ByteOrder.BIG_ENDIAN);
+		buf.putInt(0, 9994);
+		buf.putInt(24, size / 2);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(28, 1000);
+		buf.putInt(32, 5);
+		buf.position(100);
+
+		buf.order(ByteOrder.BIG_ENDIAN);
+		int offset = 100;
+		for (double[][][] parts : shapes) {
+			buf.putInt(offset / 2);
+			buf.putInt(recordLength(parts) / 2);
+			offset += 8 + recordLength(parts);
+		}
+
+		writeFile(file, buf.array());
+	}
+
+	private static int recordLength(double[][][] parts) {
+		int len = 4 + 32 + 8 + 4 * parts.length;
+		for (double[][] part : parts)
+			len += 16 * part.length;
+		return len;
+	}
+
+	private void writeDbf(File file) throws IOException {
+		int fieldLen = 30;
+		int headerLen = 32 + 32 + 1;
+		int recordLen = 1 + fieldLen;
+		ByteBuffer buf = ByteBuffer.allocate(headerLen + recordLen * tzids.size());
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.put(0, (byte) 0x03);
+		buf.putInt(4, tzids.size());
+		buf.putShort(8, (short) headerLen);
+		buf.putShort(10, (short) recordLen);
+
+		buf.position(32);
+		byte[] name = new byte[11];
+		System.arraycopy("TZID".getBytes("US-ASCII"), 0, name, 0, 4);
+		buf.put(name);
+		buf.put((byte) 'C');
+		buf.putInt(0);
+		buf.put((byte) fieldLen);
+		buf.position(64);
+		buf.put((byte) 0x0D);
+
+		for (String tzid : tzids) {
+			buf.put((byte) ' ');
+			byte[] value = new byte[fieldLen];
+			Arrays.fill(value, (byte) ' ');
+			byte[] id = tzid.getBytes("US-ASCII");
+			System.arraycopy(id, 0, value, 0, id.length);
+			buf.put(value);
+		}
+
+		writeFile(file, buf.array());
+	}
+
+	private static void writeFile(File file, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		}
+		finally {
+			out.close();
+		}
+	}
+}
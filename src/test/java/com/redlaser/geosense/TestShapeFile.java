@@ -0,0 +1,335 @@
+/**
+ * TestShapeFile.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.redlaser.geosense.shapefile.DbfFile;
+import com.redlaser.geosense.shapefile.ShapeFile;
+import com.redlaser.geosense.shapefile.ShapeFileShape;
+import com.redlaser.geosense.shapefile.ShpFile;
+
+/**
+ * Streamed and memory-mapped shapefile reading against ShapeFileFixture
+ * 
+ * @author Frank D Russo
+ */
+public class TestShapeFile extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("shapefile", "");
+		dir.delete();
+		ShapeFileFixture.world().write(dir, "tz_test");
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	public void testMappedMatchesStreamed() throws IOException {
+		List<ShapeFileShape> streamed = readStreamed();
+		assertEquals(5, streamed.size());
+
+		ShapeFile mapped = new ShapeFile(dir, "tz_test");
+		assertTrue(mapped.isMapped());
+		assertEquals(streamed.size(), mapped.getNumRecords());
+		assertSameShapes(streamed, readAll(mapped));
+
+		// file: URLs are mapped too
+		ShapeFile byUrl = new ShapeFile(dir.toURI().toURL(), "tz_test");
+		assertTrue(byUrl.isMapped());
+		assertSameShapes(streamed, readAll(byUrl));
+
+		// without the .shx, records are found by scanning
+		new File(dir, "tz_test.shx").delete();
+		ShapeFile unindexed = new ShapeFile(dir, "tz_test");
+		assertEquals(streamed.size(), unindexed.getNumRecords());
+		assertSameShapes(streamed, readAll(unindexed));
+	}
+
+	public void testRandomAccess() throws IOException {
+		List<ShapeFileShape> streamed = readStreamed();
+		ShapeFile mapped = new ShapeFile(dir, "tz_test");
+		for (int i = streamed.size(); i >= 1; i--)
+			assertSameShape(streamed.get(i - 1), mapped.readShape(i));
+
+		try {
+			mapped.readShape(streamed.size() + 1);
+			fail();
+		}
+		catch (IndexOutOfBoundsException e) {
+		}
+
+		ShpFile shp = new ShpFile(new FileInputStream(new File(dir, "tz_test.shp")));
+		try {
+			shp.readShape(1);
+			fail();
+		}
+		catch (IllegalStateException e) {
+		}
+		finally {
+			shp.close();
+		}
+	}
+
+	public void testOutline() throws IOException {
+		List<ShapeFileShape> streamed = readStreamed();
+		ShapeFile mapped = new ShapeFile(dir, "tz_test");
+		mapped.setColumns("TZID");
+		for (int i = 1; i <= streamed.size(); i++) {
+			ShapeFileShape shape = streamed.get(i - 1);
+			ShapeFileShape outline = mapped.readOutline(i);
+			assertNull(outline.getCoordinates());
+			assertEquals(shape.getShapeMetadata().get("TZID"), outline.getShapeMetadata().get("TZID"));
+			assertEquals(shape.getXmin(), outline.getXmin(), 0.0);
+
+			double[] bounds = outline.getPartBounds();
+			double[][] parts = shape.getCoordinates();
+			assertEquals(5 * parts.length, bounds.length);
+			for (int p = 0; p < parts.length; p++) {
+				double xmin = Double.MAX_VALUE;
+				double ymax = -Double.MAX_VALUE;
+				for (int j = 0; j < parts[p].length; j += 2) {
+					xmin = Math.min(xmin, parts[p][j]);
+					ymax = Math.max(ymax, parts[p][j + 1]);
+				}
+				assertEquals(xmin, bounds[5 * p], 0.0);
+				assertEquals(ymax, bounds[5 * p + 3], 0.0);
+			}
+			assertNull(mapped.readGeometry(i).getShapeMetadata());
+		}
+
+		// shells are clockwise, the Los Angeles hole counter-clockwise
+		double[] la = mapped.readOutline(1).getPartBounds();
+		assertTrue(la[4] > 0.0);
+		assertTrue(la[9] < 0.0);
+
+		// and the mapping outlives close
+		mapped.close();
+		assertTrue(Arrays.equals(streamed.get(2).getCoordinates()[0], mapped.readGeometry(3).getCoordinates()[0]));
+	}
+
+	public void testProjection() throws IOException {
+		ShapeFile mapped = new ShapeFile(dir, "tz_test");
+		mapped.setColumns("TZID");
+		assertEquals("America/Phoenix", mapped.readShape(2).getShapeMetadata().get("TZID"));
+		assertEquals(1, mapped.readShape().getShapeMetadata().size());
+
+		try {
+			mapped.setColumns("NAME");
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+		}
+		mapped.close();
+
+		// the tz_world attributes
+		InputStream in = GeoSense.class.getResourceAsStream("tzworld/tz_world_mp.dbf");
+		DbfFile tzWorld = new DbfFile(in);
+		DbfFile.Cursor cursor = tzWorld.cursor("TZID");
+		int count = 0;
+		while (cursor.next()) {
+			assertTrue(cursor.getString(0).indexOf('/') > 0 || cursor.getString(0).equals("uninhabited"));
+			count++;
+		}
+		assertEquals(tzWorld.getNumRecords(), count);
+		tzWorld.close();
+	}
+
+	public void testFieldTypes() throws IOException {
+		File file = new File(dir, "typed.dbf");
+		writeTypedDbf(file);
+
+		DbfFile streamed = new DbfFile(new FileInputStream(file));
+		DbfFile mapped = new DbfFile(file);
+		assertEquals(9041, streamed.getRecordLen());
+
+		// maps of all fields, typed
+		Map<String, Object> first = streamed.readRecord();
+		assertEquals(first, mapped.readRecord(1));
+		assertEquals("Pago Pago", first.get("NAME"));
+		assertEquals(Long.valueOf(-1234567), first.get("POP"));
+		assertEquals(Double.valueOf(12.345), first.get("AREA"));
+		assertEquals(Double.valueOf(6.02e23), first.get("RATIO"));
+		assertEquals(LocalDate.of(1899, 12, 31), first.get("FOUNDED"));
+		assertEquals(Boolean.TRUE, first.get("COASTAL"));
+
+		Map<String, Object> second = streamed.readRecord();
+		assertEquals(second, mapped.readRecord(2));
+		assertTrue(second.containsKey("POP"));
+		assertNull(second.get("POP"));
+		assertNull(second.get("FOUNDED"));
+		assertNull(second.get("COASTAL"));
+		assertEquals(0, streamed.readRecord().size());	// deleted
+		assertNull(streamed.readRecord());
+		streamed.close();
+
+		// only the projected fields, numbered in projection order
+		DbfFile.Cursor cursor = mapped.cursor("COASTAL", "AREA", "NAME");
+		assertEquals(3, cursor.getColumnCount());
+		assertTrue(cursor.next());
+		assertTrue(cursor.getBoolean(0));
+		assertEquals(12.345, cursor.getDouble(1));
+		assertEquals(12L, cursor.getLong(1));
+		assertEquals("Pago Pago", cursor.getString(2));
+		assertEquals(3, cursor.toMap().size());
+
+		cursor.seek(2);
+		assertEquals(2, cursor.getRecordNum());
+		assertTrue(cursor.isNull(0));
+		assertFalse(cursor.getBoolean(0));
+		assertEquals(-0.5, cursor.getDouble(1));
+		assertTrue(cursor.getString(2).startsWith("Long"));
+		assertEquals(9000, cursor.getString(2).length());
+
+		cursor.seek(3);
+		assertTrue(cursor.isDeleted());
+
+		// seeking leaves the sequential position alone
+		assertTrue(cursor.next());
+		assertEquals(2, cursor.getRecordNum());
+		assertTrue(cursor.next());
+		assertFalse(cursor.next());
+		try {
+			cursor.getString(2);
+			fail();
+		}
+		catch (IllegalStateException e) {
+		}
+		mapped.close();
+	}
+
+	/**
+	 * A .dbf with one field of each supported type, including a character
+	 * field too long for the stream buffer: a full record, one with blank
+	 * values and a deleted one
+	 */
+	private static void writeTypedDbf(File file) throws IOException {
+		String[] names = { "NAME", "POP", "AREA", "RATIO", "FOUNDED", "COASTAL" };
+		char[] types = { 'C', 'N', 'N', 'F', 'D', 'L' };
+		int[] lens = { 9000, 10, 12, 9, 8, 1 };
+		int[] decimals = { 0, 0, 3, 0, 0, 0 };
+		String[][] values = {
+				{ "Pago Pago", "  -1234567", "      12.345", "  6.02E23", "18991231", "T" },
+				{ "Long" + new String(new char[8996]).replace('\0', 'g'), "          ", "      -0.500",
+						"         ", "        ", "?" },
+				{ "Gone", "         1", "       1.000", "      1.0", "20130101", "F" } };
+
+		int headerLen = 32 + 32 * names.length + 1;
+		int recordLen = 1;
+		for (int len : lens)
+			recordLen += len;
+		ByteBuffer buf = ByteBuffer.allocate(headerLen + recordLen * values.length);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.put(0, (byte) 0x03);
+		buf.putInt(4, values.length);
+		buf.putShort(8, (short) headerLen);
+		buf.putShort(10, (short) recordLen);
+
+		for (int f = 0; f < names.length; f++) {
+			buf.position(32 + 32 * f);
+			buf.put(names[f].getBytes("US-ASCII"));
+			buf.position(32 + 32 * f + 11);
+			buf.put((byte) types[f]);
+			buf.putInt(0);
+			buf.put((byte) lens[f]);
+			// character lengths over 255 spill into the decimal count
+			buf.put((byte) (types[f] == 'C' ? lens[f] >> 8 : decimals[f]));
+		}
+		buf.position(headerLen - 1);
+		buf.put((byte) 0x0D);
+
+		for (int r = 0; r < values.length; r++) {
+			buf.put((byte) (r == 2 ? '*' : ' '));
+			for (int f = 0; f < names.length; f++) {
+				byte[] value = new byte[lens[f]];
+				Arrays.fill(value, (byte) ' ');
+				byte[] bytes = values[r][f].getBytes("US-ASCII");
+				System.arraycopy(bytes, 0, value, 0, bytes.length);
+				buf.put(value);
+			}
+		}
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(buf.array());
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private List<ShapeFileShape> readStreamed() throws IOException {
+		ShpFile shp = new ShpFile(new FileInputStream(new File(dir, "tz_test.shp")));
+		DbfFile dbf = new DbfFile(new FileInputStream(new File(dir, "tz_test.dbf")));
+		assertFalse(shp.isMapped());
+		List<ShapeFileShape> shapes = new ArrayList<ShapeFileShape>();
+		ShapeFileShape shape;
+		while ((shape = shp.readShape()) != null) {
+			shape.setShapeMetadata(dbf.readRecord());
+			shapes.add(shape);
+		}
+		assertNull(dbf.readRecord());
+		shp.close();
+		dbf.close();
+		return shapes;
+	}
+
+	private static List<ShapeFileShape> readAll(ShapeFile shapeFile) throws IOException {
+		List<ShapeFileShape> shapes = new ArrayList<ShapeFileShape>();
+		ShapeFileShape shape;
+		while ((shape = shapeFile.readShape()) != null)
+			shapes.add(shape);
+		shapeFile.close();
+		return shapes;
+	}
+
+	private static void assertSameShapes(List<ShapeFileShape> expected, List<ShapeFileShape> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+			assertSameShape(expected.get(i), actual.get(i));
+	}
+
+	private static void assertSameShape(ShapeFileShape expected, ShapeFileShape actual) {
+		assertEquals(expected.getRecordNum(), actual.getRecordNum());
+		assertEquals(expected.getShapeType(), actual.getShapeType());
+		assertEquals(expected.getShapeMetadata(), actual.getShapeMetadata());
+		assertEquals(expected.getXmin(), actual.getXmin());
+		assertEquals(expected.getYmax(), actual.getYmax());
+		assertEquals(expected.getCoordinates().length, actual.getCoordinates().length);
+		for (int p = 0; p < expected.getCoordinates().length; p++)
+			assertTrue(Arrays.equals(expected.getCoordinates()[p], actual.getCoordinates()[p]));
+	}
+}
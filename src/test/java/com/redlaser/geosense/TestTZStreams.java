@@ -0,0 +1,162 @@
+/**
+ * TestTZStreams.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/**
+ * TZStreams tests against the synthetic ShapeFileFixture world
+ * 
+ * @author Frank D Russo
+ */
+public class TestTZStreams extends TestCase {
+	private File dir;
+	private TZWorld tzWorld;
+	private double[] lats;
+	private double[] lons;
+	private List<double[]> points;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("tzworld", "");
+		dir.delete();
+		tzWorld = new TZWorld(ShapeFileFixture.world().write(dir, "tz_test"), "tz_test");
+
+		// more than a few micro-batches, and not a multiple of one
+		Random random = new Random(5);
+		int n = 20 * TZStreams.BATCH_SIZE + 17;
+		lats = new double[n];
+		lons = new double[n];
+		points = new ArrayList<double[]>();
+		for (int i = 0; i < n; i++) {
+			lats[i] = random.nextDouble() * 140.0 - 70.0;
+			lons[i] = random.nextDouble() * 360.0 - 180.0;
+			points.add(new double[] { lats[i], lons[i] });
+		}
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Expected zone, like GeoSense.getTimeZone(lat, lon)
+	 */
+	private String expected(double lat, double lon) {
+		TimeZone tz = tzWorld.findTimeZone(lat, lon);
+		return tz != null ? tz.getID() : GeoSense.getEtcTimeZone(GeoSense.getEtcOrdinal(lon)).getID();
+	}
+
+	public void testMapToTimeZone() {
+		for (boolean parallel : new boolean[] { false, true }) {
+			Stream<double[]> stream = parallel ? points.parallelStream() : points.stream();
+			List<String> ids = TZStreams.mapToTimeZone(tzWorld, stream, p -> p[0], p -> p[1],
+					(p, tz) -> expected(p[0], p[1]) + "=" + tz.getID()).collect(Collectors.toList());
+
+			assertEquals(points.size(), ids.size());
+			for (int i = 0; i < ids.size(); i++) {
+				String id = expected(lats[i], lons[i]);
+				assertEquals(id + "=" + id, ids.get(i));
+			}
+		}
+
+		// short-circuiting part way through a batch
+		assertEquals(10, TZStreams.mapToTimeZone(tzWorld, points.stream(), p -> p[0], p -> p[1], (p, tz) -> tz)
+				.limit(10).count());
+	}
+
+	public void testTimeZones() {
+		for (boolean parallel : new boolean[] { false, true }) {
+			DoubleStream latStream = Arrays.stream(lats);
+			DoubleStream lonStream = Arrays.stream(lons);
+			if (parallel)
+				latStream = latStream.parallel();
+			Object[] zones = TZStreams.timeZones(tzWorld, latStream, lonStream).toArray();
+
+			assertEquals(lats.length, zones.length);
+			for (int i = 0; i < zones.length; i++)
+				assertEquals(expected(lats[i], lons[i]), ((TimeZone) zones[i]).getID());
+		}
+
+		try {
+			TZStreams.timeZones(tzWorld, DoubleStream.of(1, 2), DoubleStream.of(1)).count();
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testGroupingByTimeZone() {
+		Map<String, List<double[]>> expected = points.stream()
+				.collect(Collectors.groupingBy(p -> expected(p[0], p[1])));
+
+		for (boolean parallel : new boolean[] { false, true }) {
+			Stream<double[]> stream = parallel ? points.parallelStream() : points.stream();
+			Map<TimeZone, List<double[]>> groups = stream.collect(
+					TZStreams.groupingByTimeZone(tzWorld, p -> p[0], p -> p[1]));
+
+			assertEquals(expected.size(), groups.size());
+			for (Map.Entry<TimeZone, List<double[]>> entry : groups.entrySet())
+				assertEquals(expected.get(entry.getKey().getID()), entry.getValue());
+		}
+	}
+
+	public void testGroupingKeepsOrderAcrossExtents() throws IOException {
+		// two records of the same zone, with points alternating between them
+		File shared = File.createTempFile("tzworld", "");
+		shared.delete();
+		try {
+			TZWorld world = new TZWorld(ShapeFileFixture.world()
+					.addZone("America/Los_Angeles", ShapeFileFixture.box(-100, 20, -95, 25, true))
+					.write(shared, "tz_test"), "tz_test");
+			assertEquals(6, world.getTimeZoneCount());
+
+			List<double[]> points = new ArrayList<double[]>();
+			for (int i = 0; i < 3 * TZStreams.BATCH_SIZE; i++)
+				points.add(i % 2 == 0 ? new double[] { 40.0, -120.0, i } : new double[] { 22.0, -97.0, i });
+
+			for (boolean parallel : new boolean[] { false, true }) {
+				Stream<double[]> stream = parallel ? points.parallelStream() : points.stream();
+				Map<TimeZone, List<double[]>> groups = stream.collect(
+						TZStreams.groupingByTimeZone(world, p -> p[0], p -> p[1]));
+
+				assertEquals(1, groups.size());
+				assertEquals(points, groups.get(TimeZone.getTimeZone("America/Los_Angeles")));
+			}
+		}
+		finally {
+			for (File file : shared.listFiles())
+				file.delete();
+			shared.delete();
+		}
+	}
+}
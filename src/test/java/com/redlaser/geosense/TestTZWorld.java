@@ -0,0 +1,1040 @@
+/**
+ * TestTZWorld.java
+ * 
+ * Copyright (c) 2013 eBay Software Foundation
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package com.redlaser.geosense;
+
+import java.awt.Polygon;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+/**
+ * TZWorld tests against the synthetic ShapeFileFixture world, which unlike
+ * TestGeoSense need no tz_world data.
+ * 
+ * @author Frank D Russo
+ */
+public class TestTZWorld extends TestCase {
+	private File dir;
+	private TZWorld tzWorld;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("tzworld", "");
+		dir.delete();
+		URL root = ShapeFileFixture.world().write(dir, "tz_test");
+		tzWorld = new TZWorld(root, "tz_test");
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	public void testFindTimeZone() {
+		assertEquals("America/Los_Angeles", tzWorld.findTimeZone(37.29390, -121.91413).getID());
+		assertEquals("America/Phoenix", tzWorld.findTimeZone(36.0, -119.0).getID());
+		assertEquals("Europe/Berlin", tzWorld.findTimeZone(52.52, 13.40).getID());
+		assertEquals("America/Sao_Paulo", tzWorld.findTimeZone(-15.0, -50.0).getID());
+		assertNull(tzWorld.findTimeZone(0.0, -20.0));
+	}
+
+	public void testHolesAndAntimeridian() {
+		// the enclave hole belongs to the Los Angeles shell only
+		TZWorld.TZExtent la = tzWorld.findTimeZoneExtent(33.0, -124.0);
+		assertEquals(1, la.getShells().length);
+		assertEquals(1, la.getHoleStart()[1]);
+		assertFalse(la.contains(36.0, -119.0));
+
+		// extent bounds span the full 360 degrees
+		assertEquals("Asia/Anadyr", tzWorld.findTimeZone(65.0, 175.0).getID());
+		assertEquals("Asia/Anadyr", tzWorld.findTimeZone(65.0, -175.0).getID());
+	}
+
+	public void testRingMatchesPolygon() {
+		Random random = new Random(42);
+		for (int r = 0; r < 50; r++) {
+			int n = 3 + random.nextInt(40);
+			int[] xs = new int[n];
+			int[] ys = new int[n];
+			int[] coords = new int[2 * n];
+			for (int i = 0; i < n; i++) {
+				// small coordinate range so points land on vertices and edges too
+				coords[2 * i] = xs[i] = random.nextInt(200) - 100;
+				coords[2 * i + 1] = ys[i] = random.nextInt(200) - 100;
+			}
+			Ring ring = new ArrayRing(coords);
+			Ring indexed = new ArrayRing(coords);
+			indexed.indexEdges();
+			Ring packed = new PackedRing(ring);
+			Polygon polygon = new Polygon(xs, ys, n);
+			for (int x = -110; x <= 110; x++) {
+				for (int y = -110; y <= 110; y++) {
+					assertEquals(polygon.contains(x, y), ring.contains(x, y));
+					assertEquals(polygon.contains(x, y), indexed.contains(x, y));
+					assertEquals(polygon.contains(x, y), packed.contains(x, y));
+				}
+			}
+		}
+	}
+
+	public void testEdgeIndex() throws IOException {
+		// the finely tessellated Berlin is over the threshold
+		Ring berlin = tzWorld.findTimeZoneExtent(51.0, 10.5).getShells()[0];
+		assertTrue(berlin.isEdgeIndexed());
+		assertFalse(tzWorld.findTimeZoneExtent(36.0, -119.0).getShells()[0].isEdgeIndexed());
+
+		TZWorldConfig config = new TZWorldConfig();
+		config.setEdgeIndexThreshold(0);
+		config.setQuadtree(false);
+		TZWorld plain = new TZWorld(dir.toURI().toURL(), "tz_test", config);
+		assertFalse(plain.findTimeZoneExtent(51.0, 10.5).getShells()[0].isEdgeIndexed());
+
+		config.setEdgeIndexThreshold(4);
+		assertSameLookups(plain, new TZWorld(dir.toURI().toURL(), "tz_test", config));
+
+		// lazy extents index their rings as they decode them
+		config.setLazyGeometry(true);
+		TZWorld lazy = new TZWorld(dir.toURI().toURL(), "tz_test", config);
+		TZWorld.TZExtent extent = lazy.findTimeZoneExtent(51.0, 10.5);
+		extent.releaseGeometry();
+		assertTrue(extent.getShells()[0].isEdgeIndexed());
+	}
+
+	public void testSimplified() throws IOException {
+		TZWorldConfig config = new TZWorldConfig();
+		config.setSimplifyTolerance(5000.0);
+		config.setLazyGeometry(true);
+		TZWorld simplified = new TZWorld(dir.toURI().toURL(), "tz_test", config);
+		TZWorld.TZExtent berlin = simplified.findTimeZoneExtent(51.0, 10.5);
+		assertTrue(berlin.getSimplified().getVertexCount() < 100);
+		assertSameLookups(tzWorld, simplified);
+
+		// right at the exact boundary, where only the exact rings can tell
+		Ring ring = tzWorld.findTimeZoneExtent(51.0, 10.5).getShells()[0];
+		Random random = new Random(11);
+		for (int i = 0; i < ring.size(); i++) {
+			double lat = (double) ring.getY(i) / TZWorld.SCALE_FACTOR + (random.nextDouble() - 0.5) * 1e-5;
+			double lon = (double) ring.getX(i) / TZWorld.SCALE_FACTOR + (random.nextDouble() - 0.5) * 1e-5;
+			assertEquals(tzWorld.findTimeZone(lat, lon), simplified.findTimeZone(lat, lon));
+		}
+
+		// simplified rings large enough get edge bands, grown by the tolerance
+		config = new TZWorldConfig();
+		config.setSimplifyTolerance(100.0);
+		config.setEdgeIndexThreshold(16);
+		TZWorld banded = new TZWorld(dir.toURI().toURL(), "tz_test", config);
+		SimplifiedGeometry star = banded.findTimeZoneExtent(51.0, 10.5).getSimplified();
+		assertTrue(star.isEdgeIndexed());
+		assertFalse(banded.findTimeZoneExtent(36.0, -119.0).getSimplified().isEdgeIndexed());
+		assertSameLookups(tzWorld, banded);
+		for (int i = 0; i < ring.size(); i++) {
+			double lat = (double) ring.getY(i) / TZWorld.SCALE_FACTOR + (random.nextDouble() - 0.5) * 1e-3;
+			double lon = (double) ring.getX(i) / TZWorld.SCALE_FACTOR + (random.nextDouble() - 0.5) * 1e-3;
+			assertEquals(tzWorld.findTimeZone(lat, lon), banded.findTimeZone(lat, lon));
+		}
+	}
+
+	public void testNearestTimeZone() throws IOException {
+		TZNearest inside = tzWorld.findNearestTimeZone(52.52, 13.40, 10.0);
+		assertEquals("Europe/Berlin", inside.getTimeZone().getID());
+		assertEquals(0.0, inside.getDistance());
+
+		// 0.2 degree off the Los Angeles coast, and 0.5 off Berlin's
+		TZNearest offshore = tzWorld.findNearestTimeZone(37.0, -125.2, 50.0);
+		assertEquals("America/Los_Angeles", offshore.getTimeZone().getID());
+		assertEquals(0.2 * Math.cos(Math.toRadians(37.0)) * TZNearest.KM_PER_DEGREE, offshore.getDistance(), 0.01);
+		assertNull(tzWorld.findNearestTimeZone(37.0, -125.2, 10.0));
+		TZNearest east = tzWorld.findNearestTimeZone(51.0, 15.0, 50.0);
+		assertEquals("Europe/Berlin", east.getTimeZone().getID());
+		assertEquals(0.5 * Math.cos(Math.toRadians(51.0)) * TZNearest.KM_PER_DEGREE, east.getDistance(), 0.01);
+
+		// nearest across the antimeridian, and across a corner
+		assertEquals("Asia/Anadyr", tzWorld.findNearestTimeZone(65.0, 179.9, 1.0).getTimeZone().getID());
+		assertEquals("Asia/Anadyr", tzWorld.findNearestTimeZone(65.0, -169.5, 50.0).getTimeZone().getID());
+		TZNearest corner = tzWorld.findNearestTimeZone(31.9, -125.1, 50.0);
+		assertEquals(Math.hypot(0.1 * Math.cos(Math.toRadians(31.9)), 0.1) * TZNearest.KM_PER_DEGREE,
+				corner.getDistance(), 0.01);
+
+		// a wide search still takes the nearest, and finds nothing in open ocean
+		assertEquals("America/Los_Angeles", tzWorld.findNearestTimeZone(31.5, -119.0, 500.0).getTimeZone().getID());
+		assertNull(tzWorld.findNearestTimeZone(0.0, -20.0, 500.0));
+
+		// inside Lagos, far from its edges, even when the lookup misses it
+		// through a cache cell first filled from outside
+		TZWorld meridian = new TZWorld(writeMeridianWorld(dir), "tz_meridian");
+		assertEquals(0.0, meridian.findNearestTimeZone(10.5, -0.2, 10.0).getDistance());
+		meridian.setCache(new TZCache(4, 1.0));
+		assertNull(meridian.findTimeZone(10.5, -0.6));
+		assertEquals(-1, meridian.findTimeZoneOrdinal(10.5, -0.2));
+		TZNearest lagos = meridian.findNearestTimeZone(10.5, -0.2, 10.0);
+		assertEquals("Africa/Lagos", lagos.getTimeZone().getID());
+		assertEquals(0.0, lagos.getDistance());
+	}
+
+	public void testFindTimeZones() {
+		assertEquals(Arrays.asList("America/Los_Angeles", "America/Phoenix"), ids(tzWorld.findTimeZones(34.0, -121.0,
+				36.0, -119.0)));
+		assertEquals(Arrays.asList("America/Phoenix"), ids(tzWorld.findTimeZones(35.5, -119.5, 36.5, -118.5)));
+		assertEquals(Arrays.asList("America/Los_Angeles"), ids(tzWorld.findTimeZones(38.0, -124.0, 41.0, -116.0)));
+		assertEquals(5, tzWorld.findTimeZones(-90.0, -180.0, 90.0, 180.0).size());
+		assertTrue(tzWorld.findTimeZones(0.0, -30.0, 10.0, -20.0).isEmpty());
+
+		// inside Berlin's bounds but clear of its circle
+		assertTrue(tzWorld.findTimeZones(54.5, 13.5, 56.0, 15.0).isEmpty());
+		assertEquals(Arrays.asList("Europe/Berlin"), ids(tzWorld.findTimeZones(54.5, 12.0, 56.0, 13.0)));
+
+		// across the antimeridian
+		assertEquals(Arrays.asList("Asia/Anadyr"), ids(tzWorld.findTimeZones(64.0, 179.5, 66.0, -179.5)));
+
+		// polygons: across the enclave, inside it, around Berlin, and between
+		assertEquals(Arrays.asList("America/Los_Angeles", "America/Phoenix"), ids(tzWorld.findTimeZones(
+				new double[] { 33.0, 36.0, 33.0 }, new double[] { -122.0, -119.0, -116.0 })));
+		assertEquals(Arrays.asList("America/Phoenix"), ids(tzWorld.findTimeZones(new double[] { 35.5, 36.5, 35.5 },
+				new double[] { -119.5, -119.0, -118.5 })));
+		assertEquals(Arrays.asList("Europe/Berlin"), ids(tzWorld.findTimeZones(new double[] { 45.0, 57.0, 45.0 },
+				new double[] { 0.0, 10.5, 21.0 })));
+		assertTrue(tzWorld.findTimeZones(new double[] { 54.0, 56.0, 56.0 }, new double[] { 15.0, 13.0, 15.0 })
+				.isEmpty());
+	}
+
+	private static List<String> ids(List<TimeZone> tzs) {
+		List<String> ids = new ArrayList<String>();
+		for (TimeZone tz : tzs)
+			ids.add(tz.getID());
+		return ids;
+	}
+
+	public void testNegativeBounds() throws IOException {
+		// zones reaching part way into the tiles west of the meridian and
+		// south of the equator
+		TZWorld meridian = new TZWorld(writeMeridianWorld(dir), "tz_meridian");
+		assertEquals("Africa/Lagos", meridian.findTimeZone(10.5, -0.2).getID());
+		assertEquals("Africa/Lagos", meridian.findTimeZone(10.5, 0.2).getID());
+		assertNull(meridian.findTimeZone(10.5, -0.6));
+		assertEquals("Africa/Luanda", meridian.findTimeZone(-10.7, 1.0).getID());
+		assertNull(meridian.findTimeZone(-10.9, 1.0));
+
+		TZIndex index = meridian.getIndex();
+		assertEquals(1, index.end(TZWorld.getIndex(10.5, -0.2)) - index.start(TZWorld.getIndex(10.5, -0.2)));
+		assertEquals(1, index.end(TZWorld.getIndex(-10.7, 0.5)) - index.start(TZWorld.getIndex(-10.7, 0.5)));
+
+		File file = new File(dir, "tz_meridian" + TZWorldSnapshot.EXTENSION);
+		TZWorldSnapshot.write(meridian, file);
+		assertEquals("Africa/Lagos", TZWorldSnapshot.map(file).findTimeZone(10.5, -0.2).getID());
+	}
+
+	/**
+	 * Small zones whose bounds are negative and not whole degrees, the last
+	 * overlapping Luanda where the index lists Luanda first
+	 */
+	private static URL writeMeridianWorld(File dir) throws IOException {
+		ShapeFileFixture fixture = new ShapeFileFixture();
+		fixture.addZone("Africa/Lagos", ShapeFileFixture.box(-0.5, 10.2, 0.5, 10.8, true));
+		fixture.addZone("Africa/Luanda", ShapeFileFixture.box(0.2, -10.8, 1.8, -10.2, true));
+		fixture.addZone("Africa/Kinshasa", ShapeFileFixture.box(1.5, -11.0, 3.0, -10.0, true));
+		return fixture.write(dir, "tz_meridian");
+	}
+
+	public void testRaster() throws IOException {
+		TZWorldConfig config = new TZWorldConfig();
+		config.setRasterResolution(0.01);
+		TZWorld rastered = new TZWorld(dir.toURI().toURL(), "tz_test", config);
+		TZRaster raster = rastered.getRaster();
+		assertEquals(0.01, raster.getResolution(), 1e-12);
+		assertTrue(raster.getSize() <= config.getRasterBudget());
+		assertSameLookups(tzWorld, rastered);
+		assertTrue(raster.getHits() > 0);
+		assertTrue(raster.getFallbackRate() < 0.05);
+
+		// a budget too small for fine cells gets coarser ones, then none
+		config.setRasterBudget(200000);
+		raster = TZRaster.build(tzWorld, 0.01, config.getRasterBudget());
+		assertTrue(raster.getResolution() > 0.01);
+		assertTrue(raster.getSize() <= 200000);
+		assertNull(TZRaster.build(tzWorld, 0.01, 100));
+	}
+
+	public void testSnapshot() throws IOException {
+		File file = new File(dir, "tz_test" + TZWorldSnapshot.EXTENSION);
+		TZWorldSnapshot.write(tzWorld, file);
+
+		assertSameLookups(tzWorld, TZWorldSnapshot.map(file));
+		FileInputStream in = new FileInputStream(file);
+		try {
+			assertSameLookups(tzWorld, TZWorldSnapshot.read(in));
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	public void testSnapshotCorrupt() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TZWorldSnapshot.write(tzWorld, out);
+		byte[] bytes = out.toByteArray();
+		assertSameLookups(tzWorld, TZWorldSnapshot.read(ByteBuffer.wrap(bytes)));
+
+		// cut anywhere, including inside the quadtree at the end
+		for (int length = 0; length < bytes.length; length += 997)
+			assertCorrupt(Arrays.copyOf(bytes, length));
+		assertCorrupt(Arrays.copyOf(bytes, bytes.length - 1));
+
+		// where things are, from the header and the extents
+		ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		int ringCount = header.getInt(12);
+		int candidateCount = header.getInt(20);
+		int vertexCount = header.getInt(24);
+		int ringStart = 28;
+		for (TZWorld.TZExtent extent : tzWorld.getExtents())
+			ringStart += 4 + extent.getTimeZone().getID().length() + 16 + 8 + 4 * (extent.getShells().length + 1);
+		int candidateStart = ringStart + 20 * ringCount + 4 * (TZWorld.INDEX_SIZE + 1);
+		int quadtreeStart = candidateStart + 4 * candidateCount + 8 * vertexCount;
+		assertEquals(candidateCount, header.getInt(candidateStart - 4));
+
+		// a negative tzid length, ring sizes that do not add up, or run past
+		// the vertices, a candidate past the extents, and quadtree references
+		// past the extents and the nodes
+		assertCorrupt(withInt(bytes, 28, -1));
+		assertCorrupt(withInt(bytes, ringStart + 16, header.getInt(ringStart + 16) + 1));
+		assertCorrupt(withInt(bytes, ringStart + 16, vertexCount + 1));
+		assertCorrupt(withInt(bytes, candidateStart, tzWorld.getExtents().length));
+		assertCorrupt(withInt(bytes, candidateStart, -1));
+		assertEquals(tzWorld.getQuadtree().getDepth(), header.getInt(quadtreeStart));
+		assertCorrupt(withInt(bytes, quadtreeStart + 12, 0x40000000 | tzWorld.getExtents().length));
+		assertCorrupt(withInt(bytes, quadtreeStart + 12, tzWorld.getQuadtree().getNodes().length));
+		assertCorrupt(withInt(bytes, quadtreeStart + 4, -1));
+	}
+
+	private static byte[] withInt(byte[] bytes, int offset, int value) {
+		byte[] copy = bytes.clone();
+		ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN).putInt(offset, value);
+		return copy;
+	}
+
+	private static void assertCorrupt(byte[] bytes) {
+		try {
+			TZWorldSnapshot.read(ByteBuffer.wrap(bytes));
+			fail("read a corrupt snapshot of " + bytes.length + " bytes");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testQuadtree() throws IOException {
+		URL root = dir.toURI().toURL();
+		TZWorldConfig config = new TZWorldConfig();
+		config.setQuadtree(false);
+		TZWorld plain = new TZWorld(root, "tz_test", config);
+		assertNull(plain.getQuadtree());
+		assertNotNull(tzWorld.getQuadtree());
+		assertSameLookups(plain, tzWorld);
+
+		// a budget too small to split anything still gives the same answers
+		config = new TZWorldConfig();
+		config.setQuadtreeBudget(64);
+		assertSameLookups(plain, new TZWorld(root, "tz_test", config));
+	}
+
+	public void testLazyGeometry() throws IOException {
+		TZWorldConfig config = new TZWorldConfig();
+		config.setLazyGeometry(true);
+		TZWorld lazy = new TZWorld(dir.toURI().toURL(), "tz_test", config);
+
+		// from a mapped shapefile, nothing is decoded or packed at load, not
+		// even for the index and quadtree
+		for (TZWorld.TZExtent extent : lazy.getExtents()) {
+			assertTrue(extent.isLazy());
+			assertFalse(extent.isDecoded());
+			assertEquals(0, extent.getPackedSize());
+		}
+		assertNotNull(lazy.getQuadtree());
+		assertEquals("Europe/Berlin", lazy.findTimeZone(52.52, 13.40).getID());
+		assertTrue(lazy.findTimeZoneExtent(52.52, 13.40).isDecoded());
+		assertFalse(lazy.getTimeZoneExtent(3).isDecoded());
+		assertNull(lazy.findTimeZone(0.0, -20.0));
+		assertSameLookups(tzWorld, lazy);
+		assertSameDecodes(lazy);
+
+		// a streamed shapefile can't be read again, so its rings are packed
+		final File files = dir;
+		URL streamed = new URL("test", null, -1, "/", new URLStreamHandler() {
+			@Override
+			protected URLConnection openConnection(final URL url) {
+				return new URLConnection(url) {
+					@Override
+					public void connect() {
+					}
+
+					@Override
+					public InputStream getInputStream() throws IOException {
+						return new FileInputStream(new File(files, url.getPath()));
+					}
+				};
+			}
+		});
+		TZWorld packed = new TZWorld(streamed, "tz_test", config);
+		for (TZWorld.TZExtent extent : packed.getExtents()) {
+			assertFalse(extent.isDecoded());
+			assertTrue(extent.getPackedSize() > 0);
+		}
+		assertSameLookups(tzWorld, packed);
+		assertSameDecodes(packed);
+	}
+
+	/**
+	 * Decoded again after eviction, to the same vertices
+	 */
+	private static void assertSameDecodes(TZWorld lazy) {
+		for (TZWorld.TZExtent extent : lazy.getExtents()) {
+			Ring[] shells = extent.getShells();
+			extent.releaseGeometry();
+			assertFalse(extent.isDecoded());
+			assertNotSame(shells, extent.getShells());
+			for (int s = 0; s < shells.length; s++) {
+				Ring ring = extent.getShells()[s];
+				assertEquals(shells[s].size(), ring.size());
+				for (int i = 0; i < ring.size(); i++) {
+					assertEquals(shells[s].getX(i), ring.getX(i));
+					assertEquals(shells[s].getY(i), ring.getY(i));
+				}
+			}
+			extent.releaseGeometry();
+		}
+	}
+
+	public void testLazyGeometryHeap() throws IOException {
+		File big = File.createTempFile("tzworld", "");
+		big.delete();
+		try {
+			URL root = writeBigWorld(big);
+			TZWorldConfig config = new TZWorldConfig();
+			long base = usedHeap();
+			TZWorld eager = new TZWorld(root, "tz_big", config);
+			long eagerHeap = usedHeap() - base;
+			assertEquals("Etc/GMT+3", eager.findTimeZone(0.0, -50.0).getID());
+			eager = null;
+
+			config.setLazyGeometry(true);
+			base = usedHeap();
+			TZWorld lazy = new TZWorld(root, "tz_big", config);
+			long lazyHeap = usedHeap() - base;
+			assertEquals("Etc/GMT+3", lazy.findTimeZone(0.0, -50.0).getID());
+
+			// 320,000 vertices take over 2.5 MB as plain rings
+			assertTrue("eager " + eagerHeap, eagerHeap > 2500000);
+			assertTrue("lazy " + lazyHeap + ", eager " + eagerHeap, lazyHeap < eagerHeap / 10);
+			assertTrue(lazy.getGeometryBytes() < 1000);
+		}
+		finally {
+			for (File file : big.listFiles())
+				file.delete();
+			big.delete();
+		}
+	}
+
+	/**
+	 * A few large zones, so the rings dwarf everything else
+	 */
+	private static URL writeBigWorld(File dir) throws IOException {
+		ShapeFileFixture fixture = new ShapeFileFixture();
+		for (int z = 0; z < 8; z++)
+			fixture.addZone("Etc/GMT+" + z, ShapeFileFixture.star(-170.0 + 40.0 * z, 0.0, 8.0, 8.0, 40000));
+		return fixture.write(dir, "tz_big");
+	}
+
+	/**
+	 * Heap in use after collecting all the garbage we can
+	 */
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+
+	public void testOffHeapGeometry() throws IOException {
+		TZWorldConfig config = new TZWorldConfig();
+		config.setOffHeapGeometry(true);
+		TZWorld offHeap = new TZWorld(dir.toURI().toURL(), "tz_test", config);
+		for (TZWorld.TZExtent extent : offHeap.getExtents()) {
+			for (Ring ring : extent.getShells())
+				assertTrue(ring instanceof BufferRing);
+			for (Ring ring : extent.getHoles())
+				assertTrue(ring instanceof BufferRing);
+		}
+		assertTrue(offHeap.findTimeZoneExtent(51.0, 10.5).getShells()[0].isEdgeIndexed());
+		assertSameLookups(tzWorld, offHeap);
+
+		// small buffers, so rings and edge indexes spread over many of them
+		TZWorld split = new TZWorld(dir.toURI().toURL(), "tz_test");
+		TZWorldLoader.moveOffHeap(split.getExtents(), 1 << 15);
+		assertTrue(split.findTimeZoneExtent(51.0, 10.5).getShells()[0] instanceof BufferRing);
+		assertSameLookups(tzWorld, split);
+
+		// but no ring is split
+		TZWorld tooBig = new TZWorld(dir.toURI().toURL(), "tz_test");
+		try {
+			TZWorldLoader.moveOffHeap(tooBig.getExtents(), 1 << 12);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testOffHeapGeometryHeap() throws IOException {
+		File big = File.createTempFile("tzworld", "");
+		big.delete();
+		try {
+			URL root = writeBigWorld(big);
+			TZWorldConfig config = new TZWorldConfig();
+			long base = usedHeap();
+			TZWorld eager = new TZWorld(root, "tz_big", config);
+			long eagerHeap = usedHeap() - base;
+			assertEquals("Etc/GMT+3", eager.findTimeZone(0.0, -50.0).getID());
+			eager = null;
+
+			config.setOffHeapGeometry(true);
+			base = usedHeap();
+			TZWorld offHeap = new TZWorld(root, "tz_big", config);
+			long offHeapHeap = usedHeap() - base;
+			assertEquals("Etc/GMT+3", offHeap.findTimeZone(0.0, -50.0).getID());
+			assertTrue(offHeap.findTimeZoneExtent(0.0, -50.0).getShells()[0].isEdgeIndexed());
+
+			// vertices and edge bands moved out; the tile index and quadtree
+			// stay
+			assertTrue("off heap " + offHeapHeap + ", eager " + eagerHeap, offHeapHeap < eagerHeap / 3);
+		}
+		finally {
+			for (File file : big.listFiles())
+				file.delete();
+			big.delete();
+		}
+	}
+
+	public void testPackedRings() throws IOException {
+		TZWorldConfig config = new TZWorldConfig();
+		config.setPackedRings(true);
+		TZWorld packed = new TZWorld(dir.toURI().toURL(), "tz_test", config);
+		for (int e = 0; e < tzWorld.getTimeZoneCount(); e++) {
+			Ring[] shells = tzWorld.getTimeZoneExtent(e).getShells();
+			Ring[] packedShells = packed.getTimeZoneExtent(e).getShells();
+			for (int s = 0; s < shells.length; s++) {
+				assertTrue(packedShells[s] instanceof PackedRing);
+				assertEquals(shells[s].size(), packedShells[s].size());
+				for (int i = 0; i < shells[s].size(); i++) {
+					assertEquals(shells[s].getX(i), packedShells[s].getX(i));
+					assertEquals(shells[s].getY(i), packedShells[s].getY(i));
+				}
+			}
+		}
+
+		// the star's long spikes still pack under the 8 bytes a vertex of a
+		// plain ring
+		PackedRing berlin = (PackedRing) packed.findTimeZoneExtent(51.0, 10.5).getShells()[0];
+		assertTrue(berlin.getPackedSize() < 6L * berlin.size());
+		assertSameLookups(tzWorld, packed);
+
+		// a cursor gives the same vertices, walking on, jumping about and
+		// wrapping around
+		Ring plain = tzWorld.findTimeZoneExtent(51.0, 10.5).getShells()[0];
+		Ring.Cursor cursor = berlin.cursor();
+		for (int i = 0; i < 2 * plain.size(); i++) {
+			cursor.next();
+			assertEquals(plain.getX(i % plain.size()), cursor.x);
+			assertEquals(plain.getY(i % plain.size()), cursor.y);
+		}
+		Random random = new Random(5);
+		for (int k = 0; k < 1000; k++) {
+			int i = random.nextInt(plain.size());
+			cursor.moveTo(i);
+			assertEquals(plain.getX(i), cursor.x);
+			assertEquals(plain.getY(i), cursor.y);
+		}
+		assertTrue(Arrays.equals(plain.toArray(), berlin.toArray()));
+
+		// a finely traced boundary, vertices ~100 m apart, packs to about half
+		double[][] circle = ShapeFileFixture.star(10.0, 50.0, 1.0, 1.0, 60000);
+		int[] coords = new int[2 * (circle.length - 1)];
+		for (int i = 0; i < coords.length / 2; i++) {
+			coords[2 * i] = TZWorld.integerize(circle[i][0]);
+			coords[2 * i + 1] = TZWorld.integerize(circle[i][1]);
+		}
+		PackedRing fine = new PackedRing(new ArrayRing(coords));
+		assertTrue(fine.getPackedSize() + " bytes", fine.getPackedSize() < 4.5 * fine.size());
+	}
+
+	public void testParallelLoad() throws IOException {
+		TZWorldConfig config = new TZWorldConfig();
+		config.setParallelLoad(false);
+		TZWorld sequential = new TZWorld(dir.toURI().toURL(), "tz_test", config);
+
+		assertEquals(sequential.getTimeZoneCount(), tzWorld.getTimeZoneCount());
+		for (int i = 0; i < tzWorld.getTimeZoneCount(); i++)
+			assertEquals(sequential.getTimeZone(i).getID(), tzWorld.getTimeZone(i).getID());
+		assertTrue(Arrays.equals(sequential.getIndex().getOffsets(), tzWorld.getIndex().getOffsets()));
+		assertTrue(Arrays.equals(sequential.getIndex().getCandidates(), tzWorld.getIndex().getCandidates()));
+	}
+
+	public void testCache() throws IOException {
+		TZWorldConfig config = new TZWorldConfig();
+		config.setCacheSize(64);
+		TZWorld cached = new TZWorld(dir.toURI().toURL(), "tz_test", config);
+		TZCache cache = cached.getCache();
+		assertEquals(64, cache.getCapacity());
+
+		// hot spots well inside their zones
+		double[][] points = { { 33.0, -124.0 }, { 36.0, -119.0 }, { 51.0, 10.5 }, { 65.0, 175.0 }, { 65.0, -175.0 },
+				{ -15.0, -50.0 }, { 0.0, 0.0 } };
+		for (int pass = 0; pass < 3; pass++)
+			for (double[] point : points)
+				assertEquals(tzWorld.findTimeZone(point[0], point[1]), cached.findTimeZone(point[0], point[1]));
+		assertEquals(points.length, cache.getMisses());
+		assertEquals(2 * points.length, cache.getHits());
+
+		// more cells than fit: bounded, and still the same answers
+		Random random = new Random(17);
+		for (int i = 0; i < 10000; i++) {
+			double lat = 30 + random.nextDouble() * 40;
+			double lon = -130 + random.nextDouble() * 30;
+			assertEquals(tzWorld.findTimeZoneOrdinal(lat, lon), cached.findTimeZoneOrdinal(lat, lon));
+		}
+		assertTrue(cache.getEvictions() > 0);
+		assertTrue(cache.getMisses() - cache.getEvictions() <= cache.getCapacity());
+
+		cache.clear();
+		assertEquals(0, cache.getHits());
+		cached.setCache(null);
+		assertEquals(tzWorld.findTimeZone(36.0, -119.0), cached.findTimeZone(36.0, -119.0));
+		assertEquals(0, cache.getMisses());
+	}
+
+	public void testLookupContext() {
+		// a track out of Los Angeles, through Phoenix and back, then on
+		// across Berlin
+		TZLookupContext context = new TZLookupContext(tzWorld);
+		int n = 0;
+		for (double lon = -124.5; lon < -115.5; lon += 0.01, n++)
+			assertEquals(tzWorld.findTimeZoneOrdinal(36.0, lon), context.findTimeZoneOrdinal(36.0, lon));
+		for (double lat = 47.5; lat < 54.5; lat += 0.01, n++)
+			assertEquals(tzWorld.findTimeZoneOrdinal(lat, 10.5), context.findTimeZoneOrdinal(lat, 10.5));
+		assertEquals(n, context.getHits() + context.getMisses());
+		assertTrue(context.getHits() > n * 9 / 10);
+
+		// wherever the last point was, answers are the same
+		Random random = new Random(19);
+		for (int i = 0; i < 10000; i++) {
+			double lat = -90 + random.nextDouble() * 180;
+			double lon = -180 + random.nextDouble() * 360;
+			assertEquals(tzWorld.findTimeZoneOrdinal(lat, lon), context.findTimeZoneOrdinal(lat, lon));
+		}
+
+		// and row by row across the globe
+		context.reset();
+		for (double lat = -89.95; lat < 90.0; lat += 0.1)
+			for (double lon = -179.95; lon < 180.0; lon += 0.1)
+				assertEquals(tzWorld.findTimeZone(lat, lon), context.findTimeZone(lat, lon));
+	}
+
+	public void testLookupContextOverlap() throws IOException {
+		// out of Kinshasa into its overlap with Luanda, which the index lists
+		// first, then out of Lagos across the meridian
+		TZWorld meridian = new TZWorld(writeMeridianWorld(dir), "tz_meridian");
+		TZLookupContext context = new TZLookupContext(meridian);
+		for (double lon = 2.5; lon > 1.0; lon -= 0.01)
+			assertEquals("at " + lon, meridian.findTimeZoneOrdinal(-10.5, lon), context.findTimeZoneOrdinal(-10.5,
+					lon));
+		assertEquals("Africa/Luanda", context.findTimeZone(-10.5, 1.7).getID());
+		for (double lon = 0.4; lon > -0.6; lon -= 0.01)
+			assertEquals("at " + lon, meridian.findTimeZoneOrdinal(10.5, lon), context.findTimeZoneOrdinal(10.5, lon));
+		assertTrue(context.getHits() > context.getMisses());
+	}
+
+	public void testTrajectory() throws IOException {
+		// a dense track wandering between zones, out to sea and across the
+		// antimeridian
+		Random random = new Random(23);
+		int n = 200000;
+		double[] lats = new double[n];
+		double[] lons = new double[n];
+		long[] times = new long[n];
+		double lat = 36.0;
+		double lon = -124.0;
+		double heading = 0.3;
+		for (int i = 0; i < n; i++) {
+			heading += (random.nextDouble() - 0.5) * 0.05;
+			lat = Math.max(-80, Math.min(80, lat + 0.002 * Math.sin(heading)));
+			lon += 0.004 * Math.cos(heading);
+			if (lon >= 180.0)
+				lon -= 360.0;
+			else if (lon < -180.0)
+				lon += 360.0;
+			lats[i] = lat;
+			lons[i] = lon;
+			times[i] = 1000L * i;
+		}
+
+		// count the lookups
+		TZWorld counted = new TZWorld(dir.toURI().toURL(), "tz_test");
+		counted.setCache(new TZCache(4, 1e-9));
+		List<TZTrajectory.Segment> segments = TZTrajectory.segments(counted, lats, lons, times);
+		assertTrue(counted.getCache().getMisses() < n / 100);
+
+		int expected = 0;
+		int s = 0;
+		for (int i = 0; i < n; i++) {
+			int ordinal = tzWorld.findTimeZoneOrdinal(lats[i], lons[i]);
+			if (i == 0 || ordinal != tzWorld.findTimeZoneOrdinal(lats[i - 1], lons[i - 1]))
+				expected++;
+			TZTrajectory.Segment segment = segments.get(s);
+			assertTrue(i >= segment.getFrom() && i < segment.getTo());
+			assertEquals("at " + i, ordinal, segment.getOrdinal());
+			if (i == segment.getTo() - 1)
+				s++;
+		}
+		assertEquals(expected, segments.size());
+		assertTrue(expected > 2);
+		assertEquals(n, segments.get(segments.size() - 1).getTo());
+		assertEquals(times[segments.get(1).getFrom()], segments.get(1).getStartTime());
+	}
+
+	public void testTrajectoryTiles() throws IOException {
+		// across the meridian, out of Lagos into its first tile, and out of
+		// Kinshasa into the tile where Luanda is listed ahead of it
+		TZWorld meridian = new TZWorld(writeMeridianWorld(dir), "tz_meridian");
+		double[][] tracks = { { 10.5, 0.4, 10.5, -0.4 }, { 10.5, -0.4, 10.5, 0.4 }, { -10.5, 2.9, -10.5, 1.0 },
+				{ -10.6, 1.0, -10.4, 2.9 } };
+		for (double[] track : tracks) {
+			int n = 100;
+			double[] lats = new double[n];
+			double[] lons = new double[n];
+			for (int i = 0; i < n; i++) {
+				lats[i] = track[0] + (track[2] - track[0]) * i / (n - 1);
+				lons[i] = track[1] + (track[3] - track[1]) * i / (n - 1);
+			}
+
+			List<TZTrajectory.Segment> segments = TZTrajectory.segments(meridian, lats, lons, null);
+			int s = 0;
+			for (int i = 0; i < n; i++) {
+				TZTrajectory.Segment segment = segments.get(s);
+				assertEquals("at " + lats[i] + "," + lons[i], meridian.findTimeZoneOrdinal(lats[i], lons[i]), segment
+						.getOrdinal());
+				if (i == segment.getTo() - 1)
+					s++;
+			}
+			assertEquals(segments.size(), s);
+		}
+	}
+
+	public void testBatch() {
+		Random random = new Random(11);
+		for (int n : new int[] { 0, 10, 1000, 50000 }) {
+			double[] lats = new double[n];
+			double[] lons = new double[n];
+			for (int i = 0; i < n; i++) {
+				lats[i] = random.nextDouble() * 140.0 - 70.0;
+				lons[i] = random.nextDouble() * 360.0 - 180.0;
+			}
+
+			int[] ordinals = new int[n];
+			tzWorld.findTimeZoneOrdinals(lats, lons, ordinals);
+			for (int i = 0; i < n; i++)
+				assertEquals(tzWorld.findTimeZoneOrdinal(lats[i], lons[i]), ordinals[i]);
+		}
+
+		int ordinal = tzWorld.findTimeZoneOrdinal(36.0, -119.0);
+		assertEquals("America/Phoenix", tzWorld.getTimeZone(ordinal).getID());
+		assertEquals(-1, tzWorld.findTimeZoneOrdinal(0, 0));
+
+		try {
+			tzWorld.findTimeZoneOrdinals(new double[2], new double[3], new int[3]);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testParallelBatch() {
+		Random random = new Random(13);
+		int n = 200000;
+		double[] lats = new double[n];
+		double[] lons = new double[n];
+		for (int i = 0; i < n; i++) {
+			lats[i] = random.nextDouble() * 140.0 - 70.0;
+			lons[i] = random.nextDouble() * 360.0 - 180.0;
+		}
+		int[] expected = new int[n];
+		tzWorld.findTimeZoneOrdinals(lats, lons, expected);
+
+		for (int parallelism : new int[] { 1, 2, 4 }) {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try {
+				int[] ordinals = new int[n];
+				tzWorld.findTimeZoneOrdinals(lats, lons, ordinals, pool);
+				assertTrue(Arrays.equals(expected, ordinals));
+			}
+			finally {
+				pool.shutdown();
+			}
+		}
+
+		int[] ordinals = new int[n];
+		tzWorld.findTimeZoneOrdinals(lats, lons, ordinals, null);
+		assertTrue(Arrays.equals(expected, ordinals));
+	}
+
+	public void testHolderReload() throws Exception {
+		GeoSenseHolder holder = new GeoSenseHolder();
+		assertFalse(holder.isLoaded());
+		try {
+			holder.get();
+			fail("nothing loaded yet");
+		}
+		catch (IllegalStateException e) {
+		}
+
+		// await() waits out a load in progress
+		final URL root = dir.toURI().toURL();
+		final CountDownLatch started = new CountDownLatch(1);
+		CompletableFuture<GeoSenseData> loading = holder.reload(new Callable<GeoSenseData>() {
+			@Override
+			public GeoSenseData call() throws IOException, InterruptedException {
+				started.await();
+				return GeoSenseData.load(root, "tz_test", new TZWorldConfig());
+			}
+		});
+		assertFalse(holder.isLoaded());
+		started.countDown();
+		GeoSenseData first = holder.await();
+		assertSame(first, loading.get());
+		assertSame(first, holder.get());
+		assertEquals("Europe/Berlin", holder.get().getTimeZone(52.52, 13.40).getID());
+		assertEquals("Etc/GMT+1", holder.get().getTimeZone(0.0, -20.0).getID());
+		assertEquals("Europe/Berlin", holder.get().getATimeZone("DE").getID());
+
+		// a failed reload keeps the data in place
+		final IOException missing = new IOException("missing");
+		try {
+			holder.reload(new Callable<GeoSenseData>() {
+				@Override
+				public GeoSenseData call() throws IOException {
+					throw missing;
+				}
+			}).get();
+			fail("reload should fail");
+		}
+		catch (ExecutionException e) {
+			assertSame(missing, e.getCause());
+		}
+		assertSame(first, holder.get());
+		assertSame(missing, holder.getFailure());
+
+		GeoSenseData second = new GeoSenseData(tzWorld);
+		assertSame(first, holder.set(second));
+		assertSame(second.getTZWorld(), holder.get().getTZWorld());
+		assertSame(holder.get(), holder.get());
+	}
+
+	public void testHolderInitAsync() throws Exception {
+		// a loader that fails once, then loads once let through
+		final URL root = dir.toURI().toURL();
+		final IOException missing = new IOException("missing");
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger();
+		GeoSenseHolder holder = new GeoSenseHolder(new Callable<GeoSenseData>() {
+			@Override
+			public GeoSenseData call() throws IOException, InterruptedException {
+				if (calls.incrementAndGet() == 1)
+					throw missing;
+				release.await();
+				return GeoSenseData.load(root, "tz_test", new TZWorldConfig());
+			}
+		});
+		assertEquals(GeoSense.NotReady.BLOCK, holder.getNotReady());
+		holder.setNotReady(GeoSense.NotReady.ETC);
+
+		// before any load, ETC falls back
+		assertFalse(holder.isLoaded());
+		assertNull(holder.getOrEtc());
+
+		try {
+			holder.initAsync().get();
+			fail("first load should fail");
+		}
+		catch (ExecutionException e) {
+			assertSame(missing, e.getCause());
+		}
+		assertFalse(holder.isLoaded());
+
+		// after the failure every mode reports it, ETC included
+		for (GeoSense.NotReady notReady : GeoSense.NotReady.values()) {
+			holder.setNotReady(notReady);
+			try {
+				holder.getOrEtc();
+				fail(notReady + " should report the failure");
+			}
+			catch (IllegalStateException e) {
+				assertSame(missing, e.getCause());
+			}
+		}
+
+		// a retry: ETC falls back while it runs, FAIL throws
+		CompletableFuture<GeoSenseData> retry = holder.initAsync();
+		assertSame(retry, holder.initAsync());
+		holder.setNotReady(GeoSense.NotReady.ETC);
+		assertNull(holder.getOrEtc());
+		holder.setNotReady(GeoSense.NotReady.FAIL);
+		try {
+			holder.getWhenReady();
+			fail("FAIL should not wait");
+		}
+		catch (IllegalStateException e) {
+		}
+
+		// BLOCK waits it out
+		holder.setNotReady(GeoSense.NotReady.BLOCK);
+		release.countDown();
+		GeoSenseData data = holder.getWhenReady();
+		assertSame(data, retry.get());
+		assertTrue(holder.isLoaded());
+		assertSame(data, holder.getOrEtc());
+		assertEquals("Europe/Berlin", data.getTimeZone(52.52, 13.40).getID());
+
+		// loaded, so no further loads
+		assertSame(data, holder.initAsync().get());
+		assertEquals(2, calls.get());
+	}
+
+	public void testMetrics() throws Exception {
+		// without the quadtree, so lookups go through the polygon tests
+		TZWorldConfig config = new TZWorldConfig();
+		config.setQuadtree(false);
+		TZWorld plain = new TZWorld(dir.toURI().toURL(), "tz_test", config);
+		TZMetrics metrics = new TZMetrics();
+		plain.setMetrics(metrics);
+		plain.findTimeZone(52.52, 13.40);
+		assertEquals(0, metrics.snapshot(null).getLookups());
+
+		metrics.setEnabled(true);
+		assertEquals("Europe/Berlin", plain.findTimeZone(52.52, 13.40).getID());
+		assertNull(plain.findTimeZone(0.0, -20.0));
+		TZMetrics.Snapshot snapshot = metrics.snapshot(plain);
+		assertEquals(2, snapshot.getLookups());
+		assertEquals(0.5, snapshot.getFallbackRate());
+		assertEquals(2, snapshot.getExactLookups());
+		assertTrue(snapshot.getCandidates() >= 1);
+		assertTrue(snapshot.getVertices() > 0);
+		assertTrue(snapshot.getLatencyNanos(50.0) > 0);
+		assertTrue(snapshot.getLatencyNanos(100.0) >= snapshot.getLatencyNanos(50.0));
+		assertTrue(snapshot.getGeometryBytes() > 8L * plain.findTimeZoneExtent(51.0, 10.5).getShells()[0].size());
+		assertTrue(snapshot.getLoadTimings().containsKey("index"));
+
+		metrics.reset();
+		assertEquals(0, metrics.snapshot(null).getLookups());
+
+		// buckets hold their values and stay within an eighth
+		for (long v : new long[] { 0, 15, 16, 17, 31, 32, 1000, 123456789 }) {
+			long highest = TZMetrics.Histogram.highest(TZMetrics.Histogram.bucket(v));
+			assertTrue(highest >= v && highest <= v + v / 8);
+		}
+
+		// and over JMX, through a holder, which leaves the shared world alone
+		GeoSenseData data = new GeoSenseData(tzWorld);
+		GeoSenseHolder holder = new GeoSenseHolder(data);
+		assertNull(tzWorld.getMetrics());
+		holder.getMetrics().setEnabled(true);
+		holder.get().getTimeZone(52.52, 13.40);
+		data.getTimeZone(52.52, 13.40);
+		tzWorld.findTimeZone(52.52, 13.40);
+		assertEquals(1, holder.getMetrics().snapshot(null).getLookups());
+		holder.get().getTimeZoneOrdinals(new double[] { 52.52, 0.0 }, new double[] { 13.40, -20.0 }, new int[2]);
+		holder.get().getTimeZoneOrdinals(new double[] { 52.52 }, new double[] { 13.40 }, new int[1], null);
+		assertNotNull(holder.get().getNearestTimeZone(52.52, 13.40, 1.0));
+		TZLookupContext context = holder.get().newLookupContext();
+		holder.get().getTimeZone(52.52, 13.40, context);
+		holder.get().getTimeZone(52.52, 13.41, context);
+		assertEquals(6, holder.getMetrics().snapshot(null).getLookups());
+		holder.getMetrics().reset();
+		holder.get().getTimeZone(52.52, 13.40);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("com.redlaser.geosense:type=TestTZWorld");
+		server.registerMBean(new GeoSenseMetrics(holder), name);
+		try {
+			assertEquals(1L, server.getAttribute(name, "Lookups"));
+			assertEquals(Boolean.TRUE, server.getAttribute(name, "Ready"));
+			server.setAttribute(name, new Attribute("MetricsEnabled", false));
+			assertFalse(holder.getMetrics().isEnabled());
+		}
+		finally {
+			server.unregisterMBean(name);
+		}
+	}
+
+	/**
+	 * Compare lookups over a grid covering every fixture zone, and at random
+	 * points around their boundaries
+	 */
+	static void assertSameLookups(TZWorld expected, TZWorld actual) {
+		for (double lat = -89.95; lat < 90.0; lat += 0.1) {
+			for (double lon = -179.95; lon < 180.0; lon += 0.1) {
+				TimeZone tz = expected.findTimeZone(lat, lon);
+				assertEquals("at " + lat + "," + lon, tz, actual.findTimeZone(lat, lon));
+			}
+		}
+
+		Random random = new Random(7);
+		double[][] areas = { { 30, -127, 14, 14 }, { 45, 4, 12, 14 }, { -30, -65, 30, 30 }, { 58, 168, 14, 4 } };
+		for (double[] area : areas) {
+			for (int i = 0; i < 100000; i++) {
+				double lat = area[0] + random.nextDouble() * area[2];
+				double lon = area[1] + random.nextDouble() * area[3];
+				TimeZone tz = expected.findTimeZone(lat, lon);
+				assertEquals("at " + lat + "," + lon, tz, actual.findTimeZone(lat, lon));
+			}
+		}
+	}
+}